@@ -13,6 +13,7 @@
 package com.midisheetmusic.app.android;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import android.app.*;
 import android.content.*;
 import android.content.res.*;
@@ -24,6 +25,9 @@ import android.media.*;
 import com.midisheetmusic.midi.model.MidiFile;
 import com.midisheetmusic.midi.model.MidiFileException;
 import com.midisheetmusic.midi.model.MidiOptions;
+import com.midisheetmusic.midi.model.RenderCache;
+import com.midisheetmusic.midi.model.SoundKey;
+import com.midisheetmusic.midi.model.TempoMap;
 
 
 /** @class MidiPlayer
@@ -45,8 +49,10 @@ import com.midisheetmusic.midi.model.MidiOptions;
  * - The tempo (from the Speed bar)
  * - The volume
  *
- * The MidiFile.ChangeSound() method is used to create a new midi file
- * with these options.  The mciSendString() function is used for 
+ * The MidiFile.Render() method is used to create a new midi file
+ * with these options.  The MediaPlayer can only play from a file, so
+ * the midi data is saved to tempSoundFile, but only when it differs
+ * from the data already saved there.  The mciSendString() function is used for 
  * playing, pausing, and stopping the sound.
  *
  * For shading the notes during playback, the method
@@ -76,11 +82,15 @@ public class MidiPlayer extends LinearLayout {
     final int initPause = 5;     /** Transitioning from playing to pause */
 
     final String tempSoundFile = "playing.mid"; /** The filename to play sound from */
+    static final long soundCacheSize = 2 * 1024 * 1024; /** The size of soundCache, in bytes */
+    RenderCache soundCache;     /** The midi data rendered for recent sound options */
+    ByteBuffer savedSound;      /** The midi data saved in tempSoundFile, or null */
+    ByteBuffer renderBuffer;    /** The buffer of the last render, reused by the next one */
 
     MediaPlayer player;         /** For playing the audio */
     MidiFile midifile;          /** The midi file to play */
     MidiOptions options;        /** The sound options for playing the midi file */
-    double pulsesPerMsec;       /** The number of pulses per millisec */
+    double speed;               /** The song microseconds played per microsecond */
     SheetMusic sheet;           /** The sheet music to shade while playing */
     Piano piano;                /** The piano to shade while playing */
     Handler timer;              /** Timer used to update the sheet music while playing */
@@ -129,6 +139,7 @@ public class MidiPlayer extends LinearLayout {
         Point newsize = MidiPlayer.getPreferredSize(screenwidth, screenheight);
         resizeButtons(newsize.x, newsize.y);
         player = new MediaPlayer();
+        soundCache = new RenderCache(soundCacheSize);
         setBackgroundColor(Color.BLACK);
     }
 
@@ -306,6 +317,9 @@ public class MidiPlayer extends LinearLayout {
         }
         else {
             Stop();
+            if (file != midifile) {
+                soundCache.Clear();
+            }
             midifile = file;
             options = opt;
             sheet = s;
@@ -337,23 +351,38 @@ public class MidiPlayer extends LinearLayout {
     }
 
     /** Create a new midi file with all the MidiOptions incorporated.
-     *  Save the new file to playing.mid, and store
-     *  this temporary filename in tempSoundFile.
+     *  The midi data is taken from the soundCache, or rendered into
+     *  memory if the sound options weren't used recently.  The render
+     *  reuses the buffer of the previous one, and the soundCache keeps
+     *  a copy of the data.  It is saved
+     *  to playing.mid only if it differs from the data saved there last
+     *  time, such as when a loop restarts, or the song is played again.
      */ 
     private void CreateMidiFile() {
         double inverse_tempo = 1.0 / midifile.getTime().getTempo();
         double inverse_tempo_scaled = inverse_tempo * speedBar.getProgress() / 100.0;
         // double inverse_tempo_scaled = inverse_tempo * 100.0 / 100.0;
         options.tempo = (int)(1.0 / inverse_tempo_scaled);
-        pulsesPerMsec = midifile.getTime().getQuarter() * (1000.0 / options.tempo);
+        speed = (double)midifile.getTime().getTempo() / options.tempo;
 
+        SoundKey key = new SoundKey(options);
+        ByteBuffer sound = soundCache.Get(key);
+        if (sound == null) {
+            renderBuffer = midifile.Render(options, renderBuffer);
+            sound = soundCache.Put(key, renderBuffer);
+        }
+        if (sound == savedSound || sound.equals(savedSound)) {
+            return;
+        }
         try {
             FileOutputStream dest = context.openFileOutput(tempSoundFile, Context.MODE_PRIVATE);
-            midifile.ChangeSound(dest, options);
+            dest.write(sound.array(), 0, sound.limit());
             dest.close();
+            savedSound = sound;
             // checkFile(tempSoundFile);
         }
         catch (IOException e) {
+            savedSound = null;
             Toast toast = Toast.makeText(context, "Error: Unable to create MIDI file for playing.", Toast.LENGTH_LONG);
             toast.show();
         }
@@ -622,11 +651,11 @@ public class MidiPlayer extends LinearLayout {
         else if (playstate == playing) {
             long msec = SystemClock.uptimeMillis() - startTime;
             prevPulseTime = currentPulseTime;
-            currentPulseTime = startPulseTime + msec * pulsesPerMsec;
+            currentPulseTime = PulseTimeAfter(msec);
 
             /* If we're playing in a loop, stop and restart */
             if (options.playMeasuresInLoop) {
-                double nearEndTime = currentPulseTime + pulsesPerMsec*10;
+                double nearEndTime = PulseTimeAfter(msec + 10);
                 int measure = (int)(nearEndTime / midifile.getTime().getMeasure());
                 if (measure > options.playMeasuresInLoopEnd) {
                     RestartPlayMeasuresInLoop();
@@ -649,7 +678,7 @@ public class MidiPlayer extends LinearLayout {
             StopSound();
 
             prevPulseTime = currentPulseTime;
-            currentPulseTime = startPulseTime + msec * pulsesPerMsec;
+            currentPulseTime = PulseTimeAfter(msec);
             sheet.ShadeNotes((int)currentPulseTime, (int)prevPulseTime, false);
             piano.ShadeNotes((int)currentPulseTime, (int)prevPulseTime);
             playstate = paused;
@@ -660,6 +689,17 @@ public class MidiPlayer extends LinearLayout {
     };
 
 
+    /** Return the time (in pulses) of the music, the given number of
+     *  milliseconds after it started playing at startPulseTime.  The
+     *  tempo map is used, so the time follows the tempo changes.
+     */
+    private double PulseTimeAfter(long msec) {
+        TempoMap tempomap = midifile.getTempoMap();
+        double start = tempomap.pulseToMicros(startPulseTime - options.shifttime);
+        return options.shifttime + tempomap.microsToPulse(start + msec * 1000.0 * speed);
+    }
+
+
     /** The "Play Measures in a Loop" feature is enabled, and we've reached
      *  the last measure. Stop the sound, unshade the music, and then
      *  start playing again.
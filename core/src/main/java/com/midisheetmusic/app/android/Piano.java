@@ -19,9 +19,10 @@ import android.graphics.*;
 import android.view.*;
 import com.midisheetmusic.app.android.MidiPlayer;
 import com.midisheetmusic.midi.model.MidiFile;
-import com.midisheetmusic.midi.model.MidiNote;
 import com.midisheetmusic.midi.model.MidiOptions;
 import com.midisheetmusic.midi.model.MidiTrack;
+import com.midisheetmusic.midi.model.NoteTable;
+import com.midisheetmusic.midi.model.OnsetIndex;
 
 
 /** @class Piano
@@ -53,7 +54,8 @@ public class Piano extends SurfaceView implements SurfaceHolder.Callback {
     private int gray1, gray2, gray3, shade1, shade2;
 
     private boolean useTwoColors;         /** If true, use two colors for highlighting */
-    private ArrayList<MidiNote> notes;    /** The Midi notes for shading */
+    private NoteTable notes;              /** The Midi notes for shading */
+    private OnsetIndex onsets;            /** The next start time of each note */
     private int maxShadeDuration;         /** The maximum duration we'll shade a note for */
     private int showNoteLetters;          /** Display the letter for each piano note */
     private Paint paint;                  /** The paint options for drawing */
@@ -167,24 +169,24 @@ public class Piano extends SurfaceView implements SurfaceHolder.Callback {
                             MidiPlayer player) {
         if (midifile == null) {
             notes = null;
+            onsets = null;
             useTwoColors = false;
             return;
         }
         this.player = player;
         ArrayList<MidiTrack> tracks = midifile.ChangeMidiNotes(options);
-        MidiTrack track = MidiFile.CombineToSingleTrack(tracks);
-        notes = track.getNotes();
-
-        maxShadeDuration = midifile.getTime().getQuarter() * 2;
 
         /* We want to know which track the note came from.
          * Use the 'channel' field to store the track.
          */
         for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
-            for (MidiNote note : tracks.get(tracknum).getNotes()) {
-                note.setChannel(tracknum);
-            }
+            tracks.get(tracknum).getTable().FillChannel(tracknum);
         }
+        MidiTrack track = MidiFile.CombineToSingleTrack(tracks);
+        notes = track.readTable();
+        onsets = new OnsetIndex(notes);
+
+        maxShadeDuration = midifile.getTime().getQuarter() * 2;
 
         /* When we have exactly two tracks, we assume this is a piano song,
          * and we use different colors for highlighting the left hand and
@@ -548,62 +550,20 @@ public class Piano extends SurfaceView implements SurfaceHolder.Callback {
 
         while (right - left > 1) {
             int i = (right + left)/2;
-            if (notes.get(left).getStartTime() == pulseTime)
+            if (notes.getStartTime(left) == pulseTime)
                 break;
-            else if (notes.get(i).getStartTime() <= pulseTime)
+            else if (notes.getStartTime(i) <= pulseTime)
                 left = i;
             else
                 right = i;
         }
         while (left >= 1 && 
-               (notes.get(left-1).getStartTime() == notes.get(left).getStartTime())) {
+               (notes.getStartTime(left-1) == notes.getStartTime(left))) {
             left--;
         }
         return left;
     }
 
-    /** Return the next StartTime that occurs after the MidiNote
-     *  at offset i, that is also in the same track/channel.
-     */
-    private int NextStartTimeSameTrack(int i) {
-        int start = notes.get(i).getStartTime();
-        int end = notes.get(i).getEndTime();
-        int track = notes.get(i).getChannel();
-
-        while (i < notes.size()) {
-            if (notes.get(i).getChannel() != track) {
-                i++;
-                continue;
-            }
-            if (notes.get(i).getStartTime() > start) {
-                return notes.get(i).getStartTime();
-            }
-            end = Math.max(end, notes.get(i).getEndTime());
-            i++;
-        }
-        return end;
-    }
-
-
-    /** Return the next StartTime that occurs after the MidiNote
-     *  at offset i.  If all the subsequent notes have the same
-     *  StartTime, then return the largest EndTime.
-     */
-    private int NextStartTime(int i) {
-        int start = notes.get(i).getStartTime();
-        int end = notes.get(i).getEndTime();
-
-        while (i < notes.size()) {
-            if (notes.get(i).getStartTime() > start) {
-                return notes.get(i).getStartTime();
-            }
-            end = Math.max(end, notes.get(i).getEndTime());
-            i++;
-        }
-        return end;
-    }
-
-
     /** Find the Midi notes that occur in the current time.
      *  Shade those notes on the piano displayed.
      *  Un-shade the those notes played in the previous time.
@@ -626,11 +586,11 @@ public class Piano extends SurfaceView implements SurfaceHolder.Callback {
          */
         int lastShadedIndex = FindClosestStartTime(prevPulseTime - maxShadeDuration * 2);
         for (int i = lastShadedIndex; i < notes.size(); i++) {
-            int start = notes.get(i).getStartTime();
-            int end = notes.get(i).getEndTime();
-            int notenumber = notes.get(i).getNumber();
-            int nextStart = NextStartTime(i);
-            int nextStartTrack = NextStartTimeSameTrack(i);
+            int start = notes.getStartTime(i);
+            int end = notes.getEndTime(i);
+            int notenumber = notes.getNumber(i);
+            int nextStart = onsets.getNextStartTime(i);
+            int nextStartTrack = onsets.getNextChannelStartTime(i);
             end = Math.max(end, nextStartTrack);
             end = Math.min(end, start + maxShadeDuration-1);
                 
@@ -650,7 +610,7 @@ public class Piano extends SurfaceView implements SurfaceHolder.Callback {
             /* If the note is in the current time, shade it */
             if ((start <= currentPulseTime) && (currentPulseTime < end)) {
                 if (useTwoColors) {
-                    if (notes.get(i).getChannel() == 1) {
+                    if (notes.getChannel(i) == 1) {
                         ShadeOneNote(bufferCanvas, notenumber, shade2);
                     }
                     else {
@@ -13,7 +13,6 @@
 package com.midisheetmusic.app.android;
 
 import java.util.*;
-import java.io.*;
 import android.app.*;
 import android.content.*;
 import android.graphics.*;
@@ -22,14 +21,8 @@ import android.view.*;
 import android.view.animation.AnimationUtils;
 import com.midisheetmusic.app.guiHelper.ClefSymbol;
 import com.midisheetmusic.core.model.*;
-import com.midisheetmusic.helper.ListInt;
 import com.midisheetmusic.midi.model.*;
 
-/** @class BoxedInt **/
-class BoxedInt {
-    public int value;
-}
-
 /** @class SheetMusic
  *
  * The SheetMusic Control is the main class for displaying the sheet music.
@@ -64,6 +57,12 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
 
     private ArrayList<Staff> staffs;  /** The array of staffs to display (from top to bottom) */
     private KeySignature mainkey;     /** The main key signature */
+    private LayoutTask layoutTask;    /** Lays out the staffs in the background, or null */
+    private Runnable layoutDone;      /** Run once the background layout is done, or null */
+    private StaffLayout windowLayout; /** Lays out evicted staffs again, or null */
+    private LoadTask loadTask;        /** Lays out evicted staffs in the background, or null */
+    private int      shadeTime;       /** The pulse time last shaded */
+    private boolean  reshade;         /** True if notes at shadeTime were in an evicted staff */
 
     private String   filename;        /** The midi filename */
     private int      numtracks;       /** The number of tracks */
@@ -122,8 +121,42 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
      * - For each track, create a list of MusicSymbols (notes, rests, bars, etc)
      * - Vertically align the music symbols in all the tracks
      * - Partition the music notes into horizontal staffs
+     *
+     * The StaffLayout does these steps a few measures at a time.
+     * Here, all the measures are laid out before returning.
      */
     public void init(MidiFile file, MidiOptions options) {
+        StaffLayout layout = CreateLayout(file, options);
+        layout.Start();
+        while (!layout.isDone()) {
+            layout.LayoutNext();
+        }
+        ShowStaffs(layout, layout.getStaffs(), true);
+    }
+
+    /** Create a new SheetMusic View, like init(), but lay out the staffs
+     *  in a background thread.  The first staffs are shown as soon as
+     *  they are laid out, while the rest of the song is still being laid
+     *  out.  Call cancelLayout() to stop the layout, or finishLayout()
+     *  to run something once it is done.
+     */
+    public void initInBackground(MidiFile file, MidiOptions options) {
+        StaffLayout layout = CreateLayout(file, options);
+        staffs = new ArrayList<Staff>();
+        calculateSize();
+        layoutTask = new LayoutTask(layout);
+        layoutTask.execute();
+    }
+
+    /** Set the options used for drawing, and create the StaffLayout */
+    private StaffLayout CreateLayout(MidiFile file, MidiOptions options) {
+        cancelLayout();
+        windowLayout = null;
+        if (loadTask != null) {
+            loadTask.cancel(false);
+            loadTask = null;
+        }
+        reshade = false;
         if (options == null) {
             options = new MidiOptions(file);
         }
@@ -135,62 +168,106 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
         paint.setTextSize(10.0f);
         paint.setColor(Color.BLACK);
         
-        ArrayList<MidiTrack> tracks = file.ChangeMidiNotes(options);
         // SetNoteSize(options.largeNoteSize);
         scrollVert = options.scrollVert;
         showNoteLetters = options.showNoteLetters;
-        TimeSignature time = file.getTime(); 
-        if (options.time != null) {
-            time = options.time;
+        return new StaffLayout(this, file, options);
+    }
+
+    /** Stop laying out the staffs in the background.  The staffs laid
+     *  out so far are still shown.
+     */
+    public void cancelLayout() {
+        if (layoutTask != null) {
+            layoutTask.cancel(false);
+            layoutTask = null;
         }
-        if (options.key == -1) {
-            mainkey = GetKeySignature(tracks);
+        layoutDone = null;
+    }
+
+    /** Run the given callback on the UI thread once all the staffs are
+     *  laid out and shown.  This is needed before printing or saving the
+     *  pages.  If there is no background layout, run it now.  The UI
+     *  thread doesn't wait for the layout.  If the layout is cancelled,
+     *  the callback is not run.
+     */
+    public void finishLayout(Runnable whenDone) {
+        if (layoutTask == null) {
+            whenDone.run();
         }
         else {
-            mainkey = new KeySignature(options.key);
+            layoutDone = whenDone;
         }
-        numtracks = tracks.size();
+    }
 
-        int lastStart = file.EndTime() + options.shifttime;
+    /** Show the given staffs.  If the view is already drawn, redraw it.
+     *  When scrolling horizontally, the zoom level depends on the height
+     *  of the staffs, so calculate it again once all the staffs are done.
+     */
+    private void ShowStaffs(StaffLayout layout, ArrayList<Staff> list, boolean done) {
+        mainkey = layout.getMainKey();
+        numtracks = layout.getNumTracks();
+        if (layout.isWindowed()) {
+            windowLayout = layout;
+        }
+        staffs = list;
+        calculateSize();
+        if (bufferCanvas == null) {
+            return;
+        }
+        if (done && !scrollVert) {
+            calculateZoom();
+        }
+        checkScrollBounds();
+        drawToBuffer(scrollX, scrollY);
+        callOnDraw();
+    }
 
-        /* Create all the music symbols (notes, rests, vertical bars, and
-         * clef changes).  The symbols variable contains a list of music 
-         * symbols for each track.  The list does not include the left-side 
-         * Clef and key signature symbols.  Those can only be calculated 
-         * when we create the staffs.
-         */
-        ArrayList<ArrayList<MusicSymbol>> allsymbols = 
-          new ArrayList<ArrayList<MusicSymbol> >(numtracks);
+    /** @class LayoutTask
+     * The LayoutTask lays out the staffs in a background thread.  After
+     * each section of measures, the staffs laid out so far are shown.
+     * They are published as an array, since a generic progress type
+     * would make onProgressUpdate() take a generic array.
+     */
+    private class LayoutTask extends AsyncTask<Void, Staff[], ArrayList<Staff>> {
+        private StaffLayout layout;   /** The layout of the staffs */
 
-        for (int tracknum = 0; tracknum < numtracks; tracknum++) {
-            MidiTrack track = tracks.get(tracknum);
-            ClefMeasures clefs = new ClefMeasures(track.getNotes(), time.getMeasure());
-            ArrayList<ChordSymbol> chords = CreateChords(track.getNotes(), mainkey, time, clefs);
-            allsymbols.add(CreateSymbols(chords, clefs, time, lastStart));
+        public LayoutTask(StaffLayout layout) {
+            this.layout = layout;
         }
 
-        ArrayList<ArrayList<LyricSymbol>> lyrics = null;
-        if (options.showLyrics) {
-            lyrics = GetLyrics(tracks);
+        @Override
+        protected ArrayList<Staff> doInBackground(Void... params) {
+            layout.Start();
+            while (!layout.isDone() && !isCancelled()) {
+                layout.LayoutNext();
+                if (!layout.isDone()) {
+                    ArrayList<Staff> list = layout.getStaffs();
+                    publishProgress(list.toArray(new Staff[list.size()]));
+                }
+            }
+            return layout.getStaffs();
         }
 
-        /* Vertically align the music symbols */
-        SymbolWidths widths = new SymbolWidths(allsymbols, lyrics);
-        AlignSymbols(allsymbols, widths);
-
-        staffs = CreateStaffs(allsymbols, mainkey, options, time.getMeasure());
-        CreateAllBeamedChords(allsymbols, time);
-        if (lyrics != null) {
-            AddLyricsToStaffs(staffs, lyrics);
+        @Override
+        protected void onProgressUpdate(Staff[]... values) {
+            if (layoutTask == this) {
+                ShowStaffs(layout, new ArrayList<Staff>(Arrays.asList(values[0])), false);
+            }
         }
 
-        /* After making chord pairs, the stem directions can change,
-         * which affects the staff height.  Re-calculate the staff height.
-         */
-        for (Staff staff : staffs) {
-            staff.CalculateHeight();
+        @Override
+        protected void onPostExecute(ArrayList<Staff> result) {
+            if (layoutTask == this) {
+                layoutTask = null;
+                ShowStaffs(layout, result, true);
+                Runnable done = layoutDone;
+                layoutDone = null;
+                if (done != null) {
+                    done.run();
+                }
+            }
         }
-        zoom = 1.0f;
     }
 
     /** Calculate the size of the sheet music width and height
@@ -248,447 +325,30 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
         }
 
         calculateSize();
-        if (scrollVert) {
-            zoom = (float)((newwidth - 2) * 1.0 / PageWidth);
-        }
-        else {
-            zoom = (float)( (newheight + playerHeight) * 1.0 / sheetheight);
-            if (zoom < 0.75)
-                zoom = 0.75f;
-            if (zoom > 1.1)
-                zoom = 1.1f;
-        }
+        calculateZoom();
         if (bufferCanvas == null) {
             createBufferCanvas();
         }
         callOnDraw();
     }
-    
-
-    /** Get the best key signature given the midi notes in all the tracks. */
-    private KeySignature GetKeySignature(ArrayList<MidiTrack> tracks) {
-        ListInt notenums = new ListInt();
-        for (MidiTrack track : tracks) {
-            for (MidiNote note : track.getNotes()) {
-                notenums.add(note.getNumber());
-            }
-        }
-        return KeySignature.Guess(notenums);
-    }
-
 
-    /** Create the chord symbols for a single track.
-     * @param midinotes  The Midinotes in the track.
-     * @param key        The Key Signature, for determining sharps/flats.
-     * @param time       The Time Signature, for determining the measures.
-     * @param clefs      The clefs to use for each measure.
-     * @ret An array of ChordSymbols
-     */
-    private
-    ArrayList<ChordSymbol> CreateChords(ArrayList<MidiNote> midinotes, 
-                                   KeySignature key,
-                                   TimeSignature time,
-                                   ClefMeasures clefs) {
-
-        int i = 0;
-        ArrayList<ChordSymbol> chords = new ArrayList<ChordSymbol>();
-        ArrayList<MidiNote> notegroup = new ArrayList<MidiNote>(12);
-        int len = midinotes.size(); 
-
-        while (i < len) {
-
-            int starttime = midinotes.get(i).getStartTime();
-            Clef clef = clefs.GetClef(starttime);
-
-            /* Group all the midi notes with the same start time
-             * into the notes list.
-             */
-            notegroup.clear();
-            notegroup.add(midinotes.get(i));
-            i++;
-            while (i < len && midinotes.get(i).getStartTime() == starttime) {
-                notegroup.add(midinotes.get(i));
-                i++;
-            }
-
-            /* Create a single chord from the group of midi notes with
-             * the same start time.
-             */
-            ChordSymbol chord = new ChordSymbol(notegroup, key, time, clef, this);
-            chords.add(chord);
-        }
-
-        return chords;
-    }
-
-    /** Given the chord symbols for a track, create a new symbol list
-     * that contains the chord symbols, vertical bars, rests, and
-     * clef changes.
-     * Return a list of symbols (ChordSymbol, BarSymbol, RestSymbol, ClefSymbol)
-     */
-    private ArrayList<MusicSymbol> 
-    CreateSymbols(ArrayList<ChordSymbol> chords, ClefMeasures clefs,
-                  TimeSignature time, int lastStart) {
-
-        ArrayList<MusicSymbol> symbols = new ArrayList<MusicSymbol>();
-        symbols = AddBars(chords, time, lastStart);
-        symbols = AddRests(symbols, time);
-        symbols = AddClefChanges(symbols, clefs, time);
-
-        return symbols;
-    }
-
-    /** Add in the vertical bars delimiting measures. 
-     *  Also, add the time signature symbols.
-     */
-    private ArrayList<MusicSymbol> 
-    AddBars(ArrayList<ChordSymbol> chords, TimeSignature time, int lastStart) {
-        ArrayList<MusicSymbol> symbols = new ArrayList<MusicSymbol>();
-
-        TimeSigSymbol timesig = new TimeSigSymbol(time.getNumerator(), time.getDenominator());
-        symbols.add(timesig);
-
-        /* The starttime of the beginning of the measure */
-        int measuretime = 0;
-
-        int i = 0;
-        while (i < chords.size()) {
-            if (measuretime <= chords.get(i).getStartTime()) {
-                symbols.add(new BarSymbol(measuretime) );
-                measuretime += time.getMeasure();
-            }
-            else {
-                symbols.add(chords.get(i));
-                i++;
-            }
-        }
-
-        /* Keep adding bars until the last StartTime (the end of the song) */
-        while (measuretime < lastStart) {
-            symbols.add(new BarSymbol(measuretime) );
-            measuretime += time.getMeasure();
-        }
-
-        /* Add the final vertical bar to the last measure */
-        symbols.add(new BarSymbol(measuretime) );
-        return symbols;
-    }
-
-    /** Add rest symbols between notes.  All times below are 
-     * measured in pulses.
-     */
-    private
-    ArrayList<MusicSymbol> AddRests(ArrayList<MusicSymbol> symbols, TimeSignature time) {
-        int prevtime = 0;
-
-        ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>( symbols.size() );
-
-        for (MusicSymbol symbol : symbols) {
-            int starttime = symbol.getStartTime();
-            RestSymbol[] rests = GetRests(time, prevtime, starttime);
-            if (rests != null) {
-                for (RestSymbol r : rests) {
-                    result.add(r);
-                }
-            }
-
-            result.add(symbol);
-
-            /* Set prevtime to the end time of the last note/symbol. */
-            if (symbol instanceof ChordSymbol) {
-                ChordSymbol chord = (ChordSymbol)symbol;
-                prevtime = Math.max( chord.getEndTime(), prevtime );
-            }
-            else {
-                prevtime = Math.max(starttime, prevtime);
-            }
-        }
-        return result;
-    }
-
-    /** Return the rest symbols needed to fill the time interval between
-     * start and end.  If no rests are needed, return nil.
-     */
-    private
-    RestSymbol[] GetRests(TimeSignature time, int start, int end) {
-        RestSymbol[] result;
-        RestSymbol r1, r2;
-
-        if (end - start < 0)
-            return null;
-
-        NoteDuration dur = time.GetNoteDuration(end - start);
-        switch (dur) {
-            case Whole:
-            case Half:
-            case Quarter:
-            case Eighth:
-                r1 = new RestSymbol(start, dur);
-                result = new RestSymbol[]{ r1 };
-                return result;
-
-            case DottedHalf:
-                r1 = new RestSymbol(start, NoteDuration.Half);
-                r2 = new RestSymbol(start + time.getQuarter()*2, 
-                                    NoteDuration.Quarter);
-                result = new RestSymbol[]{ r1, r2 };
-                return result;
-
-            case DottedQuarter:
-                r1 = new RestSymbol(start, NoteDuration.Quarter);
-                r2 = new RestSymbol(start + time.getQuarter(), 
-                                    NoteDuration.Eighth);
-                result = new RestSymbol[]{ r1, r2 };
-                return result; 
-
-            case DottedEighth:
-                r1 = new RestSymbol(start, NoteDuration.Eighth);
-                r2 = new RestSymbol(start + time.getQuarter()/2, 
-                                    NoteDuration.Sixteenth);
-                result = new RestSymbol[]{ r1, r2 };
-                return result;
-
-            default:
-                return null;
-        }
-    }
-
-    /** The current clef is always shown at the beginning of the staff, on
-     * the left side.  However, the clef can also change from measure to 
-     * measure. When it does, a Clef symbol must be shown to indicate the 
-     * change in clef.  This function adds these Clef change symbols.
-     * This function does not add the main Clef Symbol that begins each
-     * staff.  That is done in the Staff() contructor.
-     */
-    private
-    ArrayList<MusicSymbol> AddClefChanges(ArrayList<MusicSymbol> symbols,
-                                     ClefMeasures clefs,
-                                     TimeSignature time) {
-
-        ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>( symbols.size() );
-        Clef prevclef = clefs.GetClef(0);
-        for (MusicSymbol symbol : symbols) {
-            /* A BarSymbol indicates a new measure */
-            if (symbol instanceof BarSymbol) {
-                Clef clef = clefs.GetClef(symbol.getStartTime());
-                if (clef != prevclef) {
-                    result.add(new ClefSymbol(clef, symbol.getStartTime()-1, true));
-                }
-                prevclef = clef;
-            }
-            result.add(symbol);
-        }
-        return result;
-    }
-           
-
-    /** Notes with the same start times in different staffs should be
-     * vertically aligned.  The SymbolWidths class is used to help 
-     * vertically align symbols.
-     *
-     * First, each track should have a symbol for every starttime that
-     * appears in the Midi File.  If a track doesn't have a symbol for a
-     * particular starttime, then add a "blank" symbol for that time.
-     *
-     * Next, make sure the symbols for each start time all have the same
-     * width, across all tracks.  The SymbolWidths class stores
-     * - The symbol width for each starttime, for each track
-     * - The maximum symbol width for a given starttime, across all tracks.
-     *
-     * The method SymbolWidths.GetExtraWidth() returns the extra width
-     * needed for a track to match the maximum symbol width for a given
-     * starttime.
-     */
-    private
-    void AlignSymbols(ArrayList<ArrayList<MusicSymbol>> allsymbols, SymbolWidths widths) {
-
-        for (int track = 0; track < allsymbols.size(); track++) {
-            ArrayList<MusicSymbol> symbols = allsymbols.get(track);
-            ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>();
-
-            int i = 0;
-
-            /* If a track doesn't have a symbol for a starttime,
-             * add a blank symbol.
-             */
-            for (int start : widths.getStartTimes()) {
-
-                /* BarSymbols are not included in the SymbolWidths calculations */
-                while (i < symbols.size() && (symbols.get(i) instanceof BarSymbol) &&
-                    symbols.get(i).getStartTime() <= start) {
-                    result.add(symbols.get(i));
-                    i++;
-                }
-
-                if (i < symbols.size() && symbols.get(i).getStartTime() == start) {
-
-                    while (i < symbols.size() && 
-                           symbols.get(i).getStartTime() == start) {
-
-                        result.add(symbols.get(i));
-                        i++;
-                    }
-                }
-                else {
-                    result.add(new BlankSymbol(start, 0));
-                }
-            }
-
-            /* For each starttime, increase the symbol width by
-             * SymbolWidths.GetExtraWidth().
-             */
-            i = 0;
-            while (i < result.size()) {
-                if (result.get(i) instanceof BarSymbol) {
-                    i++;
-                    continue;
-                }
-                int start = result.get(i).getStartTime();
-                int extra = widths.GetExtraWidth(track, start);
-                int newwidth = result.get(i).getWidth() + extra;
-                result.get(i).setWidth(newwidth);
-
-                /* Skip all remaining symbols with the same starttime. */
-                while (i < result.size() && result.get(i).getStartTime() == start) {
-                    i++;
-                }
-            } 
-            allsymbols.set(track, result);
-        }
-    }
-
-
-    /** Find 2, 3, 4, or 6 chord symbols that occur consecutively (without any
-     *  rests or bars in between).  There can be BlankSymbols in between.
-     *
-     *  The startIndex is the index in the symbols to start looking from.
-     *
-     *  Store the indexes of the consecutive chords in chordIndexes.
-     *  Store the horizontal distance (pixels) between the first and last chord.
-     *  If we failed to find consecutive chords, return false.
+    /** Calculate the zoom level, so that the sheet music page (PageWidth)
+     *  fits within the view width.  When scrolling horizontally, fit the
+     *  staffs within the view height instead.
      */
-    private static boolean
-    FindConsecutiveChords(ArrayList<MusicSymbol> symbols, TimeSignature time,
-                          int startIndex, int[] chordIndexes,
-                          BoxedInt horizDistance) {
-
-        int i = startIndex;
-        int numChords = chordIndexes.length;
-
-        while (true) {
-            horizDistance.value = 0;
-
-            /* Find the starting chord */
-            while (i < symbols.size() - numChords) {
-                if (symbols.get(i) instanceof ChordSymbol) {
-                    ChordSymbol c = (ChordSymbol) symbols.get(i);
-                    if (c.getStem() != null) {
-                        break;
-                    }
-                }
-                i++;
-            }
-            if (i >= symbols.size() - numChords) {
-                chordIndexes[0] = -1;
-                return false;
-            }
-            chordIndexes[0] = i;
-            boolean foundChords = true;
-            for (int chordIndex = 1; chordIndex < numChords; chordIndex++) {
-                i++;
-                int remaining = numChords - 1 - chordIndex;
-                while ((i < symbols.size() - remaining) && 
-                       (symbols.get(i) instanceof BlankSymbol)) {
-
-                    horizDistance.value += symbols.get(i).getWidth();
-                    i++;
-                }
-                if (i >= symbols.size() - remaining) {
-                    return false;
-                }
-                if (!(symbols.get(i) instanceof ChordSymbol)) {
-                    foundChords = false;
-                    break;
-                }
-                chordIndexes[chordIndex] = i;
-                horizDistance.value += symbols.get(i).getWidth();
-            }
-            if (foundChords) {
-                return true;
-            }
-
-            /* Else, start searching again from index i */
+    private void calculateZoom() {
+        if (scrollVert) {
+            zoom = (float)((viewwidth - 2) * 1.0 / PageWidth);
         }
-    }
-
-
-    /** Connect chords of the same duration with a horizontal beam.
-     *  numChords is the number of chords per beam (2, 3, 4, or 6).
-     *  if startBeat is true, the first chord must start on a quarter note beat.
-     */
-    private static void
-    CreateBeamedChords(ArrayList<ArrayList<MusicSymbol>> allsymbols, TimeSignature time,
-                       int numChords, boolean startBeat) {
-        int[] chordIndexes = new int[numChords];
-        ChordSymbol[] chords = new ChordSymbol[numChords];
-
-        for (ArrayList<MusicSymbol> symbols : allsymbols) {
-            int startIndex = 0;
-            while (true) {
-                BoxedInt horizDistance = new BoxedInt();
-                horizDistance.value = 0;
-                boolean found = FindConsecutiveChords(symbols, time,
-                                                   startIndex,
-                                                   chordIndexes,
-                                                   horizDistance);
-                if (!found) {
-                    break;
-                }
-                for (int i = 0; i < numChords; i++) {
-                    chords[i] = (ChordSymbol)symbols.get( chordIndexes[i] );
-                }
-
-                if (ChordSymbol.CanCreateBeam(chords, time, startBeat)) {
-                    ChordSymbol.CreateBeam(chords, horizDistance.value);
-                    startIndex = chordIndexes[numChords-1] + 1;
-                }
-                else {
-                    startIndex = chordIndexes[0] + 1;
-                }
-
-                /* What is the value of startIndex here?
-                 * If we created a beam, we start after the last chord.
-                 * If we failed to create a beam, we start after the first chord.
-                 */
-            }
+        else {
+            zoom = (float)( (viewheight + playerHeight) * 1.0 / sheetheight);
+            if (zoom < 0.75)
+                zoom = 0.75f;
+            if (zoom > 1.1)
+                zoom = 1.1f;
         }
     }
-
-
-    /** Connect chords of the same duration with a horizontal beam.
-     *
-     *  We create beams in the following order:
-     *  - 6 connected 8th note chords, in 3/4, 6/8, or 6/4 time
-     *  - Triplets that start on quarter note beats
-     *  - 3 connected chords that start on quarter note beats (12/8 time only)
-     *  - 4 connected chords that start on quarter note beats (4/4 or 2/4 time only)
-     *  - 2 connected chords that start on quarter note beats
-     *  - 2 connected chords that start on any beat
-     */
-    private static void
-    CreateAllBeamedChords(ArrayList<ArrayList<MusicSymbol>> allsymbols, TimeSignature time) {
-        if ((time.getNumerator() == 3 && time.getDenominator() == 4) ||
-            (time.getNumerator() == 6 && time.getDenominator() == 8) ||
-            (time.getNumerator() == 6 && time.getDenominator() == 4) ) {
-
-            CreateBeamedChords(allsymbols, time, 6, true);
-        }
-        CreateBeamedChords(allsymbols, time, 3, true);
-        CreateBeamedChords(allsymbols, time, 4, true);
-        CreateBeamedChords(allsymbols, time, 2, true);
-        CreateBeamedChords(allsymbols, time, 2, false);
-    }
-
+    
 
     /** Get the width (in pixels) needed to display the key signature */
     public static int
@@ -703,145 +363,6 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
     }
 
 
-    /** Given MusicSymbols for a track, create the staffs for that track.
-     *  Each Staff has a maxmimum width of PageWidth (800 pixels).
-     *  Also, measures should not span multiple Staffs.
-     */
-    private ArrayList<Staff> 
-    CreateStaffsForTrack(ArrayList<MusicSymbol> symbols, int measurelen, 
-                         KeySignature key, MidiOptions options,
-                         int track, int totaltracks) {
-        int keysigWidth = KeySignatureWidth(key);
-        int startindex = 0;
-        ArrayList<Staff> thestaffs = new ArrayList<Staff>(symbols.size() / 50);
-
-        while (startindex < symbols.size()) {
-            /* startindex is the index of the first symbol in the staff.
-             * endindex is the index of the last symbol in the staff.
-             */
-            int endindex = startindex;
-            int width = keysigWidth;
-            int maxwidth;
-
-            /* If we're scrolling vertically, the maximum width is PageWidth. */
-            if (scrollVert) {
-                maxwidth = SheetMusic.PageWidth;
-            }
-            else {
-                maxwidth = 2000000;
-            }
-
-            while (endindex < symbols.size() &&
-                   width + symbols.get(endindex).getWidth() < maxwidth) {
-
-                width += symbols.get(endindex).getWidth();
-                endindex++;
-            }
-            endindex--;
-
-            /* There's 3 possibilities at this point:
-             * 1. We have all the symbols in the track.
-             *    The endindex stays the same.
-             *
-             * 2. We have symbols for less than one measure.
-             *    The endindex stays the same.
-             *
-             * 3. We have symbols for 1 or more measures.
-             *    Since measures cannot span multiple staffs, we must
-             *    make sure endindex does not occur in the middle of a
-             *    measure.  We count backwards until we come to the end
-             *    of a measure.
-             */
-
-            if (endindex == symbols.size() - 1) {
-                /* endindex stays the same */
-            }
-            else if (symbols.get(startindex).getStartTime() / measurelen ==
-                     symbols.get(endindex).getStartTime() / measurelen) {
-                /* endindex stays the same */
-            }
-            else {
-                int endmeasure = symbols.get(endindex+1).getStartTime()/measurelen;
-                while (symbols.get(endindex).getStartTime() / measurelen == 
-                       endmeasure) {
-                    endindex--;
-                }
-            }
-
-            if (scrollVert) {
-                width = SheetMusic.PageWidth;
-            }
-            // int range = endindex + 1 - startindex;
-            ArrayList<MusicSymbol> staffSymbols = new ArrayList<MusicSymbol>();
-            for (int i = startindex; i <= endindex; i++) {
-                staffSymbols.add(symbols.get(i));
-            }
-            Staff staff = new Staff(staffSymbols, key, options, track, totaltracks);
-            thestaffs.add(staff);
-            startindex = endindex + 1;
-        }
-        return thestaffs;
-    }
-
-
-    /** Given all the MusicSymbols for every track, create the staffs
-     * for the sheet music.  There are two parts to this:
-     *
-     * - Get the list of staffs for each track.
-     *   The staffs will be stored in trackstaffs as:
-     *
-     *   trackstaffs[0] = { Staff0, Staff1, Staff2, ... } for track 0
-     *   trackstaffs[1] = { Staff0, Staff1, Staff2, ... } for track 1
-     *   trackstaffs[2] = { Staff0, Staff1, Staff2, ... } for track 2
-     *
-     * - Store the Staffs in the staffs list, but interleave the
-     *   tracks as follows:
-     *
-     *   staffs = { Staff0 for track 0, Staff0 for track1, Staff0 for track2,
-     *              Staff1 for track 0, Staff1 for track1, Staff1 for track2,
-     *              Staff2 for track 0, Staff2 for track1, Staff2 for track2,
-     *              ... } 
-     */
-    private ArrayList<Staff> 
-    CreateStaffs(ArrayList<ArrayList<MusicSymbol>> allsymbols, KeySignature key, 
-                 MidiOptions options, int measurelen) {
-
-        ArrayList<ArrayList<Staff>> trackstaffs = 
-          new ArrayList<ArrayList<Staff>>( allsymbols.size() );
-        int totaltracks = allsymbols.size();
-
-        for (int track = 0; track < totaltracks; track++) {
-            ArrayList<MusicSymbol> symbols = allsymbols.get( track );
-            trackstaffs.add(CreateStaffsForTrack(symbols, measurelen, key, 
-                                                 options, track, totaltracks));
-        }
-
-        /* Update the EndTime of each Staff. EndTime is used for playback */
-        for (ArrayList<Staff> list : trackstaffs) {
-            for (int i = 0; i < list.size()-1; i++) {
-                list.get(i).setEndTime( list.get(i+1).getStartTime() );
-            }
-        }
-
-        /* Interleave the staffs of each track into the result array. */
-        int maxstaffs = 0;
-        for (int i = 0; i < trackstaffs.size(); i++) {
-            if (maxstaffs < trackstaffs.get(i).size()) {
-                maxstaffs = trackstaffs.get(i).size();
-            }
-        }
-        ArrayList<Staff> result = new ArrayList<Staff>(maxstaffs * trackstaffs.size());
-        for (int i = 0; i < maxstaffs; i++) {
-            for (ArrayList<Staff> list : trackstaffs) {
-                if (i < list.size()) {
-                    result.add(list.get(i));
-                }
-            }
-        }
-        return result;
-    }
-
-
     /** Change the note colors for the sheet music, and redraw. 
      *  This is not currently used.
      */
@@ -878,46 +399,6 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
     /** Get the main key signature */
     public KeySignature getMainKey() { return mainkey; }
 
-    /** Get the lyrics for each track */
-    private static ArrayList<ArrayList<LyricSymbol>> 
-    GetLyrics(ArrayList<MidiTrack> tracks) {
-       boolean hasLyrics = false;
-        ArrayList<ArrayList<LyricSymbol>> result = new ArrayList<ArrayList<LyricSymbol>>();
-        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
-            ArrayList<LyricSymbol> lyrics = new ArrayList<LyricSymbol>();
-            result.add(lyrics);
-            MidiTrack track = tracks.get(tracknum);
-            if (track.getLyrics() == null) {
-                continue;
-            }
-            hasLyrics = true;
-            for (MidiEvent ev : track.getLyrics()) {
-                try {
-                    String text = new String(ev.Value, 0, ev.Value.length, "UTF-8");
-                    LyricSymbol sym = new LyricSymbol(ev.StartTime, text);
-                    lyrics.add(sym);
-                }
-                catch (UnsupportedEncodingException e) {}
-            }
-        }
-        if (!hasLyrics) {
-            return null;
-        }
-        else {
-            return result;
-        }
-    }
-
-    /** Add the lyric symbols to the corresponding staffs */
-    static void
-    AddLyricsToStaffs(ArrayList<Staff> staffs, ArrayList<ArrayList<LyricSymbol>> tracklyrics) {
-        for (Staff staff : staffs) {
-            ArrayList<LyricSymbol> lyrics = tracklyrics.get(staff.getTrack());
-            staff.AddLyrics(lyrics);
-        }
-    }
-
-
 
     /** Create a bitmap/canvas to use for double-buffered drawing.
      *  This is needed for shading the notes quickly.
@@ -1032,6 +513,22 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
         paint.setStyle(Paint.Style.STROKE);
         paint.setColor(Color.BLACK);
 
+        // Lay out the staffs in the clip area, if they were evicted
+        if (windowLayout != null) {
+            int first = staffs.size();
+            int last = 0;
+            int ypos = 0;
+            for (int i = 0; i < staffs.size(); i++) {
+                int height = staffs.get(i).getHeight();
+                if (ypos + height >= clip.top && ypos <= clip.bottom) {
+                    first = Math.min(first, i);
+                    last = i + 1;
+                }
+                ypos += height;
+            }
+            LoadStaffsInBackground(first, last);
+        }
+
         // Draw the staffs in the clip area
         int ypos = 0;
         for (Staff staff : staffs) {
@@ -1051,6 +548,108 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
     }
 
 
+    /** When the staffs are windowed, lay out again the symbols of the
+     *  staffs from first to last (exclusive), and evict the symbols of
+     *  the staffs far from them.  This keeps the memory used the same,
+     *  however long the song is.  This is used for drawing the pages,
+     *  which need the symbols now.
+     */
+    private void LoadStaffs(int first, int last) {
+        if (windowLayout == null || first >= last) {
+            return;
+        }
+        if (loadTask != null) {
+            loadTask.cancel(false);
+            loadTask = null;
+        }
+        int keep = last - first;
+        synchronized (windowLayout) {
+            windowLayout.EvictStaffs(first - keep, last + keep);
+            windowLayout.Materialize(first, last);
+        }
+    }
+
+    /** Like LoadStaffs(), but lay out the symbols in a background thread.
+     *  Until then, the evicted staffs are drawn empty.  When the symbols
+     *  are ready, the sheet music is drawn again.  Only one LoadTask runs
+     *  at a time: when it is done, drawing the sheet music starts the
+     *  next one if the staffs shown by then are still evicted.
+     */
+    private void LoadStaffsInBackground(int first, int last) {
+        if (windowLayout == null || first >= last || loadTask != null) {
+            return;
+        }
+        boolean evicted = false;
+        for (int i = first; i < last; i++) {
+            if (staffs.get(i).isEvicted()) {
+                evicted = true;
+            }
+        }
+        if (!evicted) {
+            return;
+        }
+        loadTask = new LoadTask(windowLayout, first, last);
+        loadTask.execute();
+    }
+
+    /** @class LoadTask
+     * The LoadTask evicts the staffs far from the given staffs, and lays
+     * out the symbols of the given staffs again, in a background thread.
+     * The layout lock is held for both, so LoadStaffs() can cancel the
+     * task and be sure that it won't evict the staffs it loads.
+     */
+    private class LoadTask extends AsyncTask<Void, Void, Void> {
+        private StaffLayout layout;  /** The layout of the windowed staffs */
+        private int first;           /** The first staff to lay out */
+        private int last;            /** The index after the last staff to lay out */
+
+        public LoadTask(StaffLayout layout, int first, int last) {
+            this.layout = layout;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            int keep = last - first;
+            synchronized (layout) {
+                if (!isCancelled()) {
+                    layout.EvictStaffs(first - keep, last + keep);
+                    layout.Materialize(first, last);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            if (loadTask != this) {
+                return;
+            }
+            loadTask = null;
+            if (layout != windowLayout || bufferCanvas == null) {
+                return;
+            }
+            drawToBuffer(scrollX, scrollY);
+            callOnDraw();
+            if (reshade) {
+                ShadeNotes(shadeTime, -10, false);
+            }
+        }
+    }
+
+    /** Return the index after the last staff that fits on a page,
+     *  starting with the given staff at the given y pixel.
+     */
+    private int LastStaffOnPage(int staffnum, int ypos) {
+        while (staffnum < staffs.size() &&
+               ypos + staffs.get(staffnum).getHeight() < PageHeight) {
+            ypos += staffs.get(staffnum).getHeight();
+            staffnum++;
+        }
+        return staffnum;
+    }
+
     /** Write the MIDI filename at the top of the page */
     private void DrawTitle(Canvas canvas) {
         int leftmargin = 20;
@@ -1149,6 +748,7 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
             else {
                 ypos = 0;
             }
+            LoadStaffs(staffnum, LastStaffOnPage(staffnum, ypos));
             for (; staffnum + 1 < staffs.size(); staffnum += 2) {
                 int heights = staffs.get(staffnum).getHeight() +
                               staffs.get(staffnum+1).getHeight();
@@ -1188,6 +788,7 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
             else {
                 ypos = 0;
             }
+            LoadStaffs(staffnum, LastStaffOnPage(staffnum, ypos));
             for (; staffnum < staffs.size(); staffnum++) {
                 if (ypos + staffs.get(staffnum).getHeight() >= PageHeight)
                     break;
@@ -1243,7 +844,16 @@ public class SheetMusic extends SurfaceView implements SurfaceHolder.Callback {
         paint.setAntiAlias(true);
         bufferCanvas.scale(zoom, zoom);
         int ypos = 0;
+        shadeTime = currentPulseTime;
+        reshade = false;
         for (Staff staff : staffs) {
+            /* An evicted staff can't be shaded.  Shade the notes
+             * again once the LoadTask has restored it.
+             */
+            if (staff.isEvicted() && staff.getStartTime() <= currentPulseTime &&
+                currentPulseTime <= staff.getEndTime()) {
+                reshade = true;
+            }
             bufferCanvas.translate(0, ypos);
             x_shade = staff.ShadeNotes(bufferCanvas, paint, shade1, 
                             currentPulseTime, prevPulseTime, x_shade);
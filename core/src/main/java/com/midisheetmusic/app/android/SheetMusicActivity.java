@@ -14,6 +14,7 @@ package com.midisheetmusic.app.android;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import android.app.*;
 import android.os.*;
 import android.widget.*;
@@ -24,6 +25,7 @@ import android.content.res.*;
 import android.media.*;
 import com.midisheetmusic.app.guiHelper.ClefSymbol;
 import com.midisheetmusic.midi.model.MidiFile;
+import com.midisheetmusic.midi.model.MidiFileCache;
 import com.midisheetmusic.midi.model.MidiFileException;
 import com.midisheetmusic.midi.model.MidiOptions;
 
@@ -42,6 +44,7 @@ public class SheetMusicActivity extends Activity {
     public static final String MidiDataID = "MidiDataID";
     public static final String MidiTitleID = "MidiTitleID";
     public static final int settingsRequestCode = 1;
+    public static final long parseCacheSize = 4 * 1024 * 1024; /* Max size of the parsed song cache */
     
     private MidiPlayer player;   /* The play/stop/rewind toolbar */
     private Piano piano;         /* The piano at the top */
@@ -50,6 +53,7 @@ public class SheetMusicActivity extends Activity {
     private MidiFile midifile;   /* The midi file to play */
     private MidiOptions options; /* The options for sheet music and sound */
     private long midiCRC;      /* CRC of the midi bytes */
+    private LoadSongTask loadTask; /* Loads the song in the background */
 
      /** Create this SheetMusicActivity.  The Intent should have two parameters:
       * - MidiTitleID: The title of the song (String)
@@ -63,24 +67,24 @@ public class SheetMusicActivity extends Activity {
         TimeSigSymbol.LoadImages(this);
         MidiPlayer.LoadImages(this);
 
-        // Parse the MidiFile from the raw bytes
+        // Load the MidiFile in the background, from the parse cache or
+        // else from the raw bytes.  The sheet music is shown once it's loaded.
         byte[] data = this.getIntent().getByteArrayExtra(MidiDataID);
         String title = this.getIntent().getStringExtra(MidiTitleID);
         this.setTitle("MidiSheetMusic: " + title);
-        try {
-            midifile = new MidiFile(data, title);
-        }
-        catch (MidiFileException e) {
-            this.finish();
-            return;
-        }
+        createView();
+        loadTask = new LoadSongTask(data, title);
+        loadTask.execute();
+    }
 
-        // Initialize the settings (MidiOptions).
-        // If previous settings have been saved, used those
+    /** Show the loaded MidiFile, with the given CRC.
+     *  Initialize the settings (MidiOptions).
+     *  If previous settings have been saved, used those.
+     */
+    private void showSong(MidiFile file, long crc) {
+        midifile = file;
+        midiCRC = crc;
         options = new MidiOptions(midifile);
-        CRC32 crc = new CRC32();
-        crc.update(data); 
-        midiCRC = crc.getValue();
         SharedPreferences settings = getPreferences(0);
         options.scrollVert = settings.getBoolean("scrollVert", false);
         options.shade1Color = settings.getInt("shade1Color", options.shade1Color);
@@ -90,9 +94,68 @@ public class SheetMusicActivity extends Activity {
         if (savedOptions != null) {
             options.merge(savedOptions);
         }
-        createView();
         createSheetMusic(options);
     }
+
+    /** @class LoadSongTask
+     * The LoadSongTask loads the MidiFile in a background thread, from
+     * the parse cache, or else by parsing the raw bytes.  A song that
+     * was parsed is shown first, and then saved to the cache, still in
+     * the background.  If the song can't be parsed, the activity finishes.
+     * The task is cancelled when the activity is destroyed, including
+     * by a configuration change, and then shows nothing.
+     */
+    private class LoadSongTask extends AsyncTask<Void, MidiFile, MidiFile> {
+        private byte[] data;   /** The raw midi data */
+        private String title;  /** The title of the song */
+        private long crc;      /** The CRC of the midi data */
+
+        public LoadSongTask(byte[] data, String title) {
+            this.data = data;
+            this.title = title;
+        }
+
+        @Override
+        protected MidiFile doInBackground(Void... params) {
+            CRC32 checksum = new CRC32();
+            checksum.update(data);
+            crc = checksum.getValue();
+            MidiFileCache cache = new MidiFileCache(new File(getCacheDir(), "songs"), parseCacheSize);
+            MidiFile file = cache.Load(crc, ByteBuffer.wrap(data), title);
+            if (file != null) {
+                return file;
+            }
+            try {
+                file = new MidiFile(data, title);
+            }
+            catch (MidiFileException e) {
+                return null;
+            }
+            publishProgress(file);
+            cache.Save(crc, file);
+            return file;
+        }
+
+        @Override
+        protected void onProgressUpdate(MidiFile... values) {
+            if (!isCancelled() && !isFinishing()) {
+                showSong(values[0], crc);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(MidiFile result) {
+            if (isCancelled()) {
+                return;
+            }
+            else if (result == null) {
+                finish();
+            }
+            else if (midifile == null && !isFinishing()) {
+                showSong(result, crc);
+            }
+        }
+    }
     
     /* Create the MidiPlayer and Piano views */
     void createView() {
@@ -111,6 +174,7 @@ public class SheetMusicActivity extends Activity {
     private void 
     createSheetMusic(MidiOptions options) {
         if (sheet != null) {
+            sheet.cancelLayout();
             layout.removeView(sheet);
         }
         if (!options.showPiano) {
@@ -120,7 +184,7 @@ public class SheetMusicActivity extends Activity {
             piano.setVisibility(View.VISIBLE);
         }
         sheet = new SheetMusic(this);
-        sheet.init(midifile, options);
+        sheet.initInBackground(midifile, options);
         sheet.setPlayer(player);
         layout.addView(sheet);
         piano.SetMidiFile(midifile, options, player);
@@ -188,6 +252,9 @@ public class SheetMusicActivity extends Activity {
      *  method will be called.
      */
     private void changeSettings() {
+        if (midifile == null) {
+            return;
+        }
         MidiOptions defaultOptions = new MidiOptions(midifile);
         Intent intent = new Intent(this, SettingsActivity.class);
         intent.putExtra(SettingsActivity.settingsID, options);
@@ -198,6 +265,9 @@ public class SheetMusicActivity extends Activity {
 
     /* Show the "Save As Images" dialog */
     private void showSaveImagesDialog() {
+         if (midifile == null) {
+             return;
+         }
          LayoutInflater inflator = LayoutInflater.from(this);
          final View dialogView= inflator.inflate(R.layout.save_images_dialog, null);
          final EditText filenameView = (EditText)dialogView.findViewById(R.id.save_images_filename);
@@ -219,11 +289,13 @@ public class SheetMusicActivity extends Activity {
     }
 
 
-    /* Save the current sheet music as PNG images. */
+    /* Save the current sheet music as PNG images, once all the staffs
+     * are laid out.
+     */
     private void saveAsImages(String name) {
-        String filename = name;
+        String encoded = name;
         try {
-            filename = URLEncoder.encode(name, "utf-8");
+            encoded = URLEncoder.encode(name, "utf-8");
         }
         catch (UnsupportedEncodingException e) {
         }
@@ -231,6 +303,16 @@ public class SheetMusicActivity extends Activity {
             options.scrollVert = true;
             createSheetMusic(options);
         }
+        final String filename = encoded;
+        sheet.finishLayout(new Runnable() {
+            public void run() {
+                savePages(filename);
+            }
+        });
+    }
+
+    /* Save the pages of the sheet music as PNG images */
+    private void savePages(String filename) {
         try {
             int numpages = sheet.GetTotalPages();
             for (int page = 1; page <= numpages; page++) {
@@ -327,5 +409,14 @@ public class SheetMusicActivity extends Activity {
         }
         super.onPause();
     } 
+
+    /** When this activity is destroyed, stop loading the song */
+    @Override
+    protected void onDestroy() {
+        if (loadTask != null) {
+            loadTask.cancel(false);
+        }
+        super.onDestroy();
+    }
 }
 
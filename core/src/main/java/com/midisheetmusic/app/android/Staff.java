@@ -38,8 +38,9 @@ import com.midisheetmusic.midi.model.MidiOptions;
  */
 
 public class Staff {
-    private ArrayList<MusicSymbol> symbols;  /** The music symbols in this staff */
-    private ArrayList<LyricSymbol> lyrics;   /** The lyrics to display (can be null) */
+    private volatile ArrayList<MusicSymbol> symbols;  /** The music symbols in this staff,
+                                                       *  or null if evicted */
+    private volatile ArrayList<LyricSymbol> lyrics;   /** The lyrics to display (can be null) */
     private int ytop;                   /** The y pixel of the top of the staff */
     private ClefSymbol clefsym;         /** The left-side Clef symbol */
     private AccidSymbol[] keys;         /** The key signature symbols */
@@ -81,7 +82,7 @@ public class Staff {
         CalculateWidth(options.scrollVert);
         CalculateHeight();
         CalculateStartEndTime();
-        FullJustify();
+        Justify(symbols);
     }
 
     /** Return the width of the staff */
@@ -106,6 +107,33 @@ public class Staff {
     public int getEndTime() { return endtime; }
     public void setEndTime(int value) { endtime = value; }
 
+    /** Remove the symbols and lyrics of this staff, to save memory.
+     *  The size and the start/end times of the staff are kept.
+     *  Until Restore() is called, Draw() only draws the empty staff.
+     *
+     *  A staff may be evicted and restored by a background thread while
+     *  it is drawn, so Draw() and ShadeNotes() read the symbols once, and
+     *  Restore() only sets them when they are ready to be drawn.
+     */
+    public void Evict() {
+        symbols = null;
+        lyrics = null;
+    }
+
+    /** Return true if the symbols of this staff were evicted */
+    public boolean isEvicted() { return symbols == null; }
+
+    /** Put back the symbols of an evicted staff.  The symbols must be
+     *  the same as the ones the staff was created with, already
+     *  justified with Justify() and connected with beams.  The lyrics
+     *  of the staff are placed again.  The size of the staff doesn't
+     *  change.
+     */
+    public void Restore(ArrayList<MusicSymbol> list, ArrayList<LyricSymbol> tracklyrics) {
+        lyrics = FindLyrics(list, tracklyrics);
+        symbols = list;
+    }
+
     /** Find the initial clef to use for this staff.  Use the clef of
      * the first ChordSymbol.
      */
@@ -179,8 +207,12 @@ public class Staff {
     }
 
 
-    /** Full-Justify the symbols, so that they expand to fill the whole staff. */
-    private void FullJustify() {
+    /** Full-Justify the given symbols, so that they expand to fill the
+     *  whole staff.  The constructor justifies the symbols of the staff.
+     *  When the symbols of the staff are laid out again, the new symbols
+     *  are justified the same way before they are beamed.
+     */
+    public void Justify(ArrayList<MusicSymbol> symbols) {
         if (width != SheetMusic.PageWidth)
             return;
 
@@ -223,7 +255,19 @@ public class Staff {
         if (tracklyrics == null || tracklyrics.size() == 0) {
             return;
         }
-        lyrics = new ArrayList<LyricSymbol>();
+        lyrics = FindLyrics(symbols, tracklyrics);
+    }
+
+    /** Return the lyric symbols of the track that occur within this
+     *  staff, with the given symbols, or null if there are none.
+     *  Set the x-position of the lyric symbols.
+     */
+    private ArrayList<LyricSymbol>
+    FindLyrics(ArrayList<MusicSymbol> symbols, ArrayList<LyricSymbol> tracklyrics) {
+        if (tracklyrics == null || tracklyrics.size() == 0) {
+            return null;
+        }
+        ArrayList<LyricSymbol> lyrics = new ArrayList<LyricSymbol>();
         int xpos = 0;
         int symbolindex = 0;
         for (LyricSymbol lyric : tracklyrics) {
@@ -247,12 +291,13 @@ public class Staff {
             lyrics.add(lyric);
         }
         if (lyrics.size() == 0) {
-            lyrics = null;
+            return null;
         }
+        return lyrics;
     }
 
     /** Draw the lyrics */
-    private void DrawLyrics(Canvas canvas, Paint paint) {
+    private void DrawLyrics(Canvas canvas, Paint paint, ArrayList<LyricSymbol> lyrics) {
         /* Skip the left side Clef symbol and key signature */
         int xpos = keysigWidth;
         int ypos = height - SheetMusic.NoteHeight * 3/2;
@@ -267,7 +312,7 @@ public class Staff {
 
 
     /** Draw the measure numbers for each measure */
-    private void DrawMeasureNumbers(Canvas canvas, Paint paint) {
+    private void DrawMeasureNumbers(Canvas canvas, Paint paint, ArrayList<MusicSymbol> symbols) {
         /* Skip the left side Clef symbol and key signature */
         int xpos = keysigWidth;
         int ypos = height - SheetMusic.NoteHeight;
@@ -325,8 +370,13 @@ public class Staff {
 
     }
 
-    /** Draw this staff. Only draw the symbols inside the clip area */
+    /** Draw this staff. Only draw the symbols inside the clip area.
+     *  If the symbols are evicted, draw the clef, key signature and
+     *  lines only, until the symbols are restored.
+     */
     public void Draw(Canvas canvas, Rect clip, Paint paint) {
+        ArrayList<MusicSymbol> symbols = this.symbols;
+        ArrayList<LyricSymbol> lyrics = this.lyrics;
         paint.setColor(Color.BLACK);
         int xpos = SheetMusic.LeftMargin + 5;
 
@@ -350,23 +400,25 @@ public class Staff {
          *
          * For fast performance, only draw symbols that are in the clip area.
          */
-        for (MusicSymbol s : symbols) {
-            if ((xpos <= clip.left + clip.width() + 50) && (xpos + s.getWidth() + 50 >= clip.left)) {
-                canvas.translate(xpos, 0);
-                s.Draw(canvas, paint, ytop);
-                canvas.translate(-xpos, 0);
+        if (symbols != null) {
+            for (MusicSymbol s : symbols) {
+                if ((xpos <= clip.left + clip.width() + 50) && (xpos + s.getWidth() + 50 >= clip.left)) {
+                    canvas.translate(xpos, 0);
+                    s.Draw(canvas, paint, ytop);
+                    canvas.translate(-xpos, 0);
+                }
+                xpos += s.getWidth();
             }
-            xpos += s.getWidth();
         }
         paint.setColor(Color.BLACK);
         DrawHorizLines(canvas, paint);
         DrawEndLines(canvas, paint);
 
-        if (showMeasures) {
-            DrawMeasureNumbers(canvas, paint);
+        if (showMeasures && symbols != null) {
+            DrawMeasureNumbers(canvas, paint, symbols);
         }
         if (lyrics != null) {
-            DrawLyrics(canvas, paint);
+            DrawLyrics(canvas, paint, lyrics);
         }
 
     }
@@ -375,11 +427,19 @@ public class Staff {
     /** Shade all the chords played in the given time.
      *  Un-shade any chords shaded in the previous pulse time.
      *  Store the x coordinate location where the shade was drawn.
+     *  If the symbols are evicted, nothing is shaded: the SheetMusic
+     *  shades the notes again once the symbols are restored.
      */
     public int ShadeNotes(Canvas canvas, Paint paint, int shade,
                            int currentPulseTime, int prevPulseTime, int x_shade) {
 
+        ArrayList<MusicSymbol> symbols = this.symbols;
+        ArrayList<LyricSymbol> lyrics = this.lyrics;
+
         /* If there's nothing to unshade, or shade, return */
+        if (symbols == null) {
+            return x_shade;
+        }
         if ((starttime > prevPulseTime || endtime < prevPulseTime) &&
             (starttime > currentPulseTime || endtime < currentPulseTime)) {
             return x_shade;
@@ -485,10 +545,10 @@ public class Staff {
                     canvas.translate(-prev_xpos, 0);
                 }
                 if (showMeasures) {
-                    DrawMeasureNumbers(canvas, paint);
+                    DrawMeasureNumbers(canvas, paint, symbols);
                 }
                 if (lyrics != null) {
-                    DrawLyrics(canvas, paint);
+                    DrawLyrics(canvas, paint, lyrics);
                 }
             }
             if (curr instanceof ChordSymbol) {
@@ -514,8 +574,16 @@ public class Staff {
         for (MusicSymbol s : keys) {
             result += "    " + s.toString() + "\n";
         }
-        for (MusicSymbol m : symbols) {
-            result += "    " + m.toString() + "\n";
+        if (symbols != null) {
+            for (MusicSymbol m : symbols) {
+                result += "    " + m.toString() + "\n";
+            }
+        }
+        if (lyrics != null) {
+            result += "  Lyrics:\n";
+            for (LyricSymbol lyric : lyrics) {
+                result += "    " + lyric.toString() + "\n";
+            }
         }
         result += "End Staff\n";
         return result;
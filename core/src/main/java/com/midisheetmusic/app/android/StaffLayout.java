@@ -0,0 +1,1538 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+package com.midisheetmusic.app.android;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import com.midisheetmusic.app.guiHelper.ClefSymbol;
+import com.midisheetmusic.core.model.*;
+import com.midisheetmusic.helper.ListInt;
+import com.midisheetmusic.helper.WorkerPool;
+import com.midisheetmusic.midi.model.*;
+
+/** @class BoxedInt **/
+class BoxedInt {
+    public int value;
+}
+
+/** @class StaffLayout
+ * The StaffLayout creates the staffs of the sheet music a few measures
+ * at a time, so that the first staffs can be shown before the rest of
+ * the song is laid out.
+ *
+ * Start() applies the menu options to the midi file, and calculates the
+ * key signature and the clefs of each track.  Each call to LayoutNext()
+ * then lays out the next section of measures:
+ * - For each track, create the chords, bars, rests and clef changes
+ *   in the section.  The tracks are independent here, so this runs a
+ *   task per track on the WorkerPool.  When there are fewer tracks than
+ *   worker threads, each track is also split into chunks of measures,
+ *   with a task per chunk, and the chunks are joined in order.
+ * - Vertically align the symbols of all the tracks.
+ * - Add the symbols to the staffs of each track.
+ * - Connect the chords with beams, and finish the staffs that are full.
+ *
+ * The result is the same as laying out the whole song at once.  What is
+ * carried from one section to the next is:
+ * - The keymap of each track, for the accidentals.  Each track has its
+ *   own KeySignature for this.
+ * - The end time of the last chord, for the rests.
+ * - The symbols that are not yet aligned, beamed or put in a staff.
+ *
+ * The sections start small, so the first staffs are ready quickly, and
+ * double in size up to MaxSection measures.
+ *
+ * getStaffs() returns the staffs that are complete, interleaved by track.
+ * When scrolling horizontally, a track usually has a single staff, which
+ * is only complete at the end of the song.  So while the layout is not
+ * done, getStaffs() also returns a temporary staff for each track, with
+ * the symbols laid out so far.
+ *
+ * Long songs that scroll vertically are windowed.  The staffs keep
+ * their size and start/end time, but their symbols are evicted when
+ * they are added to getStaffs(), unless they are in the window of
+ * staffs the view last asked for (the first page, until it asks), and
+ * the symbols of the track are dropped as they are put in staffs.
+ * For each measure of each track, the layout keeps
+ * the index of the bar that starts the measure, and the end time of
+ * the previous symbol.  From those, Materialize() lays out the symbols
+ * of a few staffs again, starting from the bar before them, when the
+ * staffs need to be drawn.  The SheetMusic calls EvictStaffs() and
+ * Materialize() from a background thread, and draws the evicted staffs
+ * empty until then.  When scrolling horizontally, a track usually has a
+ * single staff, which is never evicted, so those songs are not windowed.
+ */
+public class StaffLayout {
+    public static final int FirstSection = 2;  /** Measures in the first section */
+    public static final int MaxSection = 32;   /** Maximum measures in a section */
+    public static final int WindowedMeasures = 200;  /** Measures in a song that is windowed */
+
+    /** The number of symbols that must follow a bar before the chords
+     *  up to that bar are beamed.  CreateBeamedChords() treats the last
+     *  few symbols of a track differently.
+     */
+    private static final int BeamLookahead = 6;
+
+    /** The minimum number of measures in a chunk of a track, when the
+     *  symbols of a section are created in parallel.
+     */
+    private static final int ChunkMeasures = 4;
+
+    /** @class TrackLayout
+     * The layout state of a single track.  The symbol indexes (base,
+     * beamed, staffstart, staffends and barindex) count the aligned
+     * symbols from the start of the song.
+     */
+    private static class TrackLayout {
+        int tracknum;                   /** The track number */
+        NoteTable notes;                /** The notes of the track */
+        int notepos;                    /** The next note to create a chord for */
+        ClefMeasures clefs;             /** The clef of each measure */
+        KeySignature startkey;          /** The keymap at the start of the song */
+        KeySignature key;               /** The keymap for the accidentals */
+        int lastbar;                    /** The start time of the last bar */
+        int prevtime;                   /** The end time of the previous symbol (for rests) */
+        ListInt barindex;               /** The index of the bar starting each measure, or null */
+        ListInt barprevtime;            /** The prevtime at the bar starting each measure, or null */
+        int barfirst;                   /** The measure of barprevtime[0] */
+        ArrayList<MusicSymbol> pending; /** Symbols not aligned yet */
+        ArrayList<MusicSymbol> symbols; /** The aligned symbols, from index base */
+        int base;                       /** The index of symbols[0] */
+        int beamed;                     /** The symbols before index beamed are beamed */
+        int staffstart;                 /** The index of the first symbol not in a staff */
+        ArrayList<Staff> staffs;        /** The staffs of the track */
+        ListInt staffends;              /** The index after the last symbol of each staff */
+        int finished;                   /** staffs[0:finished] are complete */
+        ArrayList<LyricSymbol> lyrics;  /** The lyrics of the track, or null */
+        int lyricpos;                   /** The next lyric to align */
+        Staff temp;                     /** The temporary staff, or null */
+        int tempstart;                  /** The first symbol of the temporary staff */
+        int tempend;                    /** The index after the last symbol of the temporary staff */
+    }
+
+    private SheetMusic sheet;          /** The sheet music, used by the chord symbols */
+    private MidiFile file;             /** The midi file */
+    private MidiOptions options;       /** The sheet music options */
+    private TimeSignature time;        /** The time signature */
+    private KeySignature mainkey;      /** The main key signature */
+    private int measurelen;            /** The length of a measure, in pulses */
+    private int keysigWidth;           /** The width of the clef and key signature */
+    private TrackLayout[] layouts;     /** The layout of each track */
+    private boolean showLyrics;        /** True if the lyrics are shown */
+    private int lastmeasure;           /** The measure of the last bar, in all tracks */
+    private int nextmeasure;           /** The first measure of the next section */
+    private int sectionsize;           /** The number of measures in the next section */
+    private ArrayList<Staff> staffs;   /** The complete staffs, interleaved by track */
+    private ListInt staffrows;         /** The row of each staff in staffs */
+    private int rows;                  /** The number of staffs per track in staffs */
+    private boolean done;              /** True if the whole song is laid out */
+    private boolean windowed;          /** True if the staff symbols are evicted */
+    private int threads;               /** The worker threads to split the tracks for */
+    private int windowedMeasures;      /** Measures in a song that is windowed */
+    private int keepFirst;             /** The first staff in the window that keeps its symbols */
+    private int keepLast;              /** The staff after the window, or -1 for the first page */
+    private int staffsHeight;          /** The total height of the staffs, in pixels */
+
+
+    /** Create a new layout of the given midi file, with the given options.
+     *  The sheet music must already have the options that the chord
+     *  symbols use (like showNoteLetters).
+     */
+    public StaffLayout(SheetMusic sheet, MidiFile file, MidiOptions options) {
+        this.sheet = sheet;
+        this.file = file;
+        this.options = options;
+        threads = WorkerPool.isParallel() ? WorkerPool.getThreads() : 1;
+        windowedMeasures = WindowedMeasures;
+    }
+
+    /** Split the tracks into chunks as if there were the given number
+     *  of worker threads.  The tests use this to lay out the chunks on
+     *  a single processor.  Call before Start().
+     */
+    void setThreads(int threads) { this.threads = threads; }
+
+    /** Window the songs with at least the given number of measures,
+     *  instead of WindowedMeasures.  The tests use this to window the
+     *  short songs.  Call before Start().
+     */
+    void setWindowedMeasures(int measures) { windowedMeasures = measures; }
+
+    /** Apply the options to the midi notes, and get the key signature,
+     *  the clefs and the lyrics of each track.
+     */
+    public synchronized void Start() {
+        ArrayList<MidiTrack> tracks = file.ChangeMidiNotes(options);
+        time = file.getTime();
+        if (options.time != null) {
+            time = options.time;
+        }
+        if (options.key == -1) {
+            mainkey = GetKeySignature(tracks);
+        }
+        else {
+            mainkey = new KeySignature(options.key);
+        }
+        measurelen = time.getMeasure();
+        keysigWidth = SheetMusic.KeySignatureWidth(mainkey);
+
+        ArrayList<ArrayList<LyricSymbol>> lyrics = null;
+        if (options.showLyrics) {
+            lyrics = GetLyrics(tracks);
+        }
+        showLyrics = (lyrics != null);
+
+        int lastStart = file.EndTime() + options.shifttime;
+
+        /* The tracks are laid out together, section by section.  The
+         * accidentals must be the same as when laying out the tracks
+         * one after the other, so each track starts with the keymap
+         * left by the previous track.
+         */
+        KeySignature key = mainkey;
+        layouts = new TrackLayout[tracks.size()];
+        lastmeasure = 0;
+        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+            TrackLayout track = new TrackLayout();
+            track.tracknum = tracknum;
+            track.notes = tracks.get(tracknum).readTable();
+            track.startkey = key.Clone();
+            track.key = key.Clone();
+            key = key.Skip(track.notes, 0, track.notes.size(), measurelen);
+            track.lastbar = LastBar(track.notes, lastStart);
+            track.pending = new ArrayList<MusicSymbol>();
+            track.symbols = new ArrayList<MusicSymbol>();
+            track.staffs = new ArrayList<Staff>();
+            track.staffends = new ListInt();
+            if (showLyrics) {
+                track.lyrics = lyrics.get(tracknum);
+            }
+            layouts[tracknum] = track;
+            lastmeasure = Math.max(lastmeasure, track.lastbar / measurelen);
+        }
+        CreateClefs(layouts);
+
+        windowed = options.scrollVert && lastmeasure >= windowedMeasures;
+        if (windowed) {
+            for (TrackLayout track : layouts) {
+                track.barindex = new ListInt();
+                track.barprevtime = new ListInt();
+            }
+        }
+
+        nextmeasure = 0;
+        sectionsize = FirstSection;
+        staffs = new ArrayList<Staff>();
+        staffrows = new ListInt();
+        rows = 0;
+        done = false;
+        keepFirst = 0;
+        keepLast = -1;
+        staffsHeight = 0;
+    }
+
+    /** Return true if the whole song is laid out */
+    public synchronized boolean isDone() { return done; }
+
+    /** Return true if the staffs are windowed.  The staffs returned by
+     *  getStaffs() may then be evicted, and Materialize() must be called
+     *  before drawing them.
+     */
+    public boolean isWindowed() { return windowed; }
+
+    /** Return the main key signature */
+    public KeySignature getMainKey() { return mainkey; }
+
+    /** Return the number of tracks */
+    public int getNumTracks() { return layouts.length; }
+
+    /** Lay out the next section of measures. */
+    public synchronized void LayoutNext() {
+        if (done) {
+            return;
+        }
+        int startmeasure = nextmeasure;
+        int endmeasure = startmeasure + sectionsize;
+        boolean last = (endmeasure > lastmeasure);
+        LayoutSection(layouts, startmeasure, endmeasure, last);
+
+        for (TrackLayout track : layouts) {
+            CreateStaffs(track, last);
+            CreateBeams(track, last);
+            FinishStaffs(track);
+            if (windowed) {
+                TrimSymbols(track);
+            }
+        }
+
+        nextmeasure = endmeasure;
+        sectionsize = Math.min(sectionsize * 2, MaxSection);
+        done = last;
+        AddRows();
+    }
+
+    /** Return the staffs laid out so far, from top to bottom.  The list
+     *  is a copy, and the staffs in it are not changed by later calls to
+     *  LayoutNext().
+     */
+    public synchronized ArrayList<Staff> getStaffs() {
+        ArrayList<Staff> result = new ArrayList<Staff>(staffs);
+        if (done || options.scrollVert) {
+            return result;
+        }
+        for (TrackLayout track : layouts) {
+            Staff staff = GetTempStaff(track);
+            if (staff != null) {
+                result.add(staff);
+            }
+        }
+        return result;
+    }
+
+
+    /** Create the symbols of the measures from startmeasure to endmeasure
+     *  (or to the end of the song, if last is true), and align them.
+     *  The aligned symbols are added to the symbols of each track.
+     */
+    private void LayoutSection(TrackLayout[] tracks, int startmeasure,
+                               int endmeasure, boolean last) {
+        int endtime = endmeasure * measurelen;
+        int chunksize = ChunkSize(tracks.length, endmeasure - startmeasure);
+
+        /* Each task only changes the state of its own track, or of its
+         * own chunk of a track.  A track is split at the bars where a
+         * chunk is full, up to the last bar of the track.
+         */
+        ArrayList<Callable<ArrayList<MusicSymbol>>> tasks =
+          new ArrayList<Callable<ArrayList<MusicSymbol>>>(tracks.length);
+        ArrayList<TrackLayout> chunks = new ArrayList<TrackLayout>(tracks.length);
+        int[] numchunks = new int[tracks.length];
+        for (int t = 0; t < tracks.length; t++) {
+            TrackLayout track = tracks[t];
+            int measure = startmeasure;
+            int split = measure + chunksize;
+            if (split >= endmeasure || split * measurelen > track.lastbar) {
+                tasks.add(SectionTask(track, null, measure, endmeasure, last));
+                chunks.add(null);
+                numchunks[t] = 1;
+                continue;
+            }
+            while (true) {
+                boolean lastchunk = (split >= endmeasure || split * measurelen > track.lastbar);
+                int end = lastchunk ? endmeasure : split;
+                TrackLayout chunk = new TrackLayout();
+                if (measure == startmeasure) {
+                    StartChunk(chunk, track, measure, true);
+                }
+                tasks.add(SectionTask(track, chunk, measure, end, last && lastchunk));
+                chunks.add(chunk);
+                numchunks[t]++;
+                if (lastchunk) {
+                    break;
+                }
+                measure = split;
+                split += chunksize;
+            }
+        }
+        ArrayList<ArrayList<MusicSymbol>> results = WorkerPool.RunAll(tasks);
+
+        /* Join the chunks of each track, in order */
+        ArrayList<ArrayList<MusicSymbol>> section =
+          new ArrayList<ArrayList<MusicSymbol>>(tracks.length);
+        int pos = 0;
+        for (int t = 0; t < tracks.length; t++) {
+            ArrayList<MusicSymbol> symbols = results.get(pos);
+            if (chunks.get(pos) != null) {
+                symbols = new ArrayList<MusicSymbol>();
+                for (int i = pos; i < pos + numchunks[t]; i++) {
+                    symbols.addAll(results.get(i));
+                    JoinChunk(tracks[t], chunks.get(i));
+                }
+            }
+            section.add(symbols);
+            pos += numchunks[t];
+        }
+        AlignSymbols(tracks, section, GetLyrics(tracks, endtime, last));
+    }
+
+    /** Return a task that creates the symbols of a track, from the bar
+     *  at startmeasure to the bar at endmeasure (or to the end of the
+     *  song, if last is true).  If chunk is not null, the symbols are
+     *  created with the state of the chunk instead, and the track is
+     *  not changed.  Only the first chunk of a section has a state
+     *  already.  The others start at a later bar of the track, and get
+     *  their state in the task.
+     */
+    private Callable<ArrayList<MusicSymbol>>
+    SectionTask(final TrackLayout track, final TrackLayout chunk,
+                final int startmeasure, final int endmeasure, final boolean last) {
+        return new Callable<ArrayList<MusicSymbol>>() {
+            public ArrayList<MusicSymbol> call() {
+                TrackLayout layout = track;
+                if (chunk != null) {
+                    if (chunk.notes == null) {
+                        StartChunk(chunk, track, startmeasure, false);
+                    }
+                    layout = chunk;
+                }
+                int starttime = startmeasure * measurelen;
+                int endtime = endmeasure * measurelen;
+                ArrayList<ChordSymbol> chords = CreateChords(layout, endtime, last);
+                return CreateSymbols(layout, chords, starttime, endtime, last);
+            }
+        };
+    }
+
+    /** Return the number of measures in each chunk of a track, when
+     *  creating the symbols of a section.  There are enough chunks to
+     *  give each worker thread a task, but a chunk has at least
+     *  ChunkMeasures measures.  If the section is not split, return
+     *  the number of measures in the section.
+     */
+    private int ChunkSize(int numtracks, int measures) {
+        int chunks = 1;
+        if (threads > 1 && numtracks > 0) {
+            chunks = threads / numtracks;
+        }
+        chunks = Math.max(1, Math.min(chunks, measures / ChunkMeasures));
+        return (measures + chunks - 1) / chunks;
+    }
+
+    /** Set the chunk to the layout state of the track at the bar that
+     *  starts the given measure.  The track is in its state at the start
+     *  of the section (where the first chunk starts), and is not changed.
+     *
+     *  The state at a later bar is the one the chunks before it leave:
+     *  the keymap is replayed from the notes before the bar (only the
+     *  last measure of them matters), and the end time of the previous
+     *  symbol is the latest of the bar and the end times of those notes.
+     *  The bar itself is the last symbol of the chunk before, so its
+     *  prevtime is recorded there, and this chunk records the bars after
+     *  it.  The clef of each measure is already known from the clefs.
+     */
+    private void StartChunk(TrackLayout chunk, TrackLayout track,
+                            int measure, boolean first) {
+        chunk.tracknum = track.tracknum;
+        chunk.notes = track.notes;
+        chunk.clefs = track.clefs;
+        chunk.lastbar = track.lastbar;
+        chunk.notepos = track.notepos;
+        chunk.prevtime = track.prevtime;
+        if (track.barprevtime != null) {
+            chunk.barprevtime = new ListInt();
+            chunk.barfirst = track.barfirst + track.barprevtime.size();
+        }
+        if (!first) {
+            int starttime = measure * measurelen;
+            chunk.notepos = Math.max(track.notepos, FirstNote(track.notes, starttime));
+            chunk.prevtime = Math.max(chunk.prevtime, starttime);
+            for (int i = track.notepos; i < chunk.notepos; i++) {
+                chunk.prevtime = Math.max(chunk.prevtime, track.notes.getEndTime(i));
+            }
+            chunk.barfirst = measure + 1;
+        }
+        chunk.key = track.key.Skip(track.notes, track.notepos, chunk.notepos, measurelen);
+    }
+
+    /** Update the state of the track with the state left by the chunk.
+     *  The chunks of a track are joined in order.
+     */
+    private static void JoinChunk(TrackLayout track, TrackLayout chunk) {
+        track.notepos = chunk.notepos;
+        track.key = chunk.key;
+        track.prevtime = chunk.prevtime;
+        if (chunk.barprevtime != null &&
+            chunk.barfirst == track.barfirst + track.barprevtime.size()) {
+            for (int i = 0; i < chunk.barprevtime.size(); i++) {
+                track.barprevtime.add(chunk.barprevtime.get(i));
+            }
+        }
+    }
+
+    /** Calculate the clef of each measure, for each track, in parallel */
+    private void CreateClefs(TrackLayout[] tracks) {
+        ArrayList<Callable<ClefMeasures>> tasks =
+          new ArrayList<Callable<ClefMeasures>>(tracks.length);
+        for (final TrackLayout track : tracks) {
+            tasks.add(new Callable<ClefMeasures>() {
+                public ClefMeasures call() {
+                    return new ClefMeasures(track.notes, measurelen);
+                }
+            });
+        }
+        ArrayList<ClefMeasures> clefs = WorkerPool.RunAll(tasks);
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i].clefs = clefs.get(i);
+        }
+    }
+
+
+    /** Get the best key signature given the midi notes in all the tracks. */
+    private static KeySignature GetKeySignature(ArrayList<MidiTrack> tracks) {
+        ListInt notenums = new ListInt();
+        for (MidiTrack track : tracks) {
+            NoteTable notes = track.readTable();
+            for (int i = 0; i < notes.size(); i++) {
+                notenums.add(notes.getNumber(i));
+            }
+        }
+        return KeySignature.Guess(notenums);
+    }
+
+    /** Return the start time of the last vertical bar of a track.
+     *  There is a bar after the last note, and the bars continue until
+     *  the last start time of the song.
+     */
+    private int LastBar(NoteTable notes, int lastStart) {
+        int measuretime = 0;
+        if (notes.size() > 0) {
+            int last = notes.getStartTime(notes.size()-1);
+            while (measuretime <= last) {
+                measuretime += measurelen;
+            }
+        }
+        while (measuretime < lastStart) {
+            measuretime += measurelen;
+        }
+        return measuretime;
+    }
+
+
+    /** Create the chord symbols for the notes of a track that start
+     *  before endtime (or for all the remaining notes, if last is true).
+     * @ret An array of ChordSymbols
+     */
+    private
+    ArrayList<ChordSymbol> CreateChords(TrackLayout track, int endtime, boolean last) {
+        NoteTable midinotes = track.notes;
+        int i = track.notepos;
+        ArrayList<ChordSymbol> chords = new ArrayList<ChordSymbol>();
+        int len = midinotes.size();
+
+        while (i < len && (last || midinotes.getStartTime(i) < endtime)) {
+
+            int starttime = midinotes.getStartTime(i);
+            Clef clef = track.clefs.GetClef(starttime);
+
+            /* Group all the midi notes with the same start time
+             * into the rows [start:i].
+             */
+            int start = i;
+            i++;
+            while (i < len && midinotes.getStartTime(i) == starttime) {
+                i++;
+            }
+
+            /* Create a single chord from the group of midi notes with
+             * the same start time.
+             */
+            ChordSymbol chord = new ChordSymbol(midinotes, start, i, track.key, time, clef, sheet);
+            chords.add(chord);
+        }
+        track.notepos = i;
+        return chords;
+    }
+
+    /** Given the chord symbols for a section of a track, create a new
+     * symbol list that contains the chord symbols, vertical bars, rests,
+     * and clef changes.
+     *
+     * The section starts with the bar at starttime, and ends before the
+     * bar at endtime.  The rests and clef change before that bar are
+     * part of this section, since they start before endtime.  The bar
+     * itself is the first symbol of the next section.
+     * Return a list of symbols (ChordSymbol, BarSymbol, RestSymbol, ClefSymbol)
+     */
+    private ArrayList<MusicSymbol>
+    CreateSymbols(TrackLayout track, ArrayList<ChordSymbol> chords,
+                  int starttime, int endtime, boolean last) {
+
+        int lastbar = track.lastbar;
+        if (!last) {
+            lastbar = Math.min(endtime, lastbar);
+        }
+        ArrayList<MusicSymbol> symbols = AddBars(chords, starttime, lastbar);
+
+        /* The rests and clef change before the first bar were added
+         * by the previous section.
+         */
+        MusicSymbol firstbar = null;
+        if (starttime > 0 && symbols.size() > 0) {
+            firstbar = symbols.remove(0);
+        }
+        symbols = AddRests(symbols, track);
+        symbols = AddClefChanges(symbols, track.clefs, starttime);
+        if (firstbar != null) {
+            symbols.add(0, firstbar);
+        }
+        if (!last && endtime <= track.lastbar) {
+            symbols.remove(symbols.size()-1);
+        }
+        return symbols;
+    }
+
+    /** Add in the vertical bars delimiting measures, starting with the
+     *  bar at measuretime, up to the bar at lastbar.  At the start of
+     *  the song, also add the time signature symbols.
+     */
+    private ArrayList<MusicSymbol>
+    AddBars(ArrayList<ChordSymbol> chords, int measuretime, int lastbar) {
+        ArrayList<MusicSymbol> symbols = new ArrayList<MusicSymbol>();
+
+        if (measuretime == 0) {
+            TimeSigSymbol timesig = new TimeSigSymbol(time.getNumerator(), time.getDenominator());
+            symbols.add(timesig);
+        }
+
+        int i = 0;
+        while (i < chords.size()) {
+            if (measuretime <= chords.get(i).getStartTime()) {
+                symbols.add(new BarSymbol(measuretime) );
+                measuretime += measurelen;
+            }
+            else {
+                symbols.add(chords.get(i));
+                i++;
+            }
+        }
+
+        /* Keep adding bars until the last bar (the end of the song) */
+        while (measuretime <= lastbar) {
+            symbols.add(new BarSymbol(measuretime) );
+            measuretime += measurelen;
+        }
+        return symbols;
+    }
+
+    /** Add rest symbols between notes.  All times below are
+     * measured in pulses.
+     */
+    private
+    ArrayList<MusicSymbol> AddRests(ArrayList<MusicSymbol> symbols, TrackLayout track) {
+        int prevtime = track.prevtime;
+
+        ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>( symbols.size() );
+
+        for (MusicSymbol symbol : symbols) {
+            int starttime = symbol.getStartTime();
+            RestSymbol[] rests = GetRests(time, prevtime, starttime);
+            if (rests != null) {
+                for (RestSymbol r : rests) {
+                    result.add(r);
+                }
+            }
+
+            result.add(symbol);
+
+            /* Set prevtime to the end time of the last note/symbol. */
+            if (symbol instanceof ChordSymbol) {
+                ChordSymbol chord = (ChordSymbol)symbol;
+                prevtime = Math.max( chord.getEndTime(), prevtime );
+            }
+            else {
+                prevtime = Math.max(starttime, prevtime);
+            }
+            if (track.barprevtime != null && (symbol instanceof BarSymbol) &&
+                starttime / measurelen == track.barfirst + track.barprevtime.size()) {
+                track.barprevtime.add(prevtime);
+            }
+        }
+        track.prevtime = prevtime;
+        return result;
+    }
+
+    /** Return the rest symbols needed to fill the time interval between
+     * start and end.  If no rests are needed, return nil.
+     */
+    private static
+    RestSymbol[] GetRests(TimeSignature time, int start, int end) {
+        RestSymbol[] result;
+        RestSymbol r1, r2;
+
+        if (end - start < 0)
+            return null;
+
+        NoteDuration dur = time.GetNoteDuration(end - start);
+        switch (dur) {
+            case Whole:
+            case Half:
+            case Quarter:
+            case Eighth:
+                r1 = new RestSymbol(start, dur);
+                result = new RestSymbol[]{ r1 };
+                return result;
+
+            case DottedHalf:
+                r1 = new RestSymbol(start, NoteDuration.Half);
+                r2 = new RestSymbol(start + time.getQuarter()*2,
+                                    NoteDuration.Quarter);
+                result = new RestSymbol[]{ r1, r2 };
+                return result;
+
+            case DottedQuarter:
+                r1 = new RestSymbol(start, NoteDuration.Quarter);
+                r2 = new RestSymbol(start + time.getQuarter(),
+                                    NoteDuration.Eighth);
+                result = new RestSymbol[]{ r1, r2 };
+                return result;
+
+            case DottedEighth:
+                r1 = new RestSymbol(start, NoteDuration.Eighth);
+                r2 = new RestSymbol(start + time.getQuarter()/2,
+                                    NoteDuration.Sixteenth);
+                result = new RestSymbol[]{ r1, r2 };
+                return result;
+
+            default:
+                return null;
+        }
+    }
+
+    /** The current clef is always shown at the beginning of the staff, on
+     * the left side.  However, the clef can also change from measure to
+     * measure. When it does, a Clef symbol must be shown to indicate the
+     * change in clef.  This function adds these Clef change symbols.
+     * This function does not add the main Clef Symbol that begins each
+     * staff.  That is done in the Staff() contructor.
+     * The symbols start after the bar at starttime.
+     */
+    private static
+    ArrayList<MusicSymbol> AddClefChanges(ArrayList<MusicSymbol> symbols,
+                                     ClefMeasures clefs, int starttime) {
+
+        ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>( symbols.size() );
+        Clef prevclef = clefs.GetClef(starttime);
+        for (MusicSymbol symbol : symbols) {
+            /* A BarSymbol indicates a new measure */
+            if (symbol instanceof BarSymbol) {
+                Clef clef = clefs.GetClef(symbol.getStartTime());
+                if (clef != prevclef) {
+                    result.add(new ClefSymbol(clef, symbol.getStartTime()-1, true));
+                }
+                prevclef = clef;
+            }
+            result.add(symbol);
+        }
+        return result;
+    }
+
+
+    /** Get the lyrics for each track */
+    private static ArrayList<ArrayList<LyricSymbol>>
+    GetLyrics(ArrayList<MidiTrack> tracks) {
+       boolean hasLyrics = false;
+        ArrayList<ArrayList<LyricSymbol>> result = new ArrayList<ArrayList<LyricSymbol>>();
+        for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
+            ArrayList<LyricSymbol> lyrics = new ArrayList<LyricSymbol>();
+            result.add(lyrics);
+            MidiTrack track = tracks.get(tracknum);
+            if (track.getLyrics() == null) {
+                continue;
+            }
+            hasLyrics = true;
+            for (MidiEvent ev : track.getLyrics()) {
+                try {
+                    String text = new String(ev.Value, 0, ev.Value.length, "UTF-8");
+                    LyricSymbol sym = new LyricSymbol(ev.StartTime, text);
+                    lyrics.add(sym);
+                }
+                catch (UnsupportedEncodingException e) {}
+            }
+        }
+        if (!hasLyrics) {
+            return null;
+        }
+        else {
+            return result;
+        }
+    }
+
+    /** Get the lyrics of each track that start before endtime, and
+     *  were not returned before.  Return null if there are no lyrics.
+     */
+    private ArrayList<ArrayList<LyricSymbol>>
+    GetLyrics(TrackLayout[] tracks, int endtime, boolean last) {
+        if (!showLyrics) {
+            return null;
+        }
+        ArrayList<ArrayList<LyricSymbol>> result =
+          new ArrayList<ArrayList<LyricSymbol>>(tracks.length);
+        for (TrackLayout track : tracks) {
+            ArrayList<LyricSymbol> lyrics = new ArrayList<LyricSymbol>();
+            while (track.lyricpos < track.lyrics.size() &&
+                   (last || track.lyrics.get(track.lyricpos).getStartTime() < endtime)) {
+                lyrics.add(track.lyrics.get(track.lyricpos));
+                track.lyricpos++;
+            }
+            result.add(lyrics);
+        }
+        return result;
+    }
+
+
+    /** Notes with the same start times in different staffs should be
+     * vertically aligned.  The SymbolWidths class is used to help
+     * vertically align symbols.
+     *
+     * First, each track should have a symbol for every starttime that
+     * appears in the Midi File.  If a track doesn't have a symbol for a
+     * particular starttime, then add a "blank" symbol for that time.
+     *
+     * Next, make sure the symbols for each start time all have the same
+     * width, across all tracks.  The SymbolWidths class stores
+     * - The symbol width for each starttime, for each track
+     * - The maximum symbol width for a given starttime, across all tracks.
+     *
+     * The method SymbolWidths.GetExtraWidth() returns the extra width
+     * needed for a track to match the maximum symbol width for a given
+     * starttime.
+     *
+     * The symbols of a section all start within the section, so the
+     * start times of the section are aligned here.  The symbols after
+     * the last start time (the bars at the end) are kept, and aligned
+     * with the next section.  The aligned symbols are added to the
+     * symbols of each track.
+     */
+    private
+    void AlignSymbols(TrackLayout[] tracks, ArrayList<ArrayList<MusicSymbol>> section,
+                      ArrayList<ArrayList<LyricSymbol>> lyrics) {
+
+        SymbolWidths widths = new SymbolWidths(section, lyrics);
+        int[] starttimes = widths.getStartTimes();
+
+        for (int track = 0; track < section.size(); track++) {
+            TrackLayout layout = tracks[track];
+            ArrayList<MusicSymbol> symbols = layout.pending;
+            symbols.addAll(section.get(track));
+            ArrayList<MusicSymbol> result =
+                new ArrayList<MusicSymbol>(symbols.size() + starttimes.length);
+
+            int i = 0;
+
+            /* If a track doesn't have a symbol for a starttime,
+             * add a blank symbol.
+             */
+            for (int start : starttimes) {
+
+                /* BarSymbols are not included in the SymbolWidths calculations */
+                while (i < symbols.size() && (symbols.get(i) instanceof BarSymbol) &&
+                    symbols.get(i).getStartTime() <= start) {
+                    AddBarIndex(layout, symbols.get(i), result.size());
+                    result.add(symbols.get(i));
+                    i++;
+                }
+
+                if (i < symbols.size() && symbols.get(i).getStartTime() == start) {
+
+                    while (i < symbols.size() &&
+                           symbols.get(i).getStartTime() == start) {
+
+                        result.add(symbols.get(i));
+                        i++;
+                    }
+                }
+                else {
+                    result.add(new BlankSymbol(start, 0));
+                }
+            }
+            layout.pending =
+                new ArrayList<MusicSymbol>(symbols.subList(i, symbols.size()));
+
+            /* For each starttime, increase the symbol width by
+             * SymbolWidths.GetExtraWidth().
+             */
+            i = 0;
+            while (i < result.size()) {
+                if (result.get(i) instanceof BarSymbol) {
+                    i++;
+                    continue;
+                }
+                int start = result.get(i).getStartTime();
+                int extra = widths.GetExtraWidth(track, start);
+                int newwidth = result.get(i).getWidth() + extra;
+                result.get(i).setWidth(newwidth);
+
+                /* Skip all remaining symbols with the same starttime. */
+                while (i < result.size() && result.get(i).getStartTime() == start) {
+                    i++;
+                }
+            }
+            layout.symbols.addAll(result);
+        }
+    }
+
+    /** Store the index of the bar that starts a measure.  The bar is the
+     *  given position in the symbols being added to the track.
+     */
+    private void AddBarIndex(TrackLayout track, MusicSymbol bar, int position) {
+        if (track.barindex != null &&
+            bar.getStartTime() / measurelen == track.barindex.size()) {
+            track.barindex.add(track.base + track.symbols.size() + position);
+        }
+    }
+
+
+    /** Find 2, 3, 4, or 6 chord symbols that occur consecutively (without any
+     *  rests or bars in between).  There can be BlankSymbols in between.
+     *
+     *  The startIndex is the index in the symbols to start looking from.
+     *
+     *  Store the indexes of the consecutive chords in chordIndexes.
+     *  Store the horizontal distance (pixels) between the first and last chord.
+     *  If we failed to find consecutive chords, return false.
+     */
+    private static boolean
+    FindConsecutiveChords(ArrayList<MusicSymbol> symbols, TimeSignature time,
+                          int startIndex, int[] chordIndexes,
+                          BoxedInt horizDistance) {
+
+        int i = startIndex;
+        int numChords = chordIndexes.length;
+
+        while (true) {
+            horizDistance.value = 0;
+
+            /* Find the starting chord */
+            while (i < symbols.size() - numChords) {
+                if (symbols.get(i) instanceof ChordSymbol) {
+                    ChordSymbol c = (ChordSymbol) symbols.get(i);
+                    if (c.getStem() != null) {
+                        break;
+                    }
+                }
+                i++;
+            }
+            if (i >= symbols.size() - numChords) {
+                chordIndexes[0] = -1;
+                return false;
+            }
+            chordIndexes[0] = i;
+            boolean foundChords = true;
+            for (int chordIndex = 1; chordIndex < numChords; chordIndex++) {
+                i++;
+                int remaining = numChords - 1 - chordIndex;
+                while ((i < symbols.size() - remaining) &&
+                       (symbols.get(i) instanceof BlankSymbol)) {
+
+                    horizDistance.value += symbols.get(i).getWidth();
+                    i++;
+                }
+                if (i >= symbols.size() - remaining) {
+                    return false;
+                }
+                if (!(symbols.get(i) instanceof ChordSymbol)) {
+                    foundChords = false;
+                    break;
+                }
+                chordIndexes[chordIndex] = i;
+                horizDistance.value += symbols.get(i).getWidth();
+            }
+            if (foundChords) {
+                return true;
+            }
+
+            /* Else, start searching again from index i */
+        }
+    }
+
+
+    /** Connect chords of the same duration with a horizontal beam.
+     *  numChords is the number of chords per beam (2, 3, 4, or 6).
+     *  if startBeat is true, the first chord must start on a quarter note beat.
+     */
+    private static void
+    CreateBeamedChords(ArrayList<ArrayList<MusicSymbol>> allsymbols, TimeSignature time,
+                       int numChords, boolean startBeat) {
+        int[] chordIndexes = new int[numChords];
+        ChordSymbol[] chords = new ChordSymbol[numChords];
+
+        for (ArrayList<MusicSymbol> symbols : allsymbols) {
+            int startIndex = 0;
+            while (true) {
+                BoxedInt horizDistance = new BoxedInt();
+                horizDistance.value = 0;
+                boolean found = FindConsecutiveChords(symbols, time,
+                                                   startIndex,
+                                                   chordIndexes,
+                                                   horizDistance);
+                if (!found) {
+                    break;
+                }
+                for (int i = 0; i < numChords; i++) {
+                    chords[i] = (ChordSymbol)symbols.get( chordIndexes[i] );
+                }
+
+                if (ChordSymbol.CanCreateBeam(chords, time, startBeat)) {
+                    ChordSymbol.CreateBeam(chords, horizDistance.value);
+                    startIndex = chordIndexes[numChords-1] + 1;
+                }
+                else {
+                    startIndex = chordIndexes[0] + 1;
+                }
+
+                /* What is the value of startIndex here?
+                 * If we created a beam, we start after the last chord.
+                 * If we failed to create a beam, we start after the first chord.
+                 */
+            }
+        }
+    }
+
+
+    /** Connect chords of the same duration with a horizontal beam.
+     *
+     *  We create beams in the following order:
+     *  - 6 connected 8th note chords, in 3/4, 6/8, or 6/4 time
+     *  - Triplets that start on quarter note beats
+     *  - 3 connected chords that start on quarter note beats (12/8 time only)
+     *  - 4 connected chords that start on quarter note beats (4/4 or 2/4 time only)
+     *  - 2 connected chords that start on quarter note beats
+     *  - 2 connected chords that start on any beat
+     */
+    private static void
+    CreateAllBeamedChords(ArrayList<ArrayList<MusicSymbol>> allsymbols, TimeSignature time) {
+        if ((time.getNumerator() == 3 && time.getDenominator() == 4) ||
+            (time.getNumerator() == 6 && time.getDenominator() == 8) ||
+            (time.getNumerator() == 6 && time.getDenominator() == 4) ) {
+
+            CreateBeamedChords(allsymbols, time, 6, true);
+        }
+        CreateBeamedChords(allsymbols, time, 3, true);
+        CreateBeamedChords(allsymbols, time, 4, true);
+        CreateBeamedChords(allsymbols, time, 2, true);
+        CreateBeamedChords(allsymbols, time, 2, false);
+    }
+
+    /** Beam the chords of a track, up to a bar that has its final width.
+     *
+     *  A beam never crosses a bar, so the symbols up to a bar can be
+     *  beamed on their own.  The search for chords stops a few symbols
+     *  before the end of the list, so the symbols are followed by
+     *  BeamLookahead extra bars, and are only beamed once the track has
+     *  as many symbols after the bar.  At the end of the song, the
+     *  remaining symbols are beamed as they are.
+     */
+    private void CreateBeams(TrackLayout track, boolean last) {
+        ArrayList<MusicSymbol> symbols = track.symbols;
+        int start = track.beamed - track.base;
+        int end = symbols.size();
+        if (!last) {
+            /* When scrolling vertically, the widths of the symbols
+             * change when the staff is justified.
+             */
+            if (options.scrollVert) {
+                end = Math.min(end, track.staffstart - track.base);
+            }
+            end = Math.min(end, symbols.size() - BeamLookahead);
+            while (end > start && !(symbols.get(end) instanceof BarSymbol)) {
+                end--;
+            }
+        }
+        if (end <= start) {
+            return;
+        }
+        BeamSymbols(symbols, start, end, last);
+        track.beamed = track.base + end;
+    }
+
+    /** Beam the chords in symbols[start:end].  Unless the symbols are at
+     *  the end of the track, symbols[end] is a bar, and the symbols are
+     *  followed by BeamLookahead extra bars.
+     */
+    private void BeamSymbols(ArrayList<MusicSymbol> symbols, int start, int end, boolean last) {
+        ArrayList<MusicSymbol> part = new ArrayList<MusicSymbol>(symbols.subList(start, end));
+        if (!last) {
+            int bartime = symbols.get(end-1).getStartTime();
+            for (int i = 0; i < BeamLookahead; i++) {
+                part.add(new BarSymbol(bartime));
+            }
+        }
+        ArrayList<ArrayList<MusicSymbol>> list = new ArrayList<ArrayList<MusicSymbol>>(1);
+        list.add(part);
+        CreateAllBeamedChords(list, time);
+    }
+
+
+    /** Given the aligned symbols for a track, add the staffs that are
+     *  full.  Each Staff has a maxmimum width of PageWidth (800 pixels).
+     *  Also, measures should not span multiple Staffs.  The last staff
+     *  is added at the end of the song.
+     */
+    private void CreateStaffs(TrackLayout track, boolean last) {
+        ArrayList<MusicSymbol> symbols = track.symbols;
+        int startindex = track.staffstart - track.base;
+
+        while (startindex < symbols.size()) {
+            /* startindex is the index of the first symbol in the staff.
+             * endindex is the index of the last symbol in the staff.
+             */
+            int endindex = startindex;
+            int width = keysigWidth;
+            int maxwidth;
+
+            /* If we're scrolling vertically, the maximum width is PageWidth. */
+            if (options.scrollVert) {
+                maxwidth = SheetMusic.PageWidth;
+            }
+            else {
+                maxwidth = 2000000;
+            }
+
+            while (endindex < symbols.size() &&
+                   width + symbols.get(endindex).getWidth() < maxwidth) {
+
+                width += symbols.get(endindex).getWidth();
+                endindex++;
+            }
+            if (endindex == symbols.size() && !last) {
+                /* The next section may still fit in this staff */
+                break;
+            }
+            endindex--;
+
+            /* There's 3 possibilities at this point:
+             * 1. We have all the symbols in the track.
+             *    The endindex stays the same.
+             *
+             * 2. We have symbols for less than one measure.
+             *    The endindex stays the same.
+             *
+             * 3. We have symbols for 1 or more measures.
+             *    Since measures cannot span multiple staffs, we must
+             *    make sure endindex does not occur in the middle of a
+             *    measure.  We count backwards until we come to the end
+             *    of a measure.
+             */
+
+            if (endindex == symbols.size() - 1) {
+                /* endindex stays the same */
+            }
+            else if (symbols.get(startindex).getStartTime() / measurelen ==
+                     symbols.get(endindex).getStartTime() / measurelen) {
+                /* endindex stays the same */
+            }
+            else {
+                int endmeasure = symbols.get(endindex+1).getStartTime()/measurelen;
+                while (symbols.get(endindex).getStartTime() / measurelen ==
+                       endmeasure) {
+                    endindex--;
+                }
+            }
+
+            ArrayList<MusicSymbol> staffSymbols = new ArrayList<MusicSymbol>();
+            for (int i = startindex; i <= endindex; i++) {
+                staffSymbols.add(symbols.get(i));
+            }
+            Staff staff = new Staff(staffSymbols, mainkey, options,
+                                    track.tracknum, layouts.length);
+
+            /* The EndTime of a staff is the start of the next staff.
+             * EndTime is used for playback.
+             */
+            if (endindex + 1 < symbols.size()) {
+                staff.setEndTime(symbols.get(endindex+1).getStartTime());
+            }
+            track.staffs.add(staff);
+            track.staffends.add(track.base + endindex + 1);
+            startindex = endindex + 1;
+        }
+        track.staffstart = track.base + startindex;
+    }
+
+    /** Complete the staffs whose symbols are all beamed.  Add the
+     *  lyrics, and calculate the height of the staff, since the stem
+     *  directions change when the chords are beamed.
+     */
+    private void FinishStaffs(TrackLayout track) {
+        while (track.finished < track.staffs.size() &&
+               track.staffends.get(track.finished) <= track.beamed) {
+
+            Staff staff = track.staffs.get(track.finished);
+            if (track.lyrics != null) {
+                staff.AddLyrics(track.lyrics);
+            }
+            staff.CalculateHeight();
+            track.finished++;
+        }
+    }
+
+    /** Drop the symbols that are beamed and in a staff.  Only drop them
+     *  once they are most of the list, so the list is not copied too often.
+     */
+    private void TrimSymbols(TrackLayout track) {
+        int count = Math.min(track.beamed, track.staffstart) - track.base;
+        if (count == 0 || count < track.symbols.size() / 2) {
+            return;
+        }
+        track.symbols = new ArrayList<MusicSymbol>(
+            track.symbols.subList(count, track.symbols.size()));
+        track.base += count;
+    }
+
+    /** Add the rows of staffs that are complete to the staffs list.
+     *  A row has the next staff of each track, so it is complete when
+     *  every track has finished that staff.  At the end of the song, a
+     *  track may have fewer staffs than the others.  When windowed, the
+     *  staffs outside the window are evicted as they are added.
+     */
+    private void AddRows() {
+        while (true) {
+            boolean complete = true;
+            boolean found = false;
+            for (TrackLayout track : layouts) {
+                if (rows < track.staffs.size()) {
+                    found = true;
+                }
+                if (!done && track.finished <= rows) {
+                    complete = false;
+                }
+            }
+            if (!complete || !found) {
+                return;
+            }
+            for (TrackLayout track : layouts) {
+                if (rows < track.staffs.size()) {
+                    Staff staff = track.staffs.get(rows);
+                    if (windowed && !InWindow(staffs.size())) {
+                        staff.Evict();
+                    }
+                    staffsHeight += staff.getHeight();
+                    staffs.add(staff);
+                    staffrows.add(rows);
+                }
+            }
+            rows++;
+        }
+    }
+
+    /** Return true if the staff added at the given index of staffs keeps
+     *  its symbols.  Until the view asks for a window of staffs, the
+     *  staffs that start on the first page are kept, so that the first
+     *  staffs shown are drawn without laying them out again.
+     */
+    private boolean InWindow(int index) {
+        if (keepLast == -1) {
+            return staffsHeight < SheetMusic.PageHeight;
+        }
+        return keepFirst <= index && index < keepLast;
+    }
+
+    /** Return the next staff of a track, for displaying it before the
+     *  row is complete.  If the staff is not finished, return a temporary
+     *  staff with the beamed symbols.  The temporary staff is only made
+     *  again when it would have twice as many symbols, so the time spent
+     *  stays proportional to the length of the song.  Return null if
+     *  there are no symbols yet.
+     */
+    private Staff GetTempStaff(TrackLayout track) {
+        if (rows < track.finished) {
+            return track.staffs.get(rows);
+        }
+        int start = 0;
+        if (rows > 0) {
+            start = track.staffends.get(rows-1);
+        }
+        int end = track.beamed;
+        if (end <= start) {
+            return null;
+        }
+        if (track.temp == null || track.tempstart != start ||
+            end - start >= 2 * (track.tempend - start)) {
+
+            ArrayList<MusicSymbol> staffSymbols =
+                new ArrayList<MusicSymbol>(track.symbols.subList(start - track.base,
+                                                                 end - track.base));
+            track.temp = new Staff(staffSymbols, mainkey, options,
+                                   track.tracknum, layouts.length);
+            track.tempstart = start;
+            track.tempend = end;
+        }
+        return track.temp;
+    }
+
+
+    /** Evict the symbols of the staffs in getStaffs() that are not in
+     *  [first:last], when the staffs are windowed.  The staffs added
+     *  later in [first:last] keep their symbols, and the others are
+     *  evicted as they are added.  This holds the layout lock, like
+     *  AddRows(), which adds the staffs.
+     */
+    public synchronized void EvictStaffs(int first, int last) {
+        if (!windowed) {
+            return;
+        }
+        keepFirst = first;
+        keepLast = Math.max(last, 0);
+        for (int i = 0; i < staffs.size(); i++) {
+            if (i < first || i >= last) {
+                staffs.get(i).Evict();
+            }
+        }
+    }
+
+    /** Lay out again the symbols of the evicted staffs in
+     *  getStaffs()[first:last], when the staffs are windowed.
+     *  This takes a while, so it is called from a background thread.
+     *
+     *  The chords of a measure split between two staffs are beamed
+     *  together, so for each track, the staffs are extended until they
+     *  start and end at a bar.  The lyric at the end of a staff is placed
+     *  by the next staff, so that staff is included too, and a staff that
+     *  is not evicted is laid out again if its lyric may be misplaced.
+     *  Then all the tracks are laid out from the first bar, and the
+     *  staffs get their symbols back.
+     */
+    public synchronized void Materialize(int first, int last) {
+        if (!windowed) {
+            return;
+        }
+        int numtracks = layouts.length;
+        int[] firstrow = new int[numtracks];
+        int[] lastrow = new int[numtracks];
+        Arrays.fill(firstrow, -1);
+        for (int i = first; i < last && i < staffs.size(); i++) {
+            Staff staff = staffs.get(i);
+            int tracknum = staff.getTrack();
+            int row = staffrows.get(i);
+            if (!staff.isEvicted() && !HasStaleLyric(layouts[tracknum], row)) {
+                continue;
+            }
+            if (firstrow[tracknum] == -1) {
+                firstrow[tracknum] = row;
+            }
+            lastrow[tracknum] = row;
+        }
+
+        /* Find the staffs and measures to lay out */
+        int startmeasure = lastmeasure;
+        int endmeasure = -1;
+        for (TrackLayout track : layouts) {
+            int tracknum = track.tracknum;
+            if (firstrow[tracknum] == -1) {
+                continue;
+            }
+            int row = firstrow[tracknum];
+            while (row > 0 && !IsMeasureStart(track, StaffStart(track, row))) {
+                row--;
+            }
+            firstrow[tracknum] = row;
+            startmeasure = Math.min(startmeasure, MeasureAt(track, StaffStart(track, row)));
+
+            row = lastrow[tracknum];
+            if (track.lyrics != null && row + 1 < track.finished) {
+                row++;
+            }
+            int total = track.base + track.symbols.size();
+            while (row + 1 < track.staffs.size()) {
+                int end = track.staffends.get(row);
+                if (IsMeasureStart(track, end) && end + BeamLookahead <= total) {
+                    break;
+                }
+                row++;
+            }
+            lastrow[tracknum] = row;
+            if (track.staffends.get(row) == total) {
+                endmeasure = lastmeasure + 1;
+            }
+            else {
+                endmeasure = Math.max(endmeasure, MeasureAt(track, track.staffends.get(row)));
+            }
+        }
+        if (endmeasure == -1) {
+            return;
+        }
+
+        /* Lay out the symbols, until each track has the symbols
+         * of its last staff.
+         */
+        TrackLayout[] cursors = new TrackLayout[numtracks];
+        for (TrackLayout track : layouts) {
+            cursors[track.tracknum] = CreateCursor(track, startmeasure);
+        }
+        int sectionstart = startmeasure;
+        int sectionend = Math.max(endmeasure, startmeasure + 1);
+        while (true) {
+            boolean lastsection = (sectionend > lastmeasure);
+            LayoutSection(cursors, sectionstart, sectionend, lastsection);
+            boolean ready = true;
+            for (TrackLayout track : layouts) {
+                TrackLayout cursor = cursors[track.tracknum];
+                if (firstrow[track.tracknum] != -1 &&
+                    cursor.base + cursor.symbols.size() <
+                    track.staffends.get(lastrow[track.tracknum])) {
+                    ready = false;
+                }
+            }
+            if (ready || lastsection) {
+                break;
+            }
+            sectionstart = sectionend;
+            sectionend += FirstSection;
+        }
+
+        for (TrackLayout track : layouts) {
+            if (firstrow[track.tracknum] != -1) {
+                RestoreStaffs(track, cursors[track.tracknum],
+                              firstrow[track.tracknum], lastrow[track.tracknum]);
+            }
+        }
+    }
+
+    /** Create the layout state of a track at the bar that starts the
+     *  given measure, for laying out the symbols again.  The keymap is
+     *  the one left by the notes before the bar.
+     */
+    private TrackLayout CreateCursor(TrackLayout track, int measure) {
+        TrackLayout cursor = new TrackLayout();
+        int starttime = measure * measurelen;
+        cursor.tracknum = track.tracknum;
+        cursor.notes = track.notes;
+        cursor.clefs = track.clefs;
+        cursor.lastbar = track.lastbar;
+        cursor.lyrics = track.lyrics;
+        cursor.pending = new ArrayList<MusicSymbol>();
+        cursor.symbols = new ArrayList<MusicSymbol>();
+        if (measure > 0) {
+            cursor.notepos = FirstNote(track.notes, starttime);
+            if (track.lyrics != null) {
+                cursor.lyricpos = FirstLyric(track.lyrics, starttime);
+            }
+            if (measure < track.barindex.size()) {
+                cursor.base = track.barindex.get(measure);
+            }
+            if (measure < track.barprevtime.size()) {
+                cursor.prevtime = track.barprevtime.get(measure);
+            }
+        }
+        cursor.key = track.startkey.Skip(track.notes, 0, cursor.notepos, measurelen);
+        return cursor;
+    }
+
+    /** Give the staffs of a track from firstrow to lastrow their symbols
+     *  back, from the symbols laid out again by the cursor.  Justify the
+     *  symbols of each staff (which changes the distance between beamed
+     *  chords), and beam the chords.  Only then give the symbols to the
+     *  evicted staffs, since the staffs may be drawn meanwhile.  The
+     *  staffs that were not evicted keep their symbols, but place their
+     *  lyrics again, since a lyric at the end of a staff is placed by the
+     *  next staff.
+     */
+    private void RestoreStaffs(TrackLayout track, TrackLayout cursor,
+                               int firstrow, int lastrow) {
+        ArrayList<MusicSymbol> symbols = cursor.symbols;
+        ArrayList<ArrayList<MusicSymbol>> rowSymbols =
+          new ArrayList<ArrayList<MusicSymbol>>(lastrow - firstrow + 1);
+        for (int row = firstrow; row <= lastrow; row++) {
+            ArrayList<MusicSymbol> staffSymbols = new ArrayList<MusicSymbol>(
+                symbols.subList(StaffStart(track, row) - cursor.base,
+                                track.staffends.get(row) - cursor.base));
+            track.staffs.get(row).Justify(staffSymbols);
+            rowSymbols.add(staffSymbols);
+        }
+        int end = track.staffends.get(lastrow);
+        boolean atEnd = done && (end == track.base + track.symbols.size());
+        BeamSymbols(symbols, StaffStart(track, firstrow) - cursor.base,
+                    end - cursor.base, atEnd);
+
+        for (int row = firstrow; row <= lastrow && row < track.finished; row++) {
+            Staff staff = track.staffs.get(row);
+            if (staff.isEvicted()) {
+                staff.Restore(rowSymbols.get(row - firstrow), track.lyrics);
+            }
+            else if (track.lyrics != null) {
+                staff.AddLyrics(track.lyrics);
+            }
+        }
+    }
+
+    /** Return true if the lyric at the end of the given staff of a track
+     *  may be misplaced.  That lyric is placed by the next staff, so it
+     *  is misplaced when the next staff is evicted, and the staff was
+     *  the last one laid out again by Materialize().
+     */
+    private static boolean HasStaleLyric(TrackLayout track, int row) {
+        return track.lyrics != null && row + 1 < track.finished &&
+               track.staffs.get(row + 1).isEvicted();
+    }
+
+    /** Return the index of the first symbol in the given staff of a track */
+    private static int StaffStart(TrackLayout track, int row) {
+        if (row == 0) {
+            return 0;
+        }
+        return track.staffends.get(row-1);
+    }
+
+    /** Return the measure of the last bar at or before the given
+     *  symbol index of a track.
+     */
+    private static int MeasureAt(TrackLayout track, int index) {
+        ListInt bars = track.barindex;
+        int low = 0;
+        int high = bars.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bars.get(mid) <= index) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return Math.max(low - 1, 0);
+    }
+
+    /** Return true if the symbols can be laid out again starting from
+     *  the given symbol index: the start of the song, or a bar.
+     */
+    private static boolean IsMeasureStart(TrackLayout track, int index) {
+        int measure = MeasureAt(track, index);
+        if (measure == 0) {
+            return index == 0;
+        }
+        return track.barindex.get(measure) == index;
+    }
+
+    /** Return the index of the first note starting at or after the given time */
+    private static int FirstNote(NoteTable notes, int time) {
+        int low = 0;
+        int high = notes.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (notes.getStartTime(mid) < time) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Return the index of the first lyric starting at or after the given time */
+    private static int FirstLyric(ArrayList<LyricSymbol> lyrics, int time) {
+        int low = 0;
+        int high = lyrics.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lyrics.get(mid).getStartTime() < time) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
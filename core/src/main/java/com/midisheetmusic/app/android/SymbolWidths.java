@@ -62,10 +62,11 @@ public class SymbolWidths {
         for (DictInt dict : widths) {
             for (int i = 0; i < dict.count(); i++) {
                 int time = dict.getKey(i);
+                int width = dict.getValue(i);
                 if (!maxwidths.contains(time) ||
-                    (maxwidths.get(time) < dict.get(time)) ) {
+                    (maxwidths.get(time) < width) ) {
 
-                    maxwidths.set(time, dict.get(time));
+                    maxwidths.set(time, width);
                 }
             }
         }
@@ -88,17 +89,12 @@ public class SymbolWidths {
         }
 
         /* Store all the start times to the starttime array */
-        starttimes = new int[ maxwidths.count() ];
-        for (int i = 0; i < maxwidths.count(); i++) {
-            int key = maxwidths.getKey(i);
-            starttimes[i] = key;
-        }
-        Arrays.sort(starttimes); 
+        starttimes = maxwidths.getSortedKeys();
     }
 
     /** Create a table of the symbol widths for each starttime in the track. */
     private static DictInt GetTrackWidths(ArrayList<MusicSymbol> symbols) {
-        DictInt widths = new DictInt();
+        DictInt widths = new DictInt(symbols.size());
 
         for (MusicSymbol m : symbols) {
             int start = m.getStartTime();
@@ -121,11 +117,8 @@ public class SymbolWidths {
      * the symbols for that start time align with the other tracks.
      */
     public int GetExtraWidth(int track, int start) {
-        if (!widths[track].contains(start)) {
-            return maxwidths.get(start);
-        } else {
-            return maxwidths.get(start) - widths[track].get(start);
-        }
+        /* The width of a missing start time is 0 */
+        return maxwidths.get(start) - widths[track].get(start);
     }
 
     /** Return an array of all the start times in all the tracks */
@@ -36,7 +36,7 @@ public class TimeSigSymbol implements MusicSymbol {
     public TimeSigSymbol(int numer, int denom) {
         numerator = numer;
         denominator = denom;
-        if (numer >= 0 && numer < images.length && images[numer] != null &&
+        if (images != null && numer >= 0 && numer < images.length && images[numer] != null &&
             denom >= 0 && denom < images.length && images[numer] != null) {
             candraw = true;
         }
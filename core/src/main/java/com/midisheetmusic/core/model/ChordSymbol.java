@@ -15,7 +15,7 @@ package com.midisheetmusic.core.model;
 import java.util.*;
 import android.graphics.*;
 import com.midisheetmusic.app.android.SheetMusic;
-import com.midisheetmusic.midi.model.MidiNote;
+import com.midisheetmusic.midi.model.NoteTable;
 import com.midisheetmusic.midi.model.MidiOptions;
 
 
@@ -39,35 +39,36 @@ public class ChordSymbol implements MusicSymbol {
     private SheetMusic sheetmusic; /** Used to get colors and other options */
 
 
-    /** Create a new Chord Symbol from the given list of midi notes.
+    /** Create a new Chord Symbol from rows [start:end] of the note table.
      * All the midi notes will have the same start time.  Use the
      * key signature to get the white key and accidental symbol for
      * each note.  Use the time signature to calculate the duration
      * of the notes. Use the clef when drawing the chord.
+     * The accidentals update the keymap of the key signature, so chords
+     * created in parallel must each use their own key signature.
      */
-    public ChordSymbol(ArrayList<MidiNote> midinotes, KeySignature key,
+    public ChordSymbol(NoteTable midinotes, int start, int end, KeySignature key,
                        TimeSignature time, Clef c, SheetMusic sheet) {
 
-        int len = midinotes.size();
         int i;
 
         hastwostems = false;
         clef = c;
         sheetmusic = sheet;
 
-        starttime = midinotes.get(0).getStartTime();
-        endtime = midinotes.get(0).getEndTime();
+        starttime = midinotes.getStartTime(start);
+        endtime = midinotes.getEndTime(start);
 
-        for (i = 0; i < len; i++) {
-            if (i > 1) {
-                if (!(midinotes.get(i).getNumber() >= midinotes.get(i-1).getNumber()) ) {
+        for (i = start; i < end; i++) {
+            if (i > start + 1) {
+                if (!(midinotes.getNumber(i) >= midinotes.getNumber(i-1)) ) {
                     throw new IllegalArgumentException();
                 }
             }
-            endtime = Math.max(endtime, midinotes.get(i).getEndTime());
+            endtime = Math.max(endtime, midinotes.getEndTime(i));
         }
 
-        notedata = CreateNoteData(midinotes, key, time);
+        notedata = CreateNoteData(midinotes, start, end, key, time);
         accidsymbols = CreateAccidSymbols(notedata, clef);
 
 
@@ -146,20 +147,21 @@ public class ChordSymbol implements MusicSymbol {
      */
  
     private static NoteData[] 
-    CreateNoteData(ArrayList<MidiNote> midinotes, KeySignature key,
+    CreateNoteData(NoteTable midinotes, int start, int end, KeySignature key,
                    TimeSignature time) {
 
-        int len = midinotes.size();
+        int len = end - start;
         NoteData[] notedata = new NoteData[len];
 
         for (int i = 0; i < len; i++) {
-            MidiNote midi = midinotes.get(i);
+            int row = start + i;
+            int number = midinotes.getNumber(row);
             notedata[i] = new NoteData();
-            notedata[i].number = midi.getNumber();
+            notedata[i].number = number;
             notedata[i].leftside = true;
-            notedata[i].whitenote = key.GetWhiteNote(midi.getNumber());
-            notedata[i].duration = time.GetNoteDuration(midi.getEndTime() - midi.getStartTime());
-            notedata[i].accid = key.GetAccidental(midi.getNumber(), midi.getStartTime() / time.getMeasure());
+            notedata[i].whitenote = key.GetWhiteNote(number);
+            notedata[i].duration = time.GetNoteDuration(midinotes.getDuration(row));
+            notedata[i].accid = key.GetAccidental(number, midinotes.getStartTime(row) / time.getMeasure());
             
             if (i > 0 && (notedata[i].whitenote.Dist(notedata[i-1].whitenote) == 1)) {
                 /* This note (notedata[i]) overlaps with the previous note.
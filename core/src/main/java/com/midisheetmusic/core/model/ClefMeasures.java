@@ -13,7 +13,7 @@
 
 package com.midisheetmusic.core.model;
 
-import com.midisheetmusic.midi.model.MidiNote;
+import com.midisheetmusic.midi.model.NoteTable;
 
 import java.util.*;
 
@@ -28,10 +28,10 @@ public class ClefMeasures {
  
     /** Given the notes in a track, calculate the appropriate Clef to use
      * for each measure.  Store the result in the clefs list.
-     * @param notes  The midi notes
+     * @param notes  The midi notes, sorted by start time
      * @param measurelen The length of a measure, in pulses
      */
-    public ClefMeasures(ArrayList<MidiNote> notes, int measurelen) {
+    public ClefMeasures(NoteTable notes, int measurelen) {
         measure = measurelen;
         Clef mainclef = MainClef(notes);
         int nextmeasure = measurelen;
@@ -44,8 +44,8 @@ public class ClefMeasures {
             /* Sum all the notes in the current measure */
             int sumnotes = 0;
             int notecount = 0;
-            while (pos < notes.size() && notes.get(pos).getStartTime() < nextmeasure) {
-                sumnotes += notes.get(pos).getNumber();
+            while (pos < notes.size() && notes.getStartTime(pos) < nextmeasure) {
+                sumnotes += notes.getNumber(pos);
                 notecount++;
                 pos++;
             }
@@ -95,11 +95,11 @@ public class ClefMeasures {
      * average note is below Middle C, use a bass clef.  Else, use a treble
      * clef.
      */
-    private static Clef MainClef(ArrayList<MidiNote> notes) {
+    private static Clef MainClef(NoteTable notes) {
         int middleC = WhiteNote.MiddleC.getNumber();
         int total = 0;
-        for (MidiNote m : notes) {
-            total += m.getNumber();
+        for (int i = 0; i < notes.size(); i++) {
+            total += notes.getNumber(i);
         }
         if (notes.size() == 0) {
             return Clef.Treble;
@@ -13,7 +13,9 @@
 package com.midisheetmusic.core.model;
 
 
+import java.util.*;
 import com.midisheetmusic.helper.ListInt;
+import com.midisheetmusic.midi.model.NoteTable;
 
 /** @class KeySignature
  * The KeySignature class represents a key signature, like G Major
@@ -27,6 +29,10 @@ import com.midisheetmusic.helper.ListInt;
  * - Determining whether a particular note requires an accidental
  *   or not.
  *
+ * GetAccidental() changes the keymap, so a KeySignature must not be
+ * shared by threads creating chords at the same time.  Each thread
+ * uses its own copy, from Clone() or Skip().  The shared accidental
+ * maps are only written once, by CreateAccidentalMaps().
  */
 
 public class KeySignature {
@@ -117,8 +123,10 @@ public class KeySignature {
         CreateSymbols();
     }
 
-    /** Iniitalize the sharpkeys and flatkeys maps */
-    private static void CreateAccidentalMaps() {
+    /** Iniitalize the sharpkeys and flatkeys maps.  This is
+     *  synchronized, so no thread sees the maps half filled.
+     */
+    private static synchronized void CreateAccidentalMaps() {
         if (sharpkeys != null)
             return; 
 
@@ -469,6 +477,46 @@ public class KeySignature {
     }
 
 
+    /** Return a copy of this key signature.  The copy has its own
+     * keymap, so calling GetAccidental() on the copy doesn't change
+     * this key signature.
+     */
+    public KeySignature Clone() {
+        KeySignature key = new KeySignature(num_sharps, num_flats);
+        System.arraycopy(keymap, 0, key.keymap, 0, keymap.length);
+        key.prevmeasure = prevmeasure;
+        return key;
+    }
+
+    /** Return a copy of this key signature, in the state it would be in
+     * after calling GetAccidental() for rows [start:end] of the notes, in order.
+     * The keymap is reset at each new measure, so only the notes in
+     * the last measure need to be replayed.  This is used to lay out
+     * the tracks of a song in any order, and still get the accidentals
+     * of laying them out one after the other.
+     */
+    public KeySignature Skip(NoteTable notes, int start, int end, int measurelen) {
+        KeySignature key = Clone();
+        if (end <= start) {
+            return key;
+        }
+        int measure = notes.getStartTime(end-1) / measurelen;
+        int first = end-1;
+        while (first > start && notes.getStartTime(first-1) / measurelen == measure) {
+            first--;
+        }
+        if (first > start) {
+            /* The note before first was in an earlier measure */
+            key.ResetKeyMap();
+            key.prevmeasure = measure;
+        }
+        for (int i = first; i < end; i++) {
+            key.GetAccidental(notes.getNumber(i), measure);
+        }
+        return key;
+    }
+
+
     /** Given a midi note number, return the white note (the
      * non-sharp/non-flat note) that should be used when displaying
      * this note in this key signature.  This should be called
@@ -559,8 +607,6 @@ public class KeySignature {
      * the song.
      */
     public static KeySignature Guess(ListInt notes) {
-        CreateAccidentalMaps();
-
         /* Get the frequency count of each note in the 12-note scale */
         int[] notecount = new int[12];
         for (int i = 0; i < notes.size(); i++) {
@@ -568,6 +614,14 @@ public class KeySignature {
             int notescale = (notenumber + 3) % 12;
             notecount[notescale] += 1;
         }
+        return Guess(notecount);
+    }
+
+    /** Guess the key signature, given the number of notes in the song
+     * for each note in the 12-note scale (see NoteScale).
+     */
+    public static KeySignature Guess(int[] notecount) {
+        CreateAccidentalMaps();
 
         /* For each key signature, count the total number of accidentals
          * needed to display all the notes.  Choose the key signature
@@ -575,7 +629,10 @@ public class KeySignature {
          */
         int bestkey = 0;
         boolean is_best_sharp = true;
-        int smallest_accid_count = notes.size();
+        int smallest_accid_count = 0;
+        for (int n = 0; n < 12; n++) {
+            smallest_accid_count += notecount[n];
+        }
         int key;
 
         for (key = 0; key < 6; key++) {
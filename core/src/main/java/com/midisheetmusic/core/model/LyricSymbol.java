@@ -59,7 +59,7 @@ public class LyricSymbol {
 
     @Override
     public String toString() {
-        return String.format("Lyric start={0} x={1} text={2}",
+        return String.format("Lyric start=%1$s x=%2$s text=%3$s",
                              starttime, x, text);
     }
 
@@ -13,26 +13,76 @@
 
 package com.midisheetmusic.helper;
 
+import java.util.*;
+
 
 /**@class DictInt
  *  The DictInt class is a dictionary mapping integers to integers.
+ *
+ *  The key/value pairs are stored in two arrays, in the order they were
+ *  added.  A hash table with open addressing (linear probing) maps each
+ *  key to its position in those arrays, so looking up a key takes
+ *  constant time, whatever order the keys are used in.  The hash table
+ *  is kept at most half full, and doubled when it gets fuller.
+ *  Keys are never removed.
  */
 public class DictInt {
-    private int[] keys;    /** Sorted array of integer keys */
-    private int[] values;  /** Array of integer values */
+    private int[] keys;    /** The keys, in the order they were added */
+    private int[] values;  /** The value of each key */
     private int size;      /** Number of keys */
-    private int lastpos;   /** The index from the last "get" method */
+    private int[] table;   /** The hash table: the index+1 of a key, or 0 if empty */
+    private int shift;     /** 32 - log2(table.length) */
 
-    /** Create a new DictInt instance with the given capacity.
-     * Initialize two int arrays,  one to store the keys and one
-     * to store the values.
-     */
+    /** Create a new, empty DictInt instance. */
     public DictInt() {
+        this(16);
+    }
+
+    /** Create a new DictInt instance, with room for the given
+     *  number of keys.
+     */
+    public DictInt(int capacity) {
         size = 0;
-        int amount = 23;
-        lastpos = 0;
-        keys = new int[amount];
-        values = new int[amount];
+        capacity = Math.max(capacity, 4);
+        keys = new int[capacity];
+        values = new int[capacity];
+        int tablesize = 8;
+        while (tablesize < capacity * 2) {
+            tablesize *= 2;
+        }
+        table = new int[tablesize];
+        shift = 32 - Integer.numberOfTrailingZeros(tablesize);
+    }
+
+    /** Return the hash table slot to start looking for the key */
+    private int Slot(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    /** Return the index of the given key in keys/values, or -1 */
+    private int Find(int key) {
+        int mask = table.length - 1;
+        for (int slot = Slot(key); table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (keys[index] == key) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /** Double the size of the hash table, and put the keys in it again */
+    private void Rehash() {
+        table = new int[table.length * 2];
+        shift--;
+        int mask = table.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = Slot(keys[index]);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index + 1;
+        }
     }
 
     /** Increase the capacity of the key/value arrays  */
@@ -40,10 +90,8 @@ public class DictInt {
         int newcapacity = keys.length * 2;
         int[] newkeys = new int[newcapacity];
         int[] newvalues = new int[newcapacity];
-        for (int i = 0; i < keys.length; i++) {
-            newkeys[i] = keys[i];
-            newvalues[i] = values[i];
-        }
+        System.arraycopy(keys, 0, newkeys, 0, size);
+        System.arraycopy(values, 0, newvalues, 0, size);
         keys = newkeys;
         values = newvalues;
     }
@@ -51,68 +99,49 @@ public class DictInt {
     /** Add the given key/value pair to this dictionary.
      * This assumes the key is not already in the dictionary.
      * If the keys/values arrays are full, then resize them.
-     * The keys array must be kept in sorted order, so insert
-     * the new key/value in the correct sorted position.
      */
     public void add(int key, int value) {
         if (size == keys.length) {
             resize();
         }
-
-        int pos = size-1;
-        while (pos >= 0 && key < keys[pos]) {
-            keys[pos+1] = keys[pos];
-            values[pos+1] = values[pos];
-            pos--;
+        if ((size + 1) * 2 > table.length) {
+            Rehash();
         }
-        keys[pos+1] = key;
-        values[pos+1] = value;
+        keys[size] = key;
+        values[size] = value;
         size++;
+
+        int mask = table.length - 1;
+        int slot = Slot(key);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = size;
     }
 
 
     /** Set the given key to the given value */
     public void set(int key, int value) {
-        if (contains(key)) {
-            keys[lastpos] = key;
-            values[lastpos] = value;
+        int index = Find(key);
+        if (index >= 0) {
+            values[index] = value;
         }
         else {
             add(key, value);
         }
     }
 
-    /** Return true if this dictionary contains the given key.
-     * If true, set lastpos = the index position of the key.
-     */
+    /** Return true if this dictionary contains the given key. */
     public boolean contains(int key) {
-        if (size == 0)
-            return false;
-
-        /* The SymbolWidths class calls this method many times,
-         * passing the keys in sorted order.  To speed up performance,
-         * we start searching at the position of the last key (lastpos),
-         * instead of starting at the beginning of the array.
-         */
-        if (lastpos < 0 || lastpos >= size || key < keys[lastpos])
-            lastpos = 0;
-
-        while (lastpos < size && key > keys[lastpos]) {
-            lastpos++;
-        }
-        if (lastpos < size && key == keys[lastpos]) {
-            return true;
-        }
-        else {
-            return false;
-        }
+        return Find(key) >= 0;
     }
 
 
-    /** Get the value for the given key. */
+    /** Get the value for the given key, or 0 if the key is not present. */
     public int get(int key) {
-        if (contains(key)) {
-            return values[lastpos];
+        int index = Find(key);
+        if (index >= 0) {
+            return values[index];
         }
         else {
             return 0;
@@ -124,11 +153,24 @@ public class DictInt {
         return size;
     }
 
-    /** Return the key at the given index */
+    /** Return the key at the given index, in the order the keys were added */
     public int getKey(int index) {
         return keys[index];
     }
 
+    /** Return the value at the given index, in the order the keys were added */
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    /** Return a new array of all the keys, in sorted order */
+    public int[] getSortedKeys() {
+        int[] result = new int[size];
+        System.arraycopy(keys, 0, result, 0, size);
+        Arrays.sort(result);
+        return result;
+    }
+
 }
 
 
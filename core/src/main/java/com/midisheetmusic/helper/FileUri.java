@@ -17,7 +17,6 @@ import android.content.res.*;
 import java.io.*;
 import java.util.*;
 import android.net.*;
-import com.midisheetmusic.midi.model.MidiFileException;
 
 
 /** @class FileUri
@@ -92,55 +91,46 @@ public class FileUri implements Comparator<FileUri> {
         return f1.displayName.compareToIgnoreCase(f2.displayName);
     }
 
+    /** Open a stream for reading the file contents */
+    public InputStream openStream() throws IOException {
+        if (asset != null) {
+            return asset.open(filepath);
+        }
+        else if (resolver != null) {
+            return resolver.openInputStream(uri);
+        }
+        else {
+            return new FileInputStream(filepath);
+        }
+    }
+
     /** Return the file contents as a byte array.
+     *  The stream is read once, into a buffer that grows as needed.
      *  If any IO error occurs, return null.
      */
     public byte[] getData() {
         try {
-            byte[] data;
-            int totallen, len, offset;
-        
-            // First, determine the file length
-            data = new byte[4096];
-            InputStream file;
-            if (asset != null) {
-                file = asset.open(filepath);
-            }
-            else if (resolver != null) {
-                file = resolver.openInputStream(uri);
-            }
-            else {
-                file = new FileInputStream(filepath);
-            }
-            totallen = 0;
-            len = file.read(data, 0, 4096);
-            while (len > 0) {
-                totallen += len;
-                len = file.read(data, 0, 4096);
-            }
-            file.close();
-        
-            // Now read in the data
-            offset = 0;
-            data = new byte[totallen];
-
-            if (asset != null) {
-                file = asset.open(filepath);
-            }
-            else if (resolver != null) {
-                file = resolver.openInputStream(uri);
-            }
-            else {
-                file = new FileInputStream(filepath);
-            }
-            while (offset < totallen) {
-                len = file.read(data, offset, totallen - offset);
-                if (len <= 0) {
-                    throw new MidiFileException("Error reading midi file", offset);
+            byte[] data = new byte[4096];
+            int totallen = 0;
+            InputStream file = openStream();
+            try {
+                int len = file.read(data, 0, data.length);
+                while (len >= 0) {
+                    totallen += len;
+                    if (totallen == data.length) {
+                        byte[] newdata = new byte[data.length * 2];
+                        System.arraycopy(data, 0, newdata, 0, totallen);
+                        data = newdata;
+                    }
+                    len = file.read(data, totallen, data.length - totallen);
                 }
-                offset += len;
             }
-            return data;
+            finally {
+                file.close();
+            }
+            byte[] result = new byte[totallen];
+            System.arraycopy(data, 0, result, 0, totallen);
+            return result;
         }
         catch (Exception e) {
             return null;
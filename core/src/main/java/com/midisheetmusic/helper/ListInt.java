@@ -56,6 +56,13 @@ public class ListInt {
         data[index] = x;
     }
 
+    /** Remove the elements from the given index to the end */
+    public void truncate(int size) {
+        if (size < count) {
+            count = size;
+        }
+    }
+
     public boolean contains(int x) {
         for (int i = 0; i < count; i++) {
             if (data[i] == x) {
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.helper;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** @class WorkerPool
+ * A shared, bounded pool of worker threads (one per processor), used to
+ * process independent pieces of a song (such as the tracks) in parallel.
+ *
+ * The threads are daemon threads, and are created the first time the
+ * pool is used.  A task running on the pool must not wait for another
+ * task submitted to the pool, since all the threads may be busy.
+ * RunAll() is the exception: the calling thread runs the tasks that no
+ * worker has started yet, so it never waits for a busy pool.
+ */
+public class WorkerPool {
+    private static ExecutorService executor;  /** The shared executor */
+
+    /** Return the number of worker threads */
+    public static int getThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Return true if running tasks in parallel is worthwhile */
+    public static boolean isParallel() {
+        return getThreads() > 1;
+    }
+
+    /** Return the shared executor */
+    public static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(getThreads(), new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    count++;
+                    Thread thread = new Thread(r, "WorkerPool-" + count);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /** Run the tasks in parallel, and return their results in the same
+     *  order.  The calling thread also runs tasks, starting from the
+     *  first one, while the workers take the others.  If a task throws
+     *  an unchecked exception, the tasks not started yet are cancelled,
+     *  and the exception is thrown here.
+     */
+    public static <T> ArrayList<T> RunAll(ArrayList<Callable<T>> tasks) {
+        ArrayList<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<T>(task));
+        }
+        if (tasks.size() > 1 && isParallel()) {
+            ExecutorService executor = getExecutor();
+            for (int i = 1; i < futures.size(); i++) {
+                executor.execute(futures.get(i));
+            }
+        }
+
+        ArrayList<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (FutureTask<T> future : futures) {
+                /* Does nothing if a worker already ran or started the task */
+                future.run();
+                results.add(getResult(future));
+            }
+        }
+        finally {
+            for (FutureTask<T> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    /** Wait for the task to complete, and return its result.
+     *  If the task threw an unchecked exception, throw it here.
+     */
+    public static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
+
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import com.midisheetmusic.helper.ListInt;
+
+/** @class EventPipeline
+ * The EventPipeline applies the sound options to the events of a track
+ * one event at a time, as they are read.  The EventTable is never
+ * copied or modified.  The transforms are:
+ *
+ * - A tempo event is inserted at the start of the track.
+ * - The note number of NoteOn, NoteOff and KeyPressure events is
+ *   transposed, and clamped to 0-127.
+ * - The instrument of ProgramChange events is replaced, either by the
+ *   instrument of the track, or by the instrument of each channel.
+ * - Each tempo is scaled by tempo/filetempo.
+ * - NoteOn/NoteOff events of muted channels get a velocity of 0.
+ * - If the pause time is not 0, the music starts at the pause time.
+ *   The events before it are replaced by the sysex events before it,
+ *   followed by the channel state (controllers, program, pitch bend and
+ *   pressure) at the pause time, all with a delta time of 0.  The
+ *   channel state comes from the nearest checkpoint of the SeekIndex,
+ *   so only the events since the start of that measure are read.
+ *   The state is sent in the order it was first set, except that the
+ *   Data Entry controllers are sent last, after the RPN/NRPN numbers.
+ *   The tempo at the pause time should be given as the start tempo.
+ *
+ * The options are set once, and then each track is read with:
+ *
+ *   pipeline.Start(table, seekindex, instrument);
+ *   while (pipeline.Next()) {
+ *       ... pipeline.getDeltaTime(), pipeline.getStatus(), etc
+ *   }
+ */
+public class EventPipeline {
+    private int transpose;          /** The amount to transpose the notes by */
+    private int tempo;              /** The new tempo, in microseconds per quarter note */
+    private int filetempo;          /** The tempo of the midi file */
+    private int startTempo;         /** The tempo inserted at the start, or 0 for none */
+    private int pauseTime;          /** The time (in pulses) to start at, or 0 */
+    private boolean[] keepchannel;  /** The channels to play, or null for all */
+    private int[] channelInstruments; /** The instrument per channel, or null */
+
+    /* The state of the track being read */
+    private EventTable table;       /** The events of the track */
+    private SeekIndex seek;         /** The seek index of the track */
+    private int trackInstrument;    /** The instrument of the track, or -1 */
+    private int next;               /** The row of the next event in the table */
+    private boolean startDone;      /** True if the start tempo was returned */
+    private boolean afterPause;     /** True if an event after the pause time was returned */
+    private int sysexNext;          /** The next sysex event before the pause to return */
+    private int sysexEnd;           /** The number of sysex events before the pause */
+    private int[] state;            /** The channel state at the pause time (see SeekIndex) */
+    private ListInt order;          /** The keys of the state, in the order they were set */
+    private int stateNext;          /** The position in order of the next state to return,
+                                     *  plus order.size() for the Data Entry pass */
+
+    /* The current event */
+    private int index;              /** The row of the event in the table, or -1 */
+    private int starttime;          /** The start time of the event */
+    private int deltatime;          /** The delta time of the event */
+    private byte status;            /** The status byte of the event */
+    private byte eventflag;         /** The eventflag of the event */
+    private byte data1;             /** The first data byte of the event */
+    private byte data2;             /** The second data byte of the event */
+    private int eventTempo;         /** The tempo of a tempo event */
+
+    /** Create a pipeline that doesn't change the events */
+    public EventPipeline() {
+        tempo = 1;
+        filetempo = 1;
+    }
+
+    /** Set the amount to transpose the notes by */
+    public void setTranspose(int transpose) { this.transpose = transpose; }
+
+    /** Scale every tempo by tempo/filetempo */
+    public void setTempo(int tempo, int filetempo) {
+        this.tempo = tempo;
+        this.filetempo = filetempo;
+    }
+
+    /** Insert a tempo event with the given tempo at the start of each track */
+    public void setStartTempo(int tempo) { startTempo = tempo; }
+
+    /** Start the music at the given time (in pulses), if not 0 */
+    public void setPauseTime(int pauseTime) {
+        this.pauseTime = pauseTime;
+        if (pauseTime > 0 && state == null) {
+            state = new int[16 * SeekIndex.StateSize];
+            order = new ListInt();
+        }
+    }
+
+    /** Set the channels to play, and the instrument of each channel.
+     *  Either can be null.
+     */
+    public void setChannels(boolean[] keepchannel, int[] instruments) {
+        this.keepchannel = keepchannel;
+        this.channelInstruments = instruments;
+    }
+
+    /** Start reading the events of the given track.  The instrument
+     *  replaces the ProgramChange events, unless it is -1.
+     */
+    public void Start(EventTable table, int instrument) {
+        Start(table, null, instrument);
+    }
+
+    /** Start reading the events of the given track, using its seek
+     *  index to find the channel state at the pause time.  If the seek
+     *  index is null, the state is found by reading the events from the
+     *  start of the track.
+     */
+    public void Start(EventTable table, SeekIndex seek, int instrument) {
+        this.table = table;
+        trackInstrument = instrument;
+        next = 0;
+        startDone = (startTempo == 0);
+        afterPause = (pauseTime == 0);
+        sysexNext = 0;
+        sysexEnd = 0;
+        stateNext = 0;
+        if (order != null) {
+            order.truncate(0);
+        }
+        if (pauseTime <= 0) {
+            return;
+        }
+
+        if (seek == null) {
+            seek = new SeekIndex(table, Integer.MAX_VALUE);
+        }
+        this.seek = seek;
+        int checkpoint = seek.getCheckpoint(pauseTime);
+        seek.LoadState(checkpoint, state, order);
+        int row = seek.getRow(checkpoint);
+        while (row < table.size() && table.getStartTime(row) < pauseTime) {
+            SeekIndex.Apply(table, row, state, order);
+            row++;
+        }
+        next = row;
+        while (sysexEnd < seek.getSysexCount() && seek.getSysexRow(sysexEnd) < row) {
+            sysexEnd++;
+        }
+    }
+
+    /** Set the current event to the given row of the table */
+    private void ReadRow(int row) {
+        index = row;
+        starttime = table.getStartTime(row);
+        deltatime = table.getDeltaTime(row);
+        status = table.getStatus(row);
+        eventflag = table.getEventFlag(row);
+        data1 = table.getData1(row);
+        data2 = table.getData2(row);
+        if (table.isTempo(row)) {
+            eventTempo = table.getTempo(row);
+        }
+    }
+
+    /** Set the current event to the event restoring the given
+     *  channel state key and value.
+     */
+    private void ReadState(int key, int value) {
+        int channel = key / SeekIndex.StateSize;
+        int type = key % SeekIndex.StateSize;
+        index = -1;
+        starttime = pauseTime;
+        deltatime = 0;
+        if (type == SeekIndex.Program) {
+            eventflag = MidiFile.EventProgramChange;
+            data1 = (byte)value;
+            data2 = 0;
+        }
+        else if (type == SeekIndex.PitchBend) {
+            eventflag = MidiFile.EventPitchBend;
+            data1 = (byte)(value & 0xFF);
+            data2 = (byte)(value >> 8);
+        }
+        else if (type == SeekIndex.Pressure) {
+            eventflag = MidiFile.EventChannelPressure;
+            data1 = (byte)value;
+            data2 = 0;
+        }
+        else {
+            eventflag = MidiFile.EventControlChange;
+            data1 = (byte)type;
+            data2 = (byte)value;
+        }
+        status = (byte)(eventflag | channel);
+    }
+
+    /** Read the next event of the track, without the options applied.
+     *  Return false if there are no more events.
+     */
+    private boolean Read() {
+        if (!startDone) {
+            startDone = true;
+            index = -1;
+            starttime = 0;
+            deltatime = 0;
+            status = MidiFile.MetaEvent;
+            eventflag = MidiFile.MetaEvent;
+            data1 = MidiFile.MetaEventTempo;
+            data2 = 0;
+            eventTempo = startTempo;
+            if (!afterPause && pauseTime < 0) {
+                deltatime = -pauseTime;
+                afterPause = true;
+            }
+            return true;
+        }
+        if (sysexNext < sysexEnd) {
+            ReadRow(seek.getSysexRow(sysexNext++));
+            deltatime = 0;
+            return true;
+        }
+        /* Return the state in order, in two passes: first everything
+         * except the Data Entry controllers, then the Data Entry ones.
+         */
+        while (order != null && stateNext < 2 * order.size()) {
+            int key = order.get(stateNext % order.size());
+            boolean dataEntryPass = (stateNext >= order.size());
+            stateNext++;
+            if (SeekIndex.isDataEntry(key) == dataEntryPass) {
+                ReadState(key, state[key] - 1);
+                return true;
+            }
+        }
+        if (next == table.size()) {
+            return false;
+        }
+        ReadRow(next++);
+        if (!afterPause) {
+            deltatime = starttime - pauseTime;
+            afterPause = true;
+        }
+        return true;
+    }
+
+    /** Move to the next event of the track, with the options applied.
+     *  Return false if there are no more events.
+     */
+    public boolean Next() {
+        if (!Read()) {
+            return false;
+        }
+        Transform();
+        return true;
+    }
+
+    /** Apply the transpose, instrument, tempo and mute options to the current event */
+    private void Transform() {
+        if (eventflag == MidiFile.EventNoteOn || eventflag == MidiFile.EventNoteOff ||
+            eventflag == MidiFile.EventKeyPressure) {
+            int num = data1 + transpose;
+            if (num < 0)
+                num = 0;
+            if (num > 127)
+                num = 127;
+            data1 = (byte)num;
+        }
+        else if (eventflag == MidiFile.EventProgramChange) {
+            if (channelInstruments != null) {
+                data1 = (byte)channelInstruments[getChannel()];
+            }
+            else if (trackInstrument >= 0) {
+                data1 = (byte)trackInstrument;
+            }
+        }
+        else if (eventflag == MidiFile.MetaEvent && isTempo()) {
+            eventTempo = (int)((long)eventTempo * tempo / filetempo);
+        }
+
+        if (keepchannel != null && !keepchannel[getChannel()] &&
+            (eventflag == MidiFile.EventNoteOn || eventflag == MidiFile.EventNoteOff)) {
+            data2 = 0;
+        }
+    }
+
+    /** Return the table of the current track */
+    public EventTable getTable() { return table; }
+
+    /** Return the row of the current event in the table, or -1 if the
+     *  event was inserted (the start tempo).
+     */
+    public int getIndex() { return index; }
+
+    /** Return the absolute time of the current event, in pulses */
+    public int getStartTime() { return starttime; }
+
+    /** Return the delta time of the current event */
+    public int getDeltaTime() { return deltatime; }
+
+    /** Return the status byte of the current event */
+    public byte getStatus() { return status; }
+
+    /** Return the eventflag of the current event */
+    public byte getEventFlag() { return eventflag; }
+
+    /** Return the channel of the current event.  This is 0 for meta and sysex events */
+    public int getChannel() {
+        if (EventTable.IsChannelEvent(status)) {
+            return status & 0x0F;
+        }
+        return 0;
+    }
+
+    /** Return the first data byte, or the meta event type */
+    public byte getData1() { return data1; }
+
+    /** Return the second data byte */
+    public byte getData2() { return data2; }
+
+    /** Return the meta event type, for MetaEvent events */
+    public byte getMetaEvent() { return data1; }
+
+    /** Return true if the current event is a tempo meta event */
+    public boolean isTempo() {
+        return status == MidiFile.MetaEvent && data1 == MidiFile.MetaEventTempo;
+    }
+
+    /** Return the tempo, for tempo meta events */
+    public int getTempo() { return eventTempo; }
+}
+
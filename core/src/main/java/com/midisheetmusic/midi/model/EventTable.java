@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.nio.ByteBuffer;
+
+/** @class EventTable
+ * An EventTable contains the raw midi events of a single track.
+ * Instead of creating a MidiEvent object per event, the events are
+ * stored in parallel arrays (one row per event):
+ *
+ * starttimes - The absolute time of each event, in pulses.
+ * deltatimes - The time between the previous event and this one.
+ * events     - The event itself, packed into a long:
+ *              bits  0-7  : The status byte (eventflag + channel)
+ *              bits  8-15 : The first data byte, or the meta event type
+ *              bits 16-23 : The second data byte
+ *              bits 32-63 : For tempo events, the tempo.
+ *                           For other meta/sysex events, the payload index.
+ *
+ * The meta/sysex payloads are not copied.  They point into the arena,
+ * which is the raw midi file data shared by all the tracks.  The
+ * payloadoffsets/payloadlengths give the location of each payload, and
+ * getPayload() returns it as a read-only slice of the arena.
+ *
+ * An EventTable is a MidiEventHandler, so it can be filled directly
+ * by MidiFile.ReadTrack().  The row number is used as the cursor when
+ * scanning the events, for example:
+ *
+ *   for (int i = 0; i < table.size(); i++) {
+ *       if (table.getEventFlag(i) == MidiFile.EventNoteOn) ...
+ *   }
+ */
+public class EventTable implements MidiEventHandler {
+    private int count;               /** The number of events */
+    private int[] starttimes;        /** The start time of each event */
+    private int[] deltatimes;        /** The delta time of each event */
+    private long[] events;           /** The packed status/data of each event */
+
+    private ByteBuffer arena;        /** The data containing the payloads */
+    private int numpayloads;         /** The number of payloads */
+    private int[] payloadoffsets;    /** The offset of each payload in the arena */
+    private int[] payloadlengths;    /** The length of each payload */
+    private boolean sharedpayloads;  /** True if the payload arrays are shared
+                                      *  with another EventTable */
+
+    /** Create an empty EventTable, whose payloads are stored in
+     *  the given arena (the raw midi file data).
+     */
+    public EventTable(ByteBuffer arena) {
+        this.arena = arena;
+        starttimes = new int[20];
+        deltatimes = new int[20];
+        events = new long[20];
+        payloadoffsets = new int[4];
+        payloadlengths = new int[4];
+    }
+
+    /** Create an empty EventTable with room for the given number of
+     *  events.  The payloads are shared with the given EventTable, so
+     *  that its events can be added to this table with AddEvent().
+     */
+    public EventTable(EventTable source, int capacity) {
+        arena = source.arena;
+        starttimes = new int[Math.max(capacity, 1)];
+        deltatimes = new int[starttimes.length];
+        events = new long[starttimes.length];
+        numpayloads = source.numpayloads;
+        payloadoffsets = source.payloadoffsets;
+        payloadlengths = source.payloadlengths;
+        sharedpayloads = true;
+        source.sharedpayloads = true;
+    }
+
+    /** Return a copy of this table.  Only the event arrays are copied,
+     *  the payloads are shared.
+     */
+    public EventTable Copy() {
+        EventTable table = new EventTable(this, count);
+        table.AddEvents(this, 0, count);
+        return table;
+    }
+
+    /** Return the number of events */
+    public int size() { return count; }
+
+    /** Return the absolute time of the event, in pulses */
+    public int getStartTime(int i) { return starttimes[i]; }
+
+    /** Return the time between the previous event and this one */
+    public int getDeltaTime(int i) { return deltatimes[i]; }
+
+    public void setDeltaTime(int i, int value) { deltatimes[i] = value; }
+
+    /** Return the status byte (eventflag + channel) */
+    public byte getStatus(int i) { return (byte)events[i]; }
+
+    /** Return the eventflag (EventNoteOn, MetaEvent, etc), without the channel */
+    public byte getEventFlag(int i) {
+        byte status = (byte)events[i];
+        if (status == MidiFile.SysexEvent1 || status == MidiFile.SysexEvent2 ||
+            status == MidiFile.MetaEvent) {
+            return status;
+        }
+        return (byte)(status & 0xF0);
+    }
+
+    /** Return the channel.  This is 0 for meta and sysex events */
+    public int getChannel(int i) {
+        if (IsChannelEvent(getStatus(i))) {
+            return (int)(events[i] & 0x0F);
+        }
+        return 0;
+    }
+
+    /** Return the first data byte (note number, controller number,
+     *  instrument, or channel pressure).
+     */
+    public byte getData1(int i) { return (byte)(events[i] >> 8); }
+
+    /** Return the second data byte (velocity, key pressure, or controller value) */
+    public byte getData2(int i) { return (byte)(events[i] >> 16); }
+
+    public void setData1(int i, int value) {
+        events[i] = (events[i] & ~0xFF00L) | ((value & 0xFFL) << 8);
+    }
+
+    public void setData2(int i, int value) {
+        events[i] = (events[i] & ~0xFF0000L) | ((value & 0xFFL) << 16);
+    }
+
+    /** Return the pitch bend value, for EventPitchBend events */
+    public short getPitchBend(int i) {
+        return (short)(((getData1(i) & 0xFF) << 8) | (getData2(i) & 0xFF));
+    }
+
+    /** Return the meta event type, for MetaEvent events */
+    public byte getMetaEvent(int i) { return getData1(i); }
+
+    /** Return true if this is a tempo meta event */
+    public boolean isTempo(int i) {
+        return getStatus(i) == MidiFile.MetaEvent &&
+               getMetaEvent(i) == MidiFile.MetaEventTempo;
+    }
+
+    /** Return the tempo, for tempo meta events */
+    public int getTempo(int i) { return (int)(events[i] >>> 32); }
+
+    /** Change the tempo of a tempo meta event */
+    public void setTempo(int i, int tempo) {
+        events[i] = (events[i] & 0xFFFFFFFFL) | ((tempo & 0xFFFFFFFFL) << 32);
+    }
+
+    /** Return the data containing the meta/sysex payloads */
+    public ByteBuffer getArena() { return arena; }
+
+    /** Return the meta/sysex payload as a read-only slice of the arena */
+    public ByteBuffer getPayload(int i) {
+        return MidiFileReader.Slice(arena, getPayloadOffset(i), getPayloadLength(i));
+    }
+
+    /** Return the offset of the meta/sysex payload in the arena */
+    public int getPayloadOffset(int i) {
+        return payloadoffsets[(int)(events[i] >>> 32)];
+    }
+
+    /** Return the length of the meta/sysex payload */
+    public int getPayloadLength(int i) {
+        if (isTempo(i)) {
+            return 3;
+        }
+        return payloadlengths[(int)(events[i] >>> 32)];
+    }
+
+    /** Return true if the status byte is a channel event (NoteOn, etc) */
+    static boolean IsChannelEvent(byte status) {
+        return (status & 0xFF) >= 0x80 && (status & 0xFF) < 0xF0;
+    }
+
+    /** Add an event to the end of the table */
+    private void Add(int starttime, int deltatime, long event) {
+        if (count == events.length) {
+            int newsize = count * 2;
+            int[] newstart = new int[newsize];
+            int[] newdelta = new int[newsize];
+            long[] newevents = new long[newsize];
+            System.arraycopy(starttimes, 0, newstart, 0, count);
+            System.arraycopy(deltatimes, 0, newdelta, 0, count);
+            System.arraycopy(events, 0, newevents, 0, count);
+            starttimes = newstart;
+            deltatimes = newdelta;
+            events = newevents;
+        }
+        starttimes[count] = starttime;
+        deltatimes[count] = deltatime;
+        events[count] = event;
+        count++;
+    }
+
+    /** Add event i of the given table to the end of this table.
+     *  The tables must share their payloads (see EventTable(source, capacity)).
+     */
+    public void AddEvent(EventTable table, int i) {
+        Add(table.starttimes[i], table.deltatimes[i], table.events[i]);
+    }
+
+    /** Add the events [start, start+num) of the given table to the end
+     *  of this table.  The tables must share their payloads.
+     */
+    public void AddEvents(EventTable table, int start, int num) {
+        for (int i = start; i < start + num; i++) {
+            Add(table.starttimes[i], table.deltatimes[i], table.events[i]);
+        }
+    }
+
+    /** Add a tempo meta event to the end of the table */
+    public void AddTempoEvent(int starttime, int deltatime, int tempo) {
+        long event = (MidiFile.MetaEvent & 0xFFL) |
+                     ((MidiFile.MetaEventTempo & 0xFFL) << 8);
+        Add(starttime, deltatime, event);
+        setTempo(count-1, tempo);
+    }
+
+    /** Store the location of a payload, and return its index */
+    private int AddPayload(ByteBuffer data, int offset, int length) {
+        if (data != arena) {
+            throw new IllegalArgumentException("Payload is not in the arena");
+        }
+        if (sharedpayloads || numpayloads == payloadoffsets.length) {
+            int newsize = Math.max(payloadoffsets.length, numpayloads * 2);
+            int[] newoffsets = new int[newsize];
+            int[] newlengths = new int[newsize];
+            System.arraycopy(payloadoffsets, 0, newoffsets, 0, numpayloads);
+            System.arraycopy(payloadlengths, 0, newlengths, 0, numpayloads);
+            payloadoffsets = newoffsets;
+            payloadlengths = newlengths;
+            sharedpayloads = false;
+        }
+        payloadoffsets[numpayloads] = offset;
+        payloadlengths[numpayloads] = length;
+        numpayloads++;
+        return numpayloads-1;
+    }
+
+    public void startTrack(int tracknum) {
+    }
+
+    public void channelEvent(int deltatime, int starttime, int eventflag,
+                             int channel, int data1, int data2) {
+        long event = ((eventflag + channel) & 0xFFL) |
+                     ((data1 & 0xFFL) << 8) | ((data2 & 0xFFL) << 16);
+        Add(starttime, deltatime, event);
+    }
+
+    public void metaEvent(int deltatime, int starttime, int metaevent,
+                          ByteBuffer data, int offset, int length) {
+        if (metaevent == MidiFile.MetaEventTempo) {
+            AddTempoEvent(starttime, deltatime, MidiFile.TempoValue(data, offset));
+            return;
+        }
+        int index = AddPayload(data, offset, length);
+        long event = (MidiFile.MetaEvent & 0xFFL) | ((metaevent & 0xFFL) << 8) |
+                     ((long)index << 32);
+        Add(starttime, deltatime, event);
+    }
+
+    public void sysexEvent(int deltatime, int starttime, int eventflag,
+                           ByteBuffer data, int offset, int length) {
+        int index = AddPayload(data, offset, length);
+        long event = (eventflag & 0xFFL) | ((long)index << 32);
+        Add(starttime, deltatime, event);
+    }
+
+    public void endTrack(int tracknum) {
+    }
+
+    /** Return event i as a MidiEvent.  The MidiEvent is a copy, so
+     *  changing it does not change this table.
+     */
+    public MidiEvent GetEvent(int i) {
+        byte eventflag = getEventFlag(i);
+        if (eventflag == MidiFile.MetaEvent) {
+            if (isTempo(i)) {
+                MidiEvent mevent = new MidiEvent();
+                mevent.DeltaTime = deltatimes[i];
+                mevent.StartTime = starttimes[i];
+                mevent.HasEventflag = true;
+                mevent.EventFlag = MidiFile.MetaEvent;
+                mevent.Metaevent = MidiFile.MetaEventTempo;
+                mevent.Metalength = 3;
+                mevent.Tempo = getTempo(i);
+                mevent.Value = new byte[] { (byte)(mevent.Tempo >> 16),
+                                            (byte)(mevent.Tempo >> 8),
+                                            (byte)mevent.Tempo };
+                return mevent;
+            }
+            return MidiFile.CreateMetaEvent(deltatimes[i], starttimes[i],
+                                            getMetaEvent(i), arena,
+                                            getPayloadOffset(i), getPayloadLength(i));
+        }
+
+        MidiEvent mevent = new MidiEvent();
+        mevent.DeltaTime = deltatimes[i];
+        mevent.StartTime = starttimes[i];
+        mevent.HasEventflag = true;
+        mevent.EventFlag = eventflag;
+        mevent.Channel = (byte)getChannel(i);
+        if (eventflag == MidiFile.SysexEvent1 || eventflag == MidiFile.SysexEvent2) {
+            mevent.Metalength = getPayloadLength(i);
+            mevent.Value = new byte[mevent.Metalength];
+            getPayload(i).get(mevent.Value);
+        }
+        else if (eventflag == MidiFile.EventNoteOn || eventflag == MidiFile.EventNoteOff) {
+            mevent.Notenumber = getData1(i);
+            mevent.Velocity = getData2(i);
+        }
+        else if (eventflag == MidiFile.EventKeyPressure) {
+            mevent.Notenumber = getData1(i);
+            mevent.KeyPressure = getData2(i);
+        }
+        else if (eventflag == MidiFile.EventControlChange) {
+            mevent.ControlNum = getData1(i);
+            mevent.ControlValue = getData2(i);
+        }
+        else if (eventflag == MidiFile.EventProgramChange) {
+            mevent.Instrument = getData1(i);
+        }
+        else if (eventflag == MidiFile.EventChannelPressure) {
+            mevent.ChanPressure = getData1(i);
+        }
+        else if (eventflag == MidiFile.EventPitchBend) {
+            mevent.PitchBend = getPitchBend(i);
+        }
+        return mevent;
+    }
+}
+
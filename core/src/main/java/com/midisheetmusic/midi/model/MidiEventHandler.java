@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.nio.ByteBuffer;
+
+/** @interface MidiEventHandler
+ * A MidiEventHandler receives the events of a Midi track as they are
+ * decoded by MidiFile.ReadTrack(), without a MidiEvent object being
+ * created for each event.
+ *
+ * All the values are passed as primitive fields:
+ *
+ * deltatime - The time between the previous event and this one, in pulses.
+ * starttime - The absolute time of this event, in pulses.
+ * eventflag - The event code with the channel removed (EventNoteOn,
+ *             EventControlChange, etc), or SysexEvent1/SysexEvent2.
+ * channel   - The channel (0 thru 15) of a channel event.
+ * data1     - The first data byte (note number, controller number,
+ *             program, channel pressure, or high byte of the pitch bend).
+ * data2     - The second data byte (velocity, key pressure, controller
+ *             value, or low byte of the pitch bend).  0 if unused.
+ *
+ * For meta and sysex events, the payload is not copied.  Instead, the
+ * raw file data is passed along with the offset and length of the
+ * payload.  A handler that needs to keep the payload can keep the offset,
+ * copy the bytes, or use MidiFileReader.Slice() for a read-only view.
+ */
+public interface MidiEventHandler {
+
+    /** Called before the first event of the given track */
+    void startTrack(int tracknum);
+
+    /** Called for each channel event (NoteOn, NoteOff, ControlChange, etc) */
+    void channelEvent(int deltatime, int starttime, int eventflag,
+                      int channel, int data1, int data2);
+
+    /** Called for each meta event.  The payload is data[offset : offset+length] */
+    void metaEvent(int deltatime, int starttime, int metaevent,
+                   ByteBuffer data, int offset, int length);
+
+    /** Called for each sysex event.  The payload is data[offset : offset+length] */
+    void sysexEvent(int deltatime, int starttime, int eventflag,
+                    ByteBuffer data, int offset, int length);
+
+    /** Called after the last event of the given track */
+    void endTrack(int tracknum);
+}
+
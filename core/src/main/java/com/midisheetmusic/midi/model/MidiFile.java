@@ -14,18 +14,15 @@
 package com.midisheetmusic.midi.model;
 
 import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.midisheetmusic.core.model.TimeSignature;
 import com.midisheetmusic.helper.ListInt;
-
-/** @class Pair - A pair of ints */
-class PairInt {
-    public int low;
-    public int high;
-}
-
-
+import com.midisheetmusic.helper.WorkerPool;
 
 /* MIDI file format.
  *
@@ -166,12 +163,15 @@ class PairInt {
  * - The time signature (e.g. 4/4, 3/4, 6/8)
  * - The number of pulses per quarter note.
  * - The tempo (number of microseconds per quarter note).
+ * - The tempo map, with every tempo change in the song.
  *
  * The constructor takes a filename as input, and upon returning,
  * contains the parsed data from the midi file.
  *
  * The methods ReadTrack() and ReadMetaEvent() are helper functions called
- * by the constructor during the parsing.
+ * by the constructor during the parsing.  ReadTrack() passes each event
+ * to a MidiEventHandler, so the notes can be created without first
+ * building a list of MidiEvents.
  *
  * After the MidiFile is parsed and created, the user can retrieve the 
  * tracks and notes by using the property Tracks and Tracks.Notes.
@@ -188,18 +188,25 @@ class PairInt {
  *     RoundStartTimes()
  *     RoundDurations()
  *
- * - ChangeSound()
- *   Apply the menu options to the MIDI music data, and save the modified midi data 
- *   to a file, for playback. 
+ * - Render()
+ *   Apply the menu options to the MIDI music data, and return the modified
+ *   midi data in a reusable memory buffer.
  *   
  */
 
 public class MidiFile {
     private String filename;          /** The Midi file name */
-    private ArrayList<ArrayList<MidiEvent>> allevents; /** The raw MidiEvents, one list per track */
+    private ByteBuffer rawdata;       /** The raw midi file data */
+    private int[] trackoffsets;       /** The offset of each MTrk chunk in rawdata */
+    private ArrayList<SoftReference<EventTable>> allevents; /** The raw midi events, one table
+                                                             *  per track.  Decoded on demand
+                                                             *  by getEvents() */
+    private SeekIndex[] seekindexes;  /** The seek index of each track, created on demand
+                                       *  by getSeekIndex() */
     private ArrayList<MidiTrack> tracks ;  /** The tracks of the midifile that have notes */
     private short trackmode;         /** 0 (single track), 1 (simultaneous tracks) 2 (independent tracks) */
     private TimeSignature timesig;    /** The time signature */
+    private TempoMap tempomap;        /** The tempo changes, for converting pulses to time */
     private int quarternote;          /** The number of pulses per quarter note */
     private int totalpulses;          /** The total length of the song, in pulses */
     private boolean trackPerChannel;  /** True if we've split each channel into a track */
@@ -230,6 +237,11 @@ public class MidiFile {
     public static final byte MetaEventTimeSignature = (byte)0x58;
     public static final byte MetaEventKeySignature  = (byte)0x59;
 
+    /* The most bytes ReadTrack() reads for the header of an event: a 4 byte
+     * delta time, the event flag, the meta event type and a 4 byte length.
+     */
+    private static final int MaxEventHeader = 10;
+
     /* The Program Change event gives the instrument that should
      * be used for a particular channel.  The following table
      * maps each instrument number (0 thru 128) to an instrument
@@ -429,34 +441,90 @@ public class MidiFile {
     /** Get the time signature */
     public TimeSignature getTime() { return timesig; }
 
+    /** Get the tempo map, for converting between pulses and time */
+    public TempoMap getTempoMap() { return tempomap; }
+
     /** Get the file name */
     public String getFileName() { return filename; }
 
     /** Get the total length (in pulses) of the song */
     public int getTotalPulses() { return totalpulses; }
 
+    /** Get the raw midi file data */
+    ByteBuffer getData() { return rawdata; }
+
+    /** Get the offset of each MTrk chunk in the raw data */
+    int[] getTrackOffsets() { return trackoffsets; }
+
+    /** Get the track mode: 0 (single track), 1 (simultaneous tracks) 2 (independent tracks) */
+    short getTrackMode() { return trackmode; }
+
+    /** Return true if we've split each channel into a track */
+    boolean isTrackPerChannel() { return trackPerChannel; }
+
 
     /** Create a new MidiFile from the byte[] */
     public MidiFile(byte[] rawdata, String filename) {
+        this(ByteBuffer.wrap(rawdata), filename);
+    }
+
+    /** Create a new MidiFile from the ByteBuffer, for example a file
+     *  mapped with MidiFileReader.MapFile().  The data must not change
+     *  while the MidiFile is in use.
+     */
+    public MidiFile(ByteBuffer rawdata, String filename) {
+        this.filename = filename;
+        parse(rawdata, null);
+    }
+
+    /** Create a new MidiFile from the data, using the TrackIndex of each
+     *  track that was already read by the MidiFileBuilder.
+     */
+    MidiFile(ByteBuffer rawdata, String filename, TrackIndex[] indexes) {
         this.filename = filename;
-        parse(rawdata);
+        parse(rawdata, indexes);
+    }
+
+    /** Create a MidiFile from the values saved by the MidiFileCache,
+     *  instead of parsing the raw data.
+     */
+    MidiFile(ByteBuffer rawdata, String filename, short trackmode,
+             int totalpulses, boolean trackPerChannel, int[] trackoffsets,
+             TimeSignature timesig, TempoMap tempomap, ArrayList<MidiTrack> tracks) {
+        this.filename = filename;
+        this.rawdata = new MidiFileReader(rawdata).GetData();
+        this.trackmode = trackmode;
+        this.quarternote = timesig.getQuarter();
+        this.totalpulses = totalpulses;
+        this.trackPerChannel = trackPerChannel;
+        this.trackoffsets = trackoffsets;
+        this.timesig = timesig;
+        this.tempomap = tempomap;
+        this.tracks = tracks;
     }
 
     /** Parse the given Midi file, and return an instance of this MidiFile
      * class.  After reading the midi file, this object will contain:
-     * - The raw list of midi events
      * - The Time Signature of the song
      * - All the tracks in the song which contain notes. 
      * - The number, starttime, and duration of each note.
+     *
+     * Each track is only indexed here (see TrackIndex), which gives the
+     * number of notes, the instrument, the tempo, etc.  The MidiNotes of
+     * a track are decoded the first time the track's notes are needed,
+     * and the raw midi events are only decoded when they're needed for
+     * playback (see getEvents()).  If the tracks were already indexed,
+     * the indexes are given, and the tracks are not read again.
      */
-    private void parse(byte[] rawdata) {
+    private void parse(ByteBuffer rawdata, TrackIndex[] indexes) {
         String id;
         int len;
 
+        MidiFileReader file = new MidiFileReader(rawdata);
+        this.rawdata = rawdata = file.GetData();
         tracks = new ArrayList<MidiTrack>();
         trackPerChannel = false;
 
-        MidiFileReader file = new MidiFileReader(rawdata);
         id = file.ReadAscii(4);
         if (!id.equals("MThd")) {
             throw new MidiFileException("Doesn't start with MThd", 0);
@@ -469,49 +537,56 @@ public class MidiFile {
         int num_tracks = file.ReadShort();
         quarternote = file.ReadShort(); 
 
-        allevents = new ArrayList<ArrayList<MidiEvent>>();
-        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
-            allevents.add(ReadTrack(file));
-            MidiTrack track = new MidiTrack(allevents.get(tracknum), tracknum);
-            if (track.getNotes().size() > 0) {
-                tracks.add(track);
-            }
+        TrackIndex[] results = indexes;
+        if (results == null) {
+            results = ParseTracks(rawdata, file.GetOffset(), num_tracks);
         }
-
-        /* Get the length of the song in pulses */
-        for (MidiTrack track : tracks) {
-            MidiNote last = track.getNotes().get( track.getNotes().size()-1 );
-            if (this.totalpulses < last.getStartTime() + last.getDuration()) {
-                this.totalpulses = last.getStartTime() + last.getDuration();
+        trackoffsets = new int[num_tracks];
+        TrackIndex first = null;
+        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+            TrackIndex index = results[tracknum];
+            trackoffsets[tracknum] = index.getOffset();
+            if (index.getNoteCount() > 0) {
+                if (!index.isSorted()) {
+                    throw new MidiFileException("Internal parsing error", 0);
+                }
+                tracks.add(new MidiTrack(index, rawdata));
+                if (first == null) {
+                    first = index;
+                }
+                /* Get the length of the song in pulses */
+                if (this.totalpulses < index.getLastEndTime()) {
+                    this.totalpulses = index.getLastEndTime();
+                }
             }
         }
 
         /* If we only have one track with multiple channels, then treat
          * each channel as a separate track.
          */
-        if (tracks.size() == 1 && HasMultipleChannels(tracks.get(0))) {
-            tracks = SplitChannels(tracks.get(0), allevents.get(tracks.get(0).trackNumber() ));
+        if (tracks.size() == 1 && Integer.bitCount(first.getChannelMask()) > 1) {
+            tracks = SplitChannels(tracks.get(0), first.getChannelInstruments());
             trackPerChannel = true;
+            CheckStartTimes(tracks);
         }
 
-        CheckStartTimes(tracks);
-
-        /* Determine the time signature */
-        int tempoCount = 0;
+        /* Determine the time signature, and the tempo map */
         long tempo = 0;
+        int tempoCount = 0;
         int numer = 0;
         int denom = 0;
-        for (ArrayList<MidiEvent> list : allevents) {
-            for (MidiEvent mevent : list) {
-                if (mevent.Metaevent == MetaEventTempo) {
-                    // Take average of all tempos
-                    tempo += mevent.Tempo;
-                    tempoCount++;
-                }
-                if (mevent.Metaevent == MetaEventTimeSignature && numer == 0) {
-                    numer = mevent.Numerator;
-                    denom = mevent.Denominator;
-                }
+        ListInt tempoTimes = new ListInt();
+        ListInt tempoValues = new ListInt();
+        for (TrackIndex index : results) {
+            tempo += index.getTempoSum();
+            tempoCount += index.getTempoCount();
+            for (int i = 0; i < index.getTempoTimes().size(); i++) {
+                tempoTimes.add(index.getTempoTimes().get(i));
+                tempoValues.add(index.getTempoValues().get(i));
+            }
+            if (numer == 0) {
+                numer = index.getNumerator();
+                denom = index.getDenominator();
             }
         }
         if (tempo == 0) {
@@ -524,15 +599,176 @@ public class MidiFile {
             numer = 4; denom = 4;
         }
         timesig = new TimeSignature(numer, denom, quarternote, (int)tempo);
+        tempomap = new TempoMap(quarternote, tempoTimes, tempoValues);
+    }
+
+
+    /** Find the offset of each MTrk chunk, by reading only the chunk
+     *  headers.  The chunks are assumed to follow each other exactly as
+     *  given by their lengths.  Stop at the first chunk header that is
+     *  past the end of the data.  Return the number of offsets found.
+     */
+    private static int
+    ScanTracks(ByteBuffer data, int offset, int[] offsets) {
+        int count = 0;
+        while (count < offsets.length && offset >= 0 && offset + 8 <= data.limit()) {
+            offsets[count] = offset;
+            count++;
+            int len = data.getInt(offset + 4);
+            offset = offset + 8 + len;
+        }
+        return count;
+    }
+
+    /** Index the single track starting at the given offset. */
+    private static TrackIndex 
+    ParseTrack(ByteBuffer data, int offset, int tracknum) {
+        TrackIndex index = new TrackIndex(tracknum, offset);
+        index.Read(data);
+        return index;
+    }
+
+    /** Index the tracks, which start at the given offset.
+     *
+     *  First, ScanTracks() finds the offset of each MTrk chunk, and the
+     *  chunks are indexed in parallel on the WorkerPool.  Then the results
+     *  are checked in track order.  If a track did not end exactly where
+     *  the next chunk starts (because the track length in the file is
+     *  wrong, or the file is truncated), the rest of the tracks are indexed
+     *  sequentially from where the previous track ended.  So the result
+     *  is always identical to reading the tracks one after another.
+     */
+    private static TrackIndex[]
+    ParseTracks(final ByteBuffer data, int offset, int num_tracks) {
+        int[] offsets = new int[num_tracks];
+        int scanned = ScanTracks(data, offset, offsets);
+
+        ArrayList<Future<TrackIndex>> futures = null;
+        if (scanned > 1 && WorkerPool.isParallel()) {
+            futures = new ArrayList<Future<TrackIndex>>(scanned);
+            ExecutorService executor = WorkerPool.getExecutor();
+            for (int tracknum = 0; tracknum < scanned; tracknum++) {
+                final int trackoffset = offsets[tracknum];
+                final int num = tracknum;
+                futures.add(executor.submit(new Callable<TrackIndex>() {
+                    public TrackIndex call() {
+                        return ParseTrack(data, trackoffset, num);
+                    }
+                }));
+            }
+        }
+
+        TrackIndex[] results = new TrackIndex[num_tracks];
+        try {
+            for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+                if (futures != null && tracknum < scanned && offsets[tracknum] == offset) {
+                    results[tracknum] = WorkerPool.getResult(futures.get(tracknum));
+                }
+                else {
+                    results[tracknum] = ParseTrack(data, offset, tracknum);
+                }
+                offset = results[tracknum].getEndOffset();
+            }
+        }
+        finally {
+            if (futures != null) {
+                for (Future<TrackIndex> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return results;
+    }
+
+
+    /** Create a MidiEvent for the given meta event.  The payload
+     *  data[offset : offset+length] is copied into the event.
+     */
+    static MidiEvent CreateMetaEvent(int deltatime, int starttime, int metaevent,
+                                     ByteBuffer data, int offset, int length) {
+        MidiEvent mevent = new MidiEvent();
+        mevent.DeltaTime = deltatime;
+        mevent.StartTime = starttime;
+        mevent.HasEventflag = true;
+        mevent.EventFlag = MetaEvent;
+        mevent.Metaevent = (byte)metaevent;
+        mevent.Metalength = length;
+        mevent.Value = new byte[length];
+        MidiFileReader.Slice(data, offset, length).get(mevent.Value);
+        if (mevent.Metaevent == MetaEventTimeSignature) {
+            mevent.Numerator = ((byte)mevent.Value[0]);
+            mevent.Denominator = ((byte)Math.pow(2, mevent.Value[1]));
+        }
+        else if (mevent.Metaevent == MetaEventTempo) {
+            mevent.Tempo = TempoValue(data, offset);
+        }
+        return mevent;
+    }
+
+    /** Return the tempo (microseconds per quarter note) stored in
+     *  the 3 bytes data[offset : offset+3] of a tempo meta event.
+     */
+    static int TempoValue(ByteBuffer data, int offset) {
+        return ((data.get(offset) & 0xFF) << 16) | 
+               ((data.get(offset+1) & 0xFF) << 8) | 
+                (data.get(offset+2) & 0xFF);
+    }
+
+
+    /** Return the raw midi events of the given track.  The events are
+     *  only decoded the first time this is called.  The EventTable is
+     *  kept with a SoftReference, so it is decoded again if it was freed.
+     */
+    private synchronized EventTable getEvents(int tracknum) {
+        if (allevents == null) {
+            allevents = new ArrayList<SoftReference<EventTable>>(trackoffsets.length);
+            for (int i = 0; i < trackoffsets.length; i++) {
+                allevents.add(null);
+            }
+        }
+        SoftReference<EventTable> ref = allevents.get(tracknum);
+        EventTable table = (ref == null) ? null : ref.get();
+        if (table == null) {
+            MidiFileReader file = new MidiFileReader(rawdata);
+            file.Skip(trackoffsets[tracknum]);
+            table = new EventTable(rawdata);
+            ReadTrack(file, tracknum, table);
+            allevents.set(tracknum, new SoftReference<EventTable>(table));
+        }
+        return table;
+    }
+
+
+    /** Return the seek index of the given track, whose events are given.
+     *  The index is created the first time it's needed, with a
+     *  checkpoint at the start of every measure.
+     */
+    private synchronized SeekIndex getSeekIndex(int tracknum, EventTable events) {
+        if (seekindexes == null) {
+            seekindexes = new SeekIndex[trackoffsets.length];
+        }
+        if (seekindexes[tracknum] == null) {
+            seekindexes[tracknum] = new SeekIndex(events, timesig.getMeasure());
+        }
+        return seekindexes[tracknum];
     }
 
-    /** Parse a single Midi track into a list of MidiEvents.
+
+    /** Parse a single Midi track, and pass each event to the given
+     * MidiEventHandler.  No MidiEvent objects are created, and the
+     * meta/sysex payloads are not copied.
+     *
      * Entering this function, the file offset should be at the start of
      * the MTrk header.  Upon exiting, the file offset should be at the
      * start of the next MTrk header.
+     *
+     * The single byte reads of the events don't check the bounds of the
+     * data.  The track length is checked once against the data instead,
+     * and only the events in the last MaxEventHeader bytes of the data
+     * are checked before reading them (see CheckEvent()).
      */
-    private ArrayList<MidiEvent> ReadTrack(MidiFileReader file) {
-        ArrayList<MidiEvent> result = new ArrayList<MidiEvent>(20);
+    public static void
+    ReadTrack(MidiFileReader file, int tracknum, MidiEventHandler handler) {
         int starttime = 0;
         String id = file.ReadAscii(4);
 
@@ -540,133 +776,192 @@ public class MidiFile {
             throw new MidiFileException("Bad MTrk header", file.GetOffset() - 4);
         }
         int tracklen = file.ReadInt();
+        if (tracklen > file.remaining()) {
+            tracklen = file.remaining();
+        }
         int trackend = tracklen + file.GetOffset();
+        ByteBuffer data = file.GetData();
+        int checkstart = data.limit() - MaxEventHeader;
 
         byte eventflag = 0;
 
+        handler.startTrack(tracknum);
         while (file.GetOffset() < trackend) {
 
             // If the midi file is truncated here, we can still recover.
             // Just return what we've parsed so far.
-
-            int startoffset, deltatime;
-            byte peekevent;
-            try {
-                startoffset = file.GetOffset();
-                deltatime = file.ReadVarlen();
-                starttime += deltatime;
-                peekevent = file.Peek();
-            }
-            catch (MidiFileException e) {
-                return result;
+            if (file.GetOffset() > checkstart && 
+                !CheckEvent(data, file.GetOffset(), eventflag)) {
+                file.Skip(file.remaining());
+                break;
             }
 
-            MidiEvent mevent = new MidiEvent();
-            result.add(mevent);
-            mevent.DeltaTime = deltatime;
-            mevent.StartTime = starttime;
+            int deltatime = file.ReadVarlen();
+            starttime += deltatime;
+            byte peekevent = file.Peek();
 
             // if (peekevent >= EventNoteOff) { 
             if (peekevent < 0) {
-                mevent.HasEventflag = true; 
                 eventflag = file.ReadByte();
             }
 
-            //Log.e("madhav", "offset " + startoffset + 
-            //                " event " + eventflag + " " + EventName(eventflag) +
-            //                " start " + starttime + " delta " + mevent.DeltaTime);
-
             if (eventflag >= EventNoteOn && eventflag < EventNoteOn + 16) {
-                mevent.EventFlag = EventNoteOn;
-                mevent.Channel = ((byte)(eventflag - EventNoteOn));
-                mevent.Notenumber = file.ReadByte();
-                mevent.Velocity = file.ReadByte();
+                int channel = eventflag - EventNoteOn;
+                byte notenumber = file.ReadByte();
+                byte velocity = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventNoteOn, 
+                                     channel, notenumber, velocity);
             }
             else if (eventflag >= EventNoteOff && eventflag < EventNoteOff + 16) {
-                mevent.EventFlag = EventNoteOff;
-                mevent.Channel = ((byte)(eventflag - EventNoteOff));
-                mevent.Notenumber = file.ReadByte();
-                mevent.Velocity = file.ReadByte();
+                int channel = eventflag - EventNoteOff;
+                byte notenumber = file.ReadByte();
+                byte velocity = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventNoteOff, 
+                                     channel, notenumber, velocity);
             }
             else if (eventflag >= EventKeyPressure && 
                      eventflag < EventKeyPressure + 16) {
-                mevent.EventFlag = EventKeyPressure;
-                mevent.Channel = ((byte)(eventflag - EventKeyPressure));
-                mevent.Notenumber = file.ReadByte();
-                mevent.KeyPressure = file.ReadByte();
+                int channel = eventflag - EventKeyPressure;
+                byte notenumber = file.ReadByte();
+                byte pressure = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventKeyPressure, 
+                                     channel, notenumber, pressure);
             }
             else if (eventflag >= EventControlChange && 
                      eventflag < EventControlChange + 16) {
-                mevent.EventFlag = EventControlChange;
-                mevent.Channel = ((byte)(eventflag - EventControlChange));
-                mevent.ControlNum = file.ReadByte();
-                mevent.ControlValue = file.ReadByte();
+                int channel = eventflag - EventControlChange;
+                byte controlnum = file.ReadByte();
+                byte controlvalue = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventControlChange, 
+                                     channel, controlnum, controlvalue);
             }
             else if (eventflag >= EventProgramChange && 
                      eventflag < EventProgramChange + 16) {
-                mevent.EventFlag = EventProgramChange;
-                mevent.Channel = ((byte)(eventflag - EventProgramChange));
-                mevent.Instrument = file.ReadByte();
+                int channel = eventflag - EventProgramChange;
+                byte instrument = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventProgramChange, 
+                                     channel, instrument, 0);
             }
             else if (eventflag >= EventChannelPressure && 
                      eventflag < EventChannelPressure + 16) {
-                mevent.EventFlag = EventChannelPressure;
-                mevent.Channel = ((byte)(eventflag - EventChannelPressure));
-                mevent.ChanPressure = file.ReadByte();
+                int channel = eventflag - EventChannelPressure;
+                byte pressure = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventChannelPressure, 
+                                     channel, pressure, 0);
             }
             else if (eventflag >= EventPitchBend && 
                      eventflag < EventPitchBend + 16) {
-                mevent.EventFlag = EventPitchBend;
-                mevent.Channel = ((byte)(eventflag - EventPitchBend));
-                mevent.PitchBend = (short) file.ReadShort();
-            }
-            else if (eventflag == SysexEvent1) {
-                mevent.EventFlag = SysexEvent1;
-                mevent.Metalength = file.ReadVarlen();
-                mevent.Value = file.ReadBytes(mevent.Metalength);
+                int channel = eventflag - EventPitchBend;
+                byte high = file.ReadByte();
+                byte low = file.ReadByte();
+                handler.channelEvent(deltatime, starttime, EventPitchBend, 
+                                     channel, high & 0xFF, low & 0xFF);
             }
-            else if (eventflag == SysexEvent2) {
-                mevent.EventFlag = SysexEvent2;
-                mevent.Metalength = file.ReadVarlen();
-                mevent.Value = file.ReadBytes(mevent.Metalength);
+            else if (eventflag == SysexEvent1 || eventflag == SysexEvent2) {
+                int metalength = file.ReadVarlen();
+                int offset = file.GetOffset();
+                file.Skip(metalength);
+                handler.sysexEvent(deltatime, starttime, eventflag, 
+                                   data, offset, metalength);
             }
             else if (eventflag == MetaEvent) {
-                mevent.EventFlag = MetaEvent;
-                mevent.Metaevent = file.ReadByte();
-                mevent.Metalength = file.ReadVarlen();
-                mevent.Value = file.ReadBytes(mevent.Metalength);
-                if (mevent.Metaevent == MetaEventTimeSignature) {
-                    if (mevent.Metalength < 2) {
+                byte metaevent = file.ReadByte();
+                int metalength = file.ReadVarlen();
+                int offset = file.GetOffset();
+                file.Skip(metalength);
+                if (metaevent == MetaEventTimeSignature) {
+                    if (metalength < 2) {
                         throw new MidiFileException(
-                          "Meta Event Time Signature len == " + mevent.Metalength  + 
+                          "Meta Event Time Signature len == " + metalength  + 
                           " != 4", file.GetOffset());
                     }
-                    else {
-                        mevent.Numerator = ((byte)mevent.Value[0]);
-                        mevent.Denominator = ((byte)Math.pow(2, mevent.Value[1]));
-                    }
                 }
-                else if (mevent.Metaevent == MetaEventTempo) {
-                    if (mevent.Metalength != 3) {
+                else if (metaevent == MetaEventTempo) {
+                    if (metalength != 3) {
                         throw new MidiFileException(
-                          "Meta Event Tempo len == " + mevent.Metalength +
+                          "Meta Event Tempo len == " + metalength +
                           " != 3", file.GetOffset());
                     }
-                    mevent.Tempo = ((mevent.Value[0] & 0xFF) << 16) | 
-                                   ((mevent.Value[1] & 0xFF) << 8) | 
-                                    (mevent.Value[2] & 0xFF);
-                }
-                else if (mevent.Metaevent == MetaEventEndOfTrack) {
-                    /* break;  */
                 }
+                handler.metaEvent(deltatime, starttime, metaevent, 
+                                  data, offset, metalength);
             }
             else {
-                throw new MidiFileException("Unknown event " + mevent.EventFlag,
+                throw new MidiFileException("Unknown event " + eventflag,
                                              file.GetOffset()-1); 
             }
         }
+        handler.endTrack(tracknum);
+    }
 
-        return result;
+    /** Check that the event starting at the given offset (with its delta
+     * time) is inside the data, before ReadTrack() reads it without any
+     * bounds checks.  The sysex/meta data itself is checked by Skip().
+     *
+     * Return false if the data ends in the delta time or before the event
+     * flag, since ReadTrack() can still recover the track up to there
+     * (after skipping the rest of the data).
+     * Throw a MidiFileException if the data ends inside the event.
+     */
+    private static boolean
+    CheckEvent(ByteBuffer data, int offset, byte eventflag) {
+        int limit = data.limit();
+        int count = 0;
+        byte b;
+        do {
+            if (offset >= limit) {
+                return false;
+            }
+            b = data.get(offset++);
+            count++;
+        } while (b < 0 && count < 4);
+
+        if (offset >= limit) {
+            return false;
+        }
+        if (data.get(offset) < 0) {
+            eventflag = data.get(offset++);
+        }
+
+        int length;
+        int kind = eventflag & 0xF0;
+        if (eventflag == MetaEvent) {
+            /* The meta event type, then a varlen */
+            if (offset >= limit) {
+                throw new MidiFileException("File is truncated", offset);
+            }
+            offset++;
+            length = -1;
+        }
+        else if (eventflag == SysexEvent1 || eventflag == SysexEvent2) {
+            length = -1;
+        }
+        else if (kind == (EventProgramChange & 0xF0) || 
+                 kind == (EventChannelPressure & 0xF0)) {
+            length = 1;
+        }
+        else if (kind >= (EventNoteOff & 0xF0) && kind <= (EventPitchBend & 0xF0)) {
+            length = 2;
+        }
+        else {
+            /* ReadTrack() reports the unknown event */
+            length = 0;
+        }
+
+        if (length < 0) {
+            count = 0;
+            do {
+                if (offset >= limit) {
+                    throw new MidiFileException("File is truncated", offset);
+                }
+                b = data.get(offset++);
+                count++;
+            } while (b < 0 && count < 4);
+        }
+        else if (offset + length > limit) {
+            throw new MidiFileException("File is truncated", limit);
+        }
+        return true;
     }
 
     /** Return true if this track contains multiple channels.
@@ -674,9 +969,10 @@ public class MidiFile {
      * then we treat each channel as a separate track.
      */
     static boolean HasMultipleChannels(MidiTrack track) {
-        int channel = track.getNotes().get(0).getChannel();
-        for (MidiNote note : track.getNotes()) {
-            if (note.getChannel() != channel) {
+        NoteTable notes = track.readTable();
+        int channel = notes.getChannel(0);
+        for (int i = 0; i < notes.size(); i++) {
+            if (notes.getChannel(i) != channel) {
                 return true;
             }
         }
@@ -716,382 +1012,134 @@ public class MidiFile {
         }
     }
 
-    /** Write a 4-byte integer to data[offset : offset+4] */
-    private static void IntToBytes(int value, byte[] data, int offset) {
-        data[offset] = (byte)( (value >> 24) & 0xFF );
-        data[offset+1] = (byte)( (value >> 16) & 0xFF );
-        data[offset+2] = (byte)( (value >> 8) & 0xFF );
-        data[offset+3] = (byte)( value & 0xFF );
+    /** Write this Midi file to the given stream.
+     * If options is not null, apply those options to the midi events
+     * before performing the write.  The stream is not closed.
+     */
+    public void Write(OutputStream dest, MidiOptions options)
+      throws IOException {
+        Encode(options, null).WriteTo(dest);
     }
 
-    /** Calculate the track length (in bytes) given a list of Midi events */
-    private static int GetTrackLength(ArrayList<MidiEvent> events) {
-        int len = 0;
-        byte[] buf = new byte[1024];
-        for (MidiEvent mevent : events) {
-            len += VarlenToBytes(mevent.DeltaTime, buf, 0);
-            len += 1;  /* for eventflag */
-            switch (mevent.EventFlag) {
-                case EventNoteOn: len += 2; break;
-                case EventNoteOff: len += 2; break;
-                case EventKeyPressure: len += 2; break;
-                case EventControlChange: len += 2; break;
-                case EventProgramChange: len += 1; break;
-                case EventChannelPressure: len += 1; break;
-                case EventPitchBend: len += 2; break;
-
-                case SysexEvent1: 
-                case SysexEvent2:
-                    len += VarlenToBytes(mevent.Metalength, buf, 0); 
-                    len += mevent.Metalength;
-                    break;
-                case MetaEvent: 
-                    len += 1; 
-                    len += VarlenToBytes(mevent.Metalength, buf, 0); 
-                    len += mevent.Metalength;
-                    break;
-                default: break;
-            }
-        }
-        return len;
+    public void Write(WritableByteChannel dest, MidiOptions options)
+      throws IOException {
+        Encode(options, null).WriteTo(dest);
     }
 
-
-    /** Copy len bytes from src to dest, at the given offsets */
-    private static void
-    ArrayCopy(byte[] src, int srcoffset, byte[] dest, int destoffset, int len) {
-        for (int i = 0; i < len; i++) {
-            dest[destoffset + i] = src[srcoffset + i];
+    /** Render this Midi file into memory, with the options (if not null)
+     *  applied to the midi events.  If the reuse buffer is backed by an
+     *  array, the file is rendered into that array when it is large
+     *  enough, so rendering the song again doesn't allocate a new one.
+     *  Return a buffer holding the midi data, from position 0 to the limit.
+     */
+    public ByteBuffer Render(MidiOptions options, ByteBuffer reuse) {
+        byte[] buffer = null;
+        if (reuse != null && reuse.hasArray() && reuse.arrayOffset() == 0) {
+            buffer = reuse.array();
         }
+        return Encode(options, buffer).getBuffer();
     }
 
-            
-    /** Write the given list of Midi events to a stream/file.
-     *  This method is used for sound playback, for creating new Midi files
-     *  with the tempo, transpose, etc changed.
+    /** Return the MidiWriter holding this Midi file, with the options
+     *  (if not null) applied to the midi events.  This method is used for
+     *  sound playback, for creating new Midi files with the tempo,
+     *  transpose, etc changed.  If buffer is not null, the file is
+     *  encoded into it (or a larger copy of it).
      *
-     *  Return true on success, and false on error.
+     *  The options are applied by an EventPipeline while each track is
+     *  encoded, so the events are not copied.
      */
-    private static void
-    WriteEvents(FileOutputStream file, ArrayList<ArrayList<MidiEvent>> allevents, 
-                  int trackmode, int quarter) throws IOException {
-
-        byte[] buf = new byte[4096];
-
-        /* Write the MThd, len = 6, track mode, number tracks, quarter note */
-        file.write("MThd".getBytes("US-ASCII"), 0, 4);
-        IntToBytes(6, buf, 0);
-        file.write(buf, 0, 4);
-        buf[0] = (byte)(trackmode >> 8); 
-        buf[1] = (byte)(trackmode & 0xFF);
-        file.write(buf, 0, 2);
-        buf[0] = 0; 
-        buf[1] = (byte)allevents.size();
-        file.write(buf, 0, 2);
-        buf[0] = (byte)(quarter >> 8); 
-        buf[1] = (byte)(quarter & 0xFF);
-        file.write(buf, 0, 2);
-
-        for (ArrayList<MidiEvent> list : allevents) {
-            /* Write the MTrk header and track length */
-            file.write("MTrk".getBytes("US-ASCII"), 0, 4);
-            int len = GetTrackLength(list);
-            IntToBytes(len, buf, 0);
-            file.write(buf, 0, 4);
-
-            for (MidiEvent mevent : list) {
-                int varlen = VarlenToBytes(mevent.DeltaTime, buf, 0);
-                file.write(buf, 0, varlen);
-
-                if (mevent.EventFlag == SysexEvent1 ||
-                    mevent.EventFlag == SysexEvent2 ||
-                    mevent.EventFlag == MetaEvent) {
-                    buf[0] = mevent.EventFlag;
-                }
-                else {
-                    buf[0] = (byte)(mevent.EventFlag + mevent.Channel);
-                }
-                file.write(buf, 0, 1);
+    private MidiWriter Encode(MidiOptions options, byte[] buffer) {
+        int num_tracks = trackoffsets.length;
+        int[] instruments = new int[num_tracks];
+        boolean[] keeptracks = new boolean[num_tracks];
+        Arrays.fill(instruments, -1);
+        Arrays.fill(keeptracks, true);
 
-                if (mevent.EventFlag == EventNoteOn) {
-                    buf[0] = mevent.Notenumber;
-                    buf[1] = mevent.Velocity;
-                    file.write(buf, 0, 2);
-                }
-                else if (mevent.EventFlag == EventNoteOff) {
-                    buf[0] = mevent.Notenumber;
-                    buf[1] = mevent.Velocity;
-                    file.write(buf, 0, 2);
-                }
-                else if (mevent.EventFlag == EventKeyPressure) {
-                    buf[0] = mevent.Notenumber;
-                    buf[1] = mevent.KeyPressure;
-                    file.write(buf, 0, 2);
-                }
-                else if (mevent.EventFlag == EventControlChange) {
-                    buf[0] = mevent.ControlNum;
-                    buf[1] = mevent.ControlValue;
-                    file.write(buf, 0, 2);
-                }
-                else if (mevent.EventFlag == EventProgramChange) {
-                    buf[0] = mevent.Instrument;
-                    file.write(buf, 0, 1);
-                }
-                else if (mevent.EventFlag == EventChannelPressure) {
-                    buf[0] = mevent.ChanPressure;
-                    file.write(buf, 0, 1);
-                }
-                else if (mevent.EventFlag == EventPitchBend) {
-                    buf[0] = (byte)(mevent.PitchBend >> 8);
-                    buf[1] = (byte)(mevent.PitchBend & 0xFF);
-                    file.write(buf, 0, 2);
-                }
-                else if (mevent.EventFlag == SysexEvent1) {
-                    int offset = VarlenToBytes(mevent.Metalength, buf, 0);
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
-                }
-                else if (mevent.EventFlag == SysexEvent2) {
-                    int offset = VarlenToBytes(mevent.Metalength, buf, 0);
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
-                }
-                else if (mevent.EventFlag == MetaEvent && mevent.Metaevent == MetaEventTempo) {
-                    buf[0] = mevent.Metaevent;
-                    buf[1] = 3;
-                    buf[2] = (byte)((mevent.Tempo >> 16) & 0xFF);
-                    buf[3] = (byte)((mevent.Tempo >> 8) & 0xFF);
-                    buf[4] = (byte)(mevent.Tempo & 0xFF);
-                    file.write(buf, 0, 5);
-                }
-                else if (mevent.EventFlag == MetaEvent) {
-                    buf[0] = mevent.Metaevent;
-                    int offset = VarlenToBytes(mevent.Metalength, buf, 1) + 1;
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
-                }
+        EventPipeline pipeline = new EventPipeline();
+        if (options != null) {
+            /* Set the tempo at the beginning of each track.  The tempo
+             * events are scaled from the file's average tempo to options.tempo.
+             */
+            pipeline.setTranspose(options.transpose);
+            pipeline.setTempo(options.tempo, timesig.getTempo());
+            pipeline.setStartTempo(tempomap.getTempoAt(Math.max(options.pauseTime, 0)));
+            pipeline.setPauseTime(options.pauseTime);
+            if (trackPerChannel) {
+                ApplyOptionsPerChannel(options, pipeline);
             }
-        }
-        file.close();
-    }
-
-
-    /** Clone the list of MidiEvents */
-    private static ArrayList<ArrayList<MidiEvent>> 
-    CloneMidiEvents(ArrayList<ArrayList<MidiEvent>> origlist) {
-        ArrayList<ArrayList<MidiEvent>> newlist = 
-           new ArrayList<ArrayList<MidiEvent>>(origlist.size());
-        for (int tracknum = 0; tracknum < origlist.size(); tracknum++) {
-            ArrayList<MidiEvent> origevents = origlist.get(tracknum);
-            ArrayList<MidiEvent> newevents = new ArrayList<MidiEvent>(origevents.size());
-            newlist.add(newevents);
-            for (MidiEvent mevent : origevents) {
-                newevents.add( mevent.Clone() );
+            else {
+                ApplyOptionsPerTrack(options, instruments, keeptracks);
             }
         }
-        return newlist;
-    }
 
-    /** Create a new Midi tempo event, with the given tempo  */
-    private static MidiEvent CreateTempoEvent(int tempo) {
-        MidiEvent mevent = new MidiEvent();
-        mevent.DeltaTime = 0;
-        mevent.StartTime = 0;
-        mevent.HasEventflag = true;
-        mevent.EventFlag = MetaEvent;
-        mevent.Metaevent = MetaEventTempo;
-        mevent.Metalength = 3;
-        mevent.Tempo = tempo;
-        return mevent;
-    }
-
-
-    /** Search the events for a ControlChange event with the same
-     *  channel and control number.  If a matching event is found,
-     *  update the control value.  Else, add a new ControlChange event.
-     */
-    private static void
-    UpdateControlChange(ArrayList<MidiEvent> newevents, MidiEvent changeEvent) {
-        for (MidiEvent mevent : newevents) {
-            if ((mevent.EventFlag == changeEvent.EventFlag) &&
-                (mevent.Channel == changeEvent.Channel) &&
-                (mevent.ControlNum == changeEvent.ControlNum)) {
-
-                mevent.ControlValue = changeEvent.ControlValue;
-                return;
+        /* The events of the tracks not included are not decoded */
+        EventTable[] keptevents = new EventTable[num_tracks];
+        int numkept = 0;
+        int capacity = 14;
+        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+            if (keeptracks[tracknum]) {
+                keptevents[tracknum] = getEvents(tracknum);
+                numkept++;
+                capacity += 8 + keptevents[tracknum].size() * 4;
             }
         }
-        newevents.add(changeEvent);
-    }
-
-
-    /** Start the Midi music at the given pause time (in pulses).
-     *  Remove any NoteOn/NoteOff events that occur before the pause time.
-     *  For other events, change the delta-time to 0 if they occur
-     *  before the pause time.  Return the modified Midi Events.
-     */
-    private static 
-    ArrayList<ArrayList<MidiEvent>> StartAtPauseTime(ArrayList<ArrayList<MidiEvent>> list, int pauseTime) {
-        ArrayList<ArrayList<MidiEvent>> newlist = new ArrayList<ArrayList<MidiEvent>>(list.size());
-        for (int tracknum = 0; tracknum < list.size(); tracknum++) {
-            ArrayList<MidiEvent> events = list.get(tracknum);
-            ArrayList<MidiEvent> newevents = new ArrayList<MidiEvent>(events.size());
-            newlist.add(newevents);
-
-            boolean foundEventAfterPause = false;
-            for (MidiEvent mevent : events) {
-
-                if (mevent.StartTime < pauseTime) {
-                    if (mevent.EventFlag == EventNoteOn ||
-                        mevent.EventFlag == EventNoteOff) {
-
-                        /* Skip NoteOn/NoteOff event */
-                    }
-                    else if (mevent.EventFlag == EventControlChange) {
-                        mevent.DeltaTime = 0;
-                        UpdateControlChange(newevents, mevent);
-                    }
-                    else {
-                        mevent.DeltaTime = 0;
-                        newevents.add(mevent);
-                    }
-                }
-                else if (!foundEventAfterPause) {
-                    mevent.DeltaTime = (mevent.StartTime - pauseTime);
-                    newevents.add(mevent);
-                    foundEventAfterPause = true;
-                }
-                else {
-                    newevents.add(mevent);
-                }
+        MidiWriter writer = (buffer != null) ? new MidiWriter(buffer) : new MidiWriter(capacity);
+        writer.WriteHeader(trackmode, numkept, quarternote);
+        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+            if (keeptracks[tracknum]) {
+                EventTable events = keptevents[tracknum];
+                SeekIndex seek = (options != null && options.pauseTime > 0) ?
+                                 getSeekIndex(tracknum, events) : null;
+                pipeline.Start(events, seek, instruments[tracknum]);
+                writer.WriteTrack(pipeline, events.size() + 1);
             }
         }
-        return newlist;
+        return writer;
     }
 
-    /** Write this Midi file to the given file.
-     * If options is not null, apply those options to the midi events
-     * before performing the write.
-     * Return true if the file was saved successfully, else false.
+    /** Determine the instrument of each track, and the tracks to include,
+     *  from the sound options.  The instrument is -1 to keep the
+     *  instruments of the track.
      */
-    public void ChangeSound(FileOutputStream destfile, MidiOptions options)
-      throws IOException {
-        Write(destfile, options);
-    }
-
-    public void Write(FileOutputStream destfile, MidiOptions options) 
-      throws IOException {
-        ArrayList<ArrayList<MidiEvent>> newevents = allevents;
-        if (options != null) {
-            newevents = ApplyOptionsToEvents(options);
-        }
-        WriteEvents(destfile, newevents, trackmode, quarternote);
-    }
-
-    /** Apply the following sound options to the midi events:
-     * - The tempo (the microseconds per pulse)
-     * - The instruments per track
-     * - The note number (transpose value)
-     * - The tracks to include
-     * Return the modified list of midi events.
-     */
-    public ArrayList<ArrayList<MidiEvent>>
-    ApplyOptionsToEvents(MidiOptions options) {
-        int i;
-        if (trackPerChannel) {
-            return ApplyOptionsPerChannel(options);
-        }
-
+    private void
+    ApplyOptionsPerTrack(MidiOptions options, int[] instruments, boolean[] keeptracks) {
         /* A midifile can contain tracks with notes and tracks without notes.
          * The options.tracks and options.instruments are for tracks with notes.
          * So the track numbers in 'options' may not match correctly if the
          * midi file has tracks without notes. Re-compute the instruments, and 
          * tracks to keep.
          */
-        int num_tracks = allevents.size();
-        int[] instruments = new int[num_tracks];
-        boolean[] keeptracks = new boolean[num_tracks];
-        for (i = 0; i < num_tracks; i++) {
-            instruments[i] = 0;
-            keeptracks[i] = true;
+        for (int i = 0; i < instruments.length; i++) {
+            instruments[i] = options.useDefaultInstruments ? -1 : 0;
         }
         for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
             MidiTrack track = tracks.get(tracknum);
             int realtrack = track.trackNumber();
-            instruments[realtrack] = options.instruments[tracknum];
+            if (!options.useDefaultInstruments) {
+                instruments[realtrack] = options.instruments[tracknum];
+            }
             if (options.tracks[tracknum] == false || options.mute[tracknum] == true) {
                 keeptracks[realtrack] = false;
             }
         }
-
-        ArrayList<ArrayList<MidiEvent>> newevents = CloneMidiEvents(allevents);
-
-        /* Set the tempo at the beginning of each track */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            MidiEvent mevent = CreateTempoEvent(options.tempo);
-            newevents.get(tracknum).add(0, mevent);
-        }
-
-        /* Change the note number (transpose), instrument, and tempo */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            for (MidiEvent mevent : newevents.get(tracknum)) {
-                int num = mevent.Notenumber + options.transpose;
-                if (num < 0)
-                    num = 0;
-                if (num > 127)
-                    num = 127;
-                mevent.Notenumber = (byte)num;
-                if (!options.useDefaultInstruments) {
-                    mevent.Instrument = (byte)instruments[tracknum];
-                }
-                mevent.Tempo = options.tempo;
-            }
-        }
-
-        if (options.pauseTime != 0) {
-            newevents = StartAtPauseTime(newevents, options.pauseTime);
-        }
-
-        /* Change the tracks to include */
-        int count = 0;
-        for (int tracknum = 0; tracknum < keeptracks.length; tracknum++) {
-            if (keeptracks[tracknum]) {
-                count++;
-            }
-        }
-        ArrayList<ArrayList<MidiEvent>> result = new ArrayList<ArrayList<MidiEvent>>(count);
-        i = 0;
-        for (int tracknum = 0; tracknum < keeptracks.length; tracknum++) {
-            if (keeptracks[tracknum]) {
-                result.add(newevents.get(tracknum));
-                i++;
-            }
-        }
-        return result;
     }
 
 
-    /** Apply the following sound options to the midi events:
-     * - The tempo (the microseconds per pulse)
-     * - The instruments per track
-     * - The note number (transpose value)
-     * - The tracks to include
-     * Return the modified list of midi events.
+    /** Set the channels to include, and the instrument of each channel,
+     *  from the sound options.
      *
      * This Midi file only has one actual track, but we've split that
      * into multiple fake tracks, one per channel, and displayed that
      * to the end-user.  So changing the instrument, and tracks to
-     * include, is implemented differently than the ApplyOptionsToEvents() method:
+     * include, is implemented differently than the ApplyOptionsPerTrack() method:
      *
      * - We change the instrument based on the channel, not the track.
      * - We include/exclude channels, not tracks.
      * - We exclude a channel by setting the note volume/velocity to 0.
      */
-    public ArrayList<ArrayList<MidiEvent>>
-    ApplyOptionsPerChannel(MidiOptions options) {
-        /* Determine which channels to include/exclude.
-         * Also, determine the instruments for each channel.
-         */
+    private void
+    ApplyOptionsPerChannel(MidiOptions options, EventPipeline pipeline) {
         int[] instruments = new int[16];
         boolean[] keepchannel = new boolean[16];
         for (int i = 0; i < 16; i++) {
@@ -1100,57 +1148,43 @@ public class MidiFile {
         }
         for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
             MidiTrack track = tracks.get(tracknum);
-            int channel = track.getNotes().get(0).getChannel();
+            int channel = track.readTable().getChannel(0);
             instruments[channel] = options.instruments[tracknum];
             if (options.tracks[tracknum] == false || options.mute[tracknum] == true) {
                 keepchannel[channel] = false;
             }
         }
-        
-        ArrayList<ArrayList<MidiEvent>> newevents = CloneMidiEvents(allevents);
-
-        /* Set the tempo at the beginning of each track */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            MidiEvent mevent = CreateTempoEvent(options.tempo);
-            newevents.get(tracknum).add(0, mevent);
-        }
-
-        /* Change the note number (transpose), instrument, and tempo */
-        for (int tracknum = 0; tracknum < newevents.size(); tracknum++) {
-            for (MidiEvent mevent : newevents.get(tracknum)) {
-                int num = mevent.Notenumber + options.transpose;
-                if (num < 0)
-                    num = 0;
-                if (num > 127)
-                    num = 127;
-                mevent.Notenumber = (byte)num;
-                if (!keepchannel[mevent.Channel]) {
-                    mevent.Velocity = 0;
-                }
-                if (!options.useDefaultInstruments) {
-                    mevent.Instrument = (byte)instruments[mevent.Channel];
-                }
-                mevent.Tempo = options.tempo;
-            }
-        }
-        if (options.pauseTime != 0) {
-            newevents = StartAtPauseTime(newevents, options.pauseTime);
-        }
-        return newevents;
+        pipeline.setChannels(keepchannel, options.useDefaultInstruments ? null : instruments);
     }
 
 
     /** Apply the given sheet music options to the MidiNotes.
      *  Return the midi tracks with the changes applied.
+     *
+     *  The work on each track is independent, except for combining the
+     *  start times of all the tracks in RoundStartTimes(), and combining
+     *  the tracks into two staffs.  So the tracks are changed in stages,
+     *  each of which runs a task per track on the WorkerPool:
+     *
+     *  - Clone (and decode) each track.
+     *  - Combine the start times of all the tracks.
+     *  - Round the start times and durations of each track.  Unless the
+     *    tracks are combined into two staffs, also shift and transpose.
+     *  - Combine the tracks into two staffs, then shift and transpose.
      */
-    public ArrayList<MidiTrack> ChangeMidiNotes(MidiOptions options) {
-        ArrayList<MidiTrack> newtracks = new ArrayList<MidiTrack>();
-
+    public ArrayList<MidiTrack> ChangeMidiNotes(final MidiOptions options) {
+        ArrayList<Callable<MidiTrack>> clones = new ArrayList<Callable<MidiTrack>>();
         for (int track = 0; track < tracks.size(); track++) {
             if (options.tracks[track]) {
-                newtracks.add(tracks.get(track).Clone() );
+                final MidiTrack orig = tracks.get(track);
+                clones.add(new Callable<MidiTrack>() {
+                    public MidiTrack call() {
+                        return orig.Clone();
+                    }
+                });
             }
         }
+        ArrayList<MidiTrack> newtracks = WorkerPool.RunAll(clones);
 
         /* To make the sheet music look nicer, we round the start times
          * so that notes close together appear as a single chord.  We
@@ -1161,20 +1195,45 @@ public class MidiFile {
         if (options.time != null) {
             time = options.time;
         }
-        MidiFile.RoundStartTimes(newtracks, options.combineInterval, timesig);
-        MidiFile.RoundDurations(newtracks, time.getQuarter());
+        final int quarter = time.getQuarter();
+        final ListInt starttimes = new ListInt();
+        final int[] intervals = CombineStartTimes(newtracks, options.combineInterval,
+                                                  tempomap, starttimes);
+
+        ArrayList<Callable<MidiTrack>> rounds = new ArrayList<Callable<MidiTrack>>();
+        for (final MidiTrack track : newtracks) {
+            rounds.add(new Callable<MidiTrack>() {
+                public MidiTrack call() {
+                    NoteTable notes = track.getTable();
+                    RoundStartTimes(notes, starttimes, intervals);
+                    RoundDurations(notes, quarter);
+                    if (!options.twoStaffs) {
+                        ShiftAndTranspose(notes, options);
+                    }
+                    return track;
+                }
+            });
+        }
+        WorkerPool.RunAll(rounds);
 
         if (options.twoStaffs) {
             newtracks = MidiFile.CombineToTwoTracks(newtracks, timesig.getMeasure());
+            for (MidiTrack track : newtracks) {
+                ShiftAndTranspose(track.getTable(), options);
+            }
         }
+        return newtracks;
+    }
+
+    /** Apply the shift time and transpose options to the notes of a track */
+    private static void
+    ShiftAndTranspose(NoteTable notes, MidiOptions options) {
         if (options.shifttime != 0) {
-            MidiFile.ShiftTime(newtracks, options.shifttime);
+            notes.ShiftTime(options.shifttime);
         }
         if (options.transpose != 0) {
-            MidiFile.Transpose(newtracks, options.transpose);
+            notes.Transpose(options.transpose);
         }
-
-        return newtracks;
     }
 
 
@@ -1185,9 +1244,7 @@ public class MidiFile {
     ShiftTime(ArrayList<MidiTrack> tracks, int amount)
     {
         for (MidiTrack track : tracks) {
-            for (MidiNote note : track.getNotes()) {
-                note.setStartTime(note.getStartTime() + amount);
-            }
+            track.getTable().ShiftTime(amount);
         }
     }
 
@@ -1196,83 +1253,28 @@ public class MidiFile {
     Transpose(ArrayList<MidiTrack> tracks, int amount)
     {
         for (MidiTrack track : tracks) {
-            for (MidiNote note : track.getNotes()) {
-                note.setNumber(note.getNumber() + amount);
-                if (note.getNumber() < 0) {
-                    note.setNumber(0);
-                }
-            }
+            track.getTable().Transpose(amount);
         }
     }
 
    
-    /* Find the highest and lowest notes that overlap this interval (starttime to endtime).
-     * This method is used by SplitTrack to determine which staff (top or bottom) a note
-     * should go to.
-     *
-     * For more accurate SplitTrack() results, we limit the interval/duration of this note 
-     * (and other notes) to one measure. We care only about high/low notes that are
-     * reasonably close to this note.
-     */
-    private static void
-    FindHighLowNotes(ArrayList<MidiNote> notes, int measurelen, int startindex, 
-                     int starttime, int endtime, PairInt pair) {
-
-        int i = startindex;
-        if (starttime + measurelen < endtime) {
-            endtime = starttime + measurelen;
-        }
-
-        while (i < notes.size() && notes.get(i).getStartTime() < endtime) {
-            if (notes.get(i).getEndTime() < starttime) {
-                i++;
-                continue;
-            }
-            if (notes.get(i).getStartTime() + measurelen < starttime) {
-                i++;
-                continue;
-            }
-            if (pair.high < notes.get(i).getNumber()) {
-                pair.high = notes.get(i).getNumber();
-            }
-            if (pair.low > notes.get(i).getNumber()) {
-                pair.low = notes.get(i).getNumber();
-            }
-            i++;
-        }
-    }
-
-    /* Find the highest and lowest notes that start at this exact start time */
-    private static void
-    FindExactHighLowNotes(ArrayList<MidiNote> notes, int startindex, int starttime,
-                          PairInt pair) {
-
-        int i = startindex;
-
-        while (notes.get(i).getStartTime() < starttime) {
-            i++;
-        }
-
-        while (i < notes.size() && notes.get(i).getStartTime() == starttime) {
-            if (pair.high < notes.get(i).getNumber()) {
-                pair.high = notes.get(i).getNumber();
-            }
-            if (pair.low > notes.get(i).getNumber()) {
-                pair.low = notes.get(i).getNumber();
-            }
-            i++;
-        }
-    }
-
-
- 
     /* Split the given MidiTrack into two tracks, top and bottom.
      * The highest notes will go into top, the lowest into bottom.
      * This function is used to split piano songs into left-hand (bottom)
      * and right-hand (top) tracks.
+     *
+     * The notes are visited in order, and each is added to top or bottom,
+     * so if the notes are sorted by start time and number, both tracks
+     * are sorted too.  CombineToTwoTracks() passes the track made by
+     * CombineToSingleTrack(), whose notes are sorted.  Other tracks are
+     * sorted first.
      */
     public static ArrayList<MidiTrack> SplitTrack(MidiTrack track, int measurelen) {
-        ArrayList<MidiNote> notes = track.getNotes();
+        NoteTable notes = track.readTable();
+        if (!notes.isSorted()) {
+            notes = notes.Clone();
+            notes.Sort();
+        }
         int count = notes.size();
 
         MidiTrack top = new MidiTrack(1);
@@ -1285,17 +1287,11 @@ public class MidiFile {
 
         int prevhigh  = 76; /* E5, top of treble staff */
         int prevlow   = 45; /* A3, bottom of bass staff */
-        int startindex = 0;
+        NoteWindow window = new NoteWindow(notes, measurelen);
 
-        for (MidiNote note : notes) {
+        for (int index = 0; index < count; index++) {
             int high, low, highExact, lowExact;
-            
-            int number = note.getNumber();
-            high = low = highExact = lowExact = number;
-
-            while (notes.get(startindex).getEndTime() < note.getStartTime()) {
-                startindex++;
-            }
+            int number = notes.getNumber(index);
 
             /* I've tried several algorithms for splitting a track in two,
              * and the one below seems to work the best:
@@ -1310,55 +1306,48 @@ public class MidiFile {
              * - Else, look at the previous high/low notes that were more than an 
              *   octave apart.  Choose the closeset note.
              */
-            PairInt pair = new PairInt();
-            pair.high = high; pair.low = low;
-            PairInt pairExact = new PairInt();
-            pairExact.high = highExact; pairExact.low = lowExact;
-
-            FindHighLowNotes(notes, measurelen, startindex, note.getStartTime(), note.getEndTime(), pair);
-            FindExactHighLowNotes(notes, startindex, note.getStartTime(), pairExact);
-
-            high = pair.high; low = pair.low;
-            highExact = pairExact.high; lowExact = pairExact.low;
+            window.Move(index);
+            high = window.getHigh(); low = window.getLow();
+            highExact = window.getExactHigh(); lowExact = window.getExactLow();
 
             if (highExact - number > 12 || number - lowExact > 12) {
                 if (highExact - number <= number - lowExact) {
-                    top.AddNote(note);
+                    top.AddNote(notes, index);
                 }
                 else {
-                    bottom.AddNote(note);
+                    bottom.AddNote(notes, index);
                 }
             } 
             else if (high - number > 12 || number - low > 12) {
                 if (high - number <= number - low) {
-                    top.AddNote(note);
+                    top.AddNote(notes, index);
                 }
                 else {
-                    bottom.AddNote(note);
+                    bottom.AddNote(notes, index);
                 }
             } 
             else if (highExact - lowExact > 12) {
                 if (highExact - number <= number - lowExact) {
-                    top.AddNote(note);
+                    top.AddNote(notes, index);
                 }
                 else {
-                    bottom.AddNote(note);
+                    bottom.AddNote(notes, index);
                 }
             }
             else if (high - low > 12) {
                 if (high - number <= number - low) {
-                    top.AddNote(note);
+                    top.AddNote(notes, index);
                 }
                 else {
-                    bottom.AddNote(note);
+                    bottom.AddNote(notes, index);
                 }
             }
             else {
                 if (prevhigh - number <= number - prevlow) {
-                    top.AddNote(note);
+                    top.AddNote(notes, index);
                 }
                 else {
-                    bottom.AddNote(note);
+                    bottom.AddNote(notes, index);
                 }
             }
 
@@ -1370,17 +1359,59 @@ public class MidiFile {
                 prevlow = low;
             }
         }
+        return result;
+    }
 
-        Collections.sort(top.getNotes(), track.getNotes().get(0) );
-        Collections.sort(bottom.getNotes(), track.getNotes().get(0) );
 
-        return result;
+    /** Return true if the next note of track t1 comes before the next
+     *  note of track t2: it starts earlier, or starts at the same time
+     *  with a lower number.  If both are the same, the lower track is first.
+     */
+    private static boolean
+    NoteBefore(NoteTable[] tables, int[] noteindex, int t1, int t2) {
+        NoteTable notes1 = tables[t1];
+        NoteTable notes2 = tables[t2];
+        int start1 = notes1.getStartTime(noteindex[t1]);
+        int start2 = notes2.getStartTime(noteindex[t2]);
+        if (start1 != start2) {
+            return start1 < start2;
+        }
+        int number1 = notes1.getNumber(noteindex[t1]);
+        int number2 = notes2.getNumber(noteindex[t2]);
+        if (number1 != number2) {
+            return number1 < number2;
+        }
+        return t1 < t2;
+    }
+
+    /** Move the track at heap[pos] down the heap of track numbers,
+     *  until the next note of each track comes before its children's.
+     */
+    private static void
+    SiftDown(NoteTable[] tables, int[] noteindex, int[] heap, int heapsize, int pos) {
+        int tracknum = heap[pos];
+        while (true) {
+            int child = 2*pos + 1;
+            if (child >= heapsize) {
+                break;
+            }
+            if (child + 1 < heapsize && NoteBefore(tables, noteindex, heap[child+1], heap[child])) {
+                child++;
+            }
+            if (!NoteBefore(tables, noteindex, heap[child], tracknum)) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = tracknum;
     }
 
 
     /** Combine the notes in the given tracks into a single MidiTrack. 
      *  The individual tracks are already sorted.  To merge them, we
-     *  use a mergesort-like algorithm.
+     *  use a k-way merge: a heap of the track numbers, ordered by the
+     *  next note of each track, gives the lowest next note.
      */
     public static MidiTrack CombineToSingleTrack(ArrayList<MidiTrack> tracks)
     {
@@ -1391,59 +1422,52 @@ public class MidiFile {
             return result;
         }
         else if (tracks.size() == 1) {
-            MidiTrack track = tracks.get(0);
-            for (MidiNote note : track.getNotes()) {
-                result.AddNote(note);
+            NoteTable notes = tracks.get(0).readTable();
+            for (int i = 0; i < notes.size(); i++) {
+                result.AddNote(notes, i);
             }
             return result;
         }
 
-        int[] noteindex = new int[tracks.size() + 1];
-        int[] notecount = new int[tracks.size() + 1];
-
+        NoteTable[] tables = new NoteTable[tracks.size()];
+        int[] noteindex = new int[tracks.size()];
+        int[] heap = new int[tracks.size()];
+        int heapsize = 0;
         for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
-            noteindex[tracknum] = 0;
-            notecount[tracknum] = tracks.get(tracknum).getNotes().size();
+            tables[tracknum] = tracks.get(tracknum).readTable();
+            if (tables[tracknum].size() > 0) {
+                heap[heapsize++] = tracknum;
+            }
         }
-        MidiNote prevnote = null;
-        while (true) {
-            MidiNote lowestnote = null;
-            int lowestTrack = -1;
-            for (int tracknum = 0; tracknum < tracks.size(); tracknum++) {
-                MidiTrack track = tracks.get(tracknum);
-                if (noteindex[tracknum] >= notecount[tracknum]) {
-                    continue;
-                }
-                MidiNote note = track.getNotes().get( noteindex[tracknum] );
-                if (lowestnote == null) {
-                    lowestnote = note;
-                    lowestTrack = tracknum;
-                }
-                else if (note.getStartTime() < lowestnote.getStartTime()) {
-                    lowestnote = note;
-                    lowestTrack = tracknum;
-                }
-                else if (note.getStartTime() == lowestnote.getStartTime() && note.getNumber() < lowestnote.getNumber()) {
-                    lowestnote = note;
-                    lowestTrack = tracknum;
-                }
+        for (int pos = heapsize/2 - 1; pos >= 0; pos--) {
+            SiftDown(tables, noteindex, heap, heapsize, pos);
+        }
+
+        NoteTable combined = result.getTable();
+        while (heapsize > 0) {
+            int lowestTrack = heap[0];
+            NoteTable notes = tables[lowestTrack];
+            int lowest = noteindex[lowestTrack];
+            noteindex[lowestTrack]++;
+            if (noteindex[lowestTrack] >= notes.size()) {
+                heapsize--;
+                heap[0] = heap[heapsize];
             }
-            if (lowestnote == null) {
-                /* We've finished the merge */
-                break;
+            if (heapsize > 0) {
+                SiftDown(tables, noteindex, heap, heapsize, 0);
             }
-            noteindex[lowestTrack]++;
-            if ((prevnote != null) && (prevnote.getStartTime() == lowestnote.getStartTime()) &&
-                (prevnote.getNumber() == lowestnote.getNumber()) ) {
+
+            int prev = combined.size() - 1;
+            if ((prev >= 0) && (combined.getStartTime(prev) == notes.getStartTime(lowest)) &&
+                (combined.getNumber(prev) == notes.getNumber(lowest)) ) {
 
                 /* Don't add duplicate notes, with the same start time and number */        
-                if (lowestnote.getDuration() > prevnote.getDuration()) {
-                    prevnote.setDuration(lowestnote.getDuration());
+                if (notes.getDuration(lowest) > combined.getDuration(prev)) {
+                    combined.setDuration(prev, notes.getDuration(lowest));
                 }
             }
             else {
-                result.AddNote(lowestnote);
-                prevnote = lowestnote;
+                combined.Add(notes, lowest);
             }
         }
     
@@ -1483,12 +1507,13 @@ public class MidiFile {
      */
     private static void CheckStartTimes(ArrayList<MidiTrack> tracks) {
         for (MidiTrack track : tracks) {
+            NoteTable notes = track.readTable();
             int prevtime = -1;
-            for (MidiNote note : track.getNotes()) {
-                if (note.getStartTime() < prevtime) {
+            for (int i = 0; i < notes.size(); i++) {
+                if (notes.getStartTime(i) < prevtime) {
                     throw new MidiFileException("Internal parsing error", 0);
                 }
-                prevtime = note.getStartTime();
+                prevtime = notes.getStartTime(i);
             }
         }
     }
@@ -1506,49 +1531,77 @@ public class MidiFile {
      * appear in separate vertical columns.  This isn't what we want.
      * We want to align notes with approximately the same start times.
      * So, this function is used to assign the same starttime for notes
-     * that are close together (timewise).
+     * that are close together (timewise).  The tempo map converts the
+     * milliseconds into pulses at each start time.
      */
     public static void
-    RoundStartTimes(ArrayList<MidiTrack> tracks, int millisec, TimeSignature time) {
-        /* Get all the starttimes in all tracks, in sorted order */
+    RoundStartTimes(ArrayList<MidiTrack> tracks, int millisec, TempoMap tempomap) {
         ListInt starttimes = new ListInt();
+        int[] intervals = CombineStartTimes(tracks, millisec, tempomap, starttimes);
         for (MidiTrack track : tracks) {
-            for (MidiNote note : track.getNotes()) {
-                starttimes.add(note.getStartTime());
+            RoundStartTimes(track.getTable(), starttimes, intervals);
+        }
+    }
+
+    /** The first part of RoundStartTimes(), which needs the notes of all
+     *  the tracks.  Fill starttimes with the start times of all the notes,
+     *  sorted, where each start time close to the previous one is replaced
+     *  by the previous one.  Return the interval (in pulses) after each
+     *  start time, within which notes are combined.
+     */
+    private static int[]
+    CombineStartTimes(ArrayList<MidiTrack> tracks, int millisec, TempoMap tempomap,
+                      ListInt starttimes) {
+        /* Get all the starttimes in all tracks, in sorted order */
+        for (MidiTrack track : tracks) {
+            NoteTable notes = track.readTable();
+            for (int i = 0; i < notes.size(); i++) {
+                starttimes.add(notes.getStartTime(i));
             }
         }
         starttimes.sort();
 
-        /* Notes within "millisec" milliseconds apart will be combined. */
-        int interval = time.getQuarter() * millisec * 1000 / time.getTempo();
+        /* Notes within "millisec" milliseconds apart will be combined.
+         * intervals[i] is that number of millisec, in pulses, after starttimes[i].
+         */
+        long micros = millisec * 1000L;
+        int[] intervals = new int[starttimes.size()];
 
         /* If two starttimes are within interval millisec, make them the same */
-        for (int i = 0; i < starttimes.size() - 1; i++) {
-            if (starttimes.get(i+1) - starttimes.get(i) <= interval) {
+        for (int i = 0; i < starttimes.size(); i++) {
+            intervals[i] = tempomap.getInterval(starttimes.get(i), micros);
+            if (i < starttimes.size() - 1 &&
+                starttimes.get(i+1) - starttimes.get(i) <= intervals[i]) {
                 starttimes.set(i+1, starttimes.get(i));
             }
         }
 
         CheckStartTimes(tracks);
+        return intervals;
+    }
 
-        /* Adjust the note starttimes, so that it matches one of the starttimes values */
-        for (MidiTrack track : tracks) {
-            int i = 0;
+    /** The second part of RoundStartTimes(), done separately for each
+     *  track.  Adjust the note starttimes, so that it matches one of the
+     *  starttimes values from CombineStartTimes().
+     */
+    private static void
+    RoundStartTimes(NoteTable notes, ListInt starttimes, int[] intervals) {
+        int i = 0;
 
-            for (MidiNote note : track.getNotes()) {
-                while (i < starttimes.size() &&
-                       note.getStartTime() - interval > starttimes.get(i)) {
-                    i++;
-                }
+        for (int n = 0; n < notes.size(); n++) {
+            int start = notes.getStartTime(n);
+            while (i < starttimes.size() &&
+                   start - intervals[i] > starttimes.get(i)) {
+                i++;
+            }
 
-                if (note.getStartTime() > starttimes.get(i) &&
-                    note.getStartTime() - starttimes.get(i) <= interval) {
+            if (start > starttimes.get(i) &&
+                start - starttimes.get(i) <= intervals[i]) {
 
-                    note.setStartTime(starttimes.get(i));
-                }
+                notes.setStartTime(n, starttimes.get(i));
             }
-            Collections.sort(track.getNotes(), track.getNotes().get(0));
         }
+        notes.Sort();
     }
 
 
@@ -1563,86 +1616,84 @@ public class MidiFile {
      */
     public static void
     RoundDurations(ArrayList<MidiTrack> tracks, int quarternote) {
-
         for (MidiTrack track : tracks ) {
-            MidiNote prevNote = null;
-            for (int i = 0; i < track.getNotes().size() - 1; i++) {
-                MidiNote note1 = track.getNotes().get(i);
-                if (prevNote == null) {
-                    prevNote = note1;
-                }
+            RoundDurations(track.getTable(), quarternote);
+        }
+    }
 
-                /* Get the next note that has a different start time */
-                MidiNote note2 = note1;
-                for (int j = i+1; j < track.getNotes().size(); j++) {
-                    note2 = track.getNotes().get(j);
-                    if (note1.getStartTime() < note2.getStartTime()) {
-                        break;
-                    }
-                }
-                int maxduration = note2.getStartTime() - note1.getStartTime();
+    /** Round the durations of the notes of a single track */
+    private static void
+    RoundDurations(NoteTable notes, int quarternote) {
+        OnsetIndex onsets = new OnsetIndex(notes);
+        int prevNote = -1;
+        for (int i = 0; i < notes.size() - 1; i++) {
+            if (prevNote == -1) {
+                prevNote = i;
+            }
 
-                int dur = 0;
-                if (quarternote <= maxduration)
-                    dur = quarternote;
-                else if (quarternote/2 <= maxduration)
-                    dur = quarternote/2;
-                else if (quarternote/3 <= maxduration)
-                    dur = quarternote/3;
-                else if (quarternote/4 <= maxduration)
-                    dur = quarternote/4;
+            /* Get the next note that has a different start time */
+            int next = onsets.getNextOnset(i);
+            int maxduration = 0;
+            if (next != -1) {
+                maxduration = notes.getStartTime(next) - notes.getStartTime(i);
+            }
 
+            int dur = 0;
+            if (quarternote <= maxduration)
+                dur = quarternote;
+            else if (quarternote/2 <= maxduration)
+                dur = quarternote/2;
+            else if (quarternote/3 <= maxduration)
+                dur = quarternote/3;
+            else if (quarternote/4 <= maxduration)
+                dur = quarternote/4;
 
-                if (dur < note1.getDuration()) {
-                    dur = note1.getDuration();
-                }
 
-                /* Special case: If the previous note's duration
-                 * matches this note's duration, we can make a notepair.
-                 * So don't expand the duration in that case.
-                 */
-                if ((prevNote.getStartTime() + prevNote.getDuration() == note1.getStartTime()) &&
-                    (prevNote.getDuration() == note1.getDuration())) {
+            if (dur < notes.getDuration(i)) {
+                dur = notes.getDuration(i);
+            }
 
+            /* Special case: If the previous note's duration
+             * matches this note's duration, we can make a notepair.
+             * So don't expand the duration in that case.
+             */
+            if ((notes.getEndTime(prevNote) == notes.getStartTime(i)) &&
+                (notes.getDuration(prevNote) == notes.getDuration(i))) {
 
-                    dur = note1.getDuration();
-                }
-                note1.setDuration(dur);
-                if (track.getNotes().get(i+1).getStartTime() != note1.getStartTime()) {
-                    prevNote = note1;
-                }
+
+                dur = notes.getDuration(i);
+            }
+            notes.setDuration(i, dur);
+            if (next == i+1) {
+                prevNote = i;
             }
         }
     }
 
+
     /** Split the given track into multiple tracks, separating each
-     * channel into a separate track.
+     * channel into a separate track.  The channelInstruments gives
+     * the instrument used for each channel in the original track.
      */
     private static ArrayList<MidiTrack> 
-    SplitChannels(MidiTrack origtrack, ArrayList<MidiEvent> events) {
+    SplitChannels(MidiTrack origtrack, int[] channelInstruments) {
 
-        /* Find the instrument used for each channel */
-        int[] channelInstruments = new int[16];
-        for (MidiEvent mevent : events) {
-            if (mevent.EventFlag == EventProgramChange) {
-                channelInstruments[mevent.Channel] = mevent.Instrument;
-            }
-        }
         channelInstruments[9] = 128; /* Channel 9 = Percussion */
 
         ArrayList<MidiTrack> result = new ArrayList<MidiTrack>();
-        for (MidiNote note : origtrack.getNotes()) {
+        NoteTable notes = origtrack.readTable();
+        for (int i = 0; i < notes.size(); i++) {
             boolean foundchannel = false;
             for (MidiTrack track : result) {
-                if (note.getChannel() == track.getNotes().get(0).getChannel()) {
+                if (notes.getChannel(i) == track.readTable().getChannel(0)) {
                     foundchannel = true;
-                    track.AddNote(note); 
+                    track.AddNote(notes, i); 
                 }
             }
             if (!foundchannel) {
                 MidiTrack track = new MidiTrack(result.size() + 1);
-                track.AddNote(note);
-                track.setInstrument(channelInstruments[note.getChannel()]);
+                track.AddNote(notes, i);
+                track.setInstrument(channelInstruments[notes.getChannel(i)]);
                 result.add(track);
             }
         }
@@ -1653,36 +1704,40 @@ public class MidiFile {
     /** Guess the measure length.  We assume that the measure
      * length must be between 0.5 seconds and 4 seconds.
      * Take all the note start times that fall between 0.5 and 
-     * 4 seconds, and return the starttimes.
+     * 4 seconds, and return the starttimes.  The measure lengths
+     * are converted to pulses using the tempo at the first note, and
+     * the 0.06 second interval using the tempo map at each note.
      */
     public ListInt
     GuessMeasureLength() {
         ListInt result = new ListInt();
 
-        int pulses_per_second = (int) (1000000.0 / timesig.getTempo() * timesig.getQuarter());
-        int minmeasure = pulses_per_second / 2;  /* The minimum measure length in pulses */
-        int maxmeasure = pulses_per_second * 4;  /* The maximum measure length in pulses */
-
         /* Get the start time of the first note in the midi file. */
         int firstnote = timesig.getMeasure() * 5;
         for (MidiTrack track : tracks) {
-            if (firstnote > track.getNotes().get(0).getStartTime()) {
-                firstnote = track.getNotes().get(0).getStartTime();
+            if (firstnote > track.readTable().getStartTime(0)) {
+                firstnote = track.readTable().getStartTime(0);
             }
         }
 
-        /* interval = 0.06 seconds, converted into pulses */
-        int interval = timesig.getQuarter() * 60000 / timesig.getTempo();
+        int tempo = tempomap.getTempoAt(firstnote);
+        int pulses_per_second = (int) (1000000.0 / tempo * timesig.getQuarter());
+        int minmeasure = pulses_per_second / 2;  /* The minimum measure length in pulses */
+        int maxmeasure = pulses_per_second * 4;  /* The maximum measure length in pulses */
 
         for (MidiTrack track : tracks) {
             int prevtime = 0;
-            for (MidiNote note : track.getNotes()) {
-                if (note.getStartTime() - prevtime <= interval)
+            NoteTable notes = track.readTable();
+            for (int i = 0; i < notes.size(); i++) {
+                int starttime = notes.getStartTime(i);
+
+                /* interval = 0.06 seconds, converted into pulses */
+                if (starttime - prevtime <= tempomap.getInterval(prevtime, 60000))
                     continue;
 
-                prevtime = note.getStartTime();
+                prevtime = starttime;
 
-                int time_from_firstnote = note.getStartTime() - firstnote;
+                int time_from_firstnote = starttime - firstnote;
 
                 /* Round the time down to a multiple of 4 */
                 time_from_firstnote = time_from_firstnote / 4 * 4;
@@ -1704,11 +1759,7 @@ public class MidiFile {
     public int EndTime() {
         int lastStart = 0;
         for (MidiTrack track : tracks) {
-            if (track.getNotes().size() == 0) {
-                continue;
-            }
-            int last = track.getNotes().get(track.getNotes().size()-1).getStartTime();
-            lastStart = Math.max(last, lastStart);
+            lastStart = Math.max(track.getLastStartTime(), lastStart);
         }
         return lastStart;
     }
@@ -1717,7 +1768,7 @@ public class MidiFile {
     /** Return true if this midi file has lyrics */
     public boolean hasLyrics() {
         for (MidiTrack track : tracks) {
-            if (track.getLyrics() != null) {
+            if (track.hasLyrics()) {
                 return true;
             }
         }
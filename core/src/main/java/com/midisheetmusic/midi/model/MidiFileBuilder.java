@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** @class MidiFileBuilder
+ * The MidiFileBuilder creates a MidiFile while reading it from an
+ * InputStream, instead of first reading the whole stream into memory.
+ *
+ * Each MTrk chunk is indexed (see TrackIndex) as soon as its bytes
+ * have been read.  If a TrackListener is set, it receives each track
+ * that has notes at that point, so the caller can start using the
+ * first tracks while the later tracks are still being read.  Note that
+ * these are the tracks as stored in the file: when the whole file is
+ * read, a single track with several channels is still split into one
+ * track per channel, as in MidiFile.
+ *
+ * The resulting MidiFile is the same as the one created from the
+ * complete data.  A track is indexed once its chunk has been read.  The
+ * index is only kept if MidiFile.ReadTrack() reached the end of the
+ * track without reaching the end of the data read so far.  Otherwise,
+ * more data is read and the track is indexed again.  So a truncated
+ * track is only treated as truncated (and recovered as in ReadTrack())
+ * at the end of the stream.
+ *
+ * The activities don't use the builder.  They read the whole file with
+ * FileUri.getData() and pass the bytes to the SheetMusicActivity in the
+ * Intent, which needs all the bytes before parsing anyway: their CRC
+ * is the key of the saved settings and of the MidiFileCache.  The
+ * builder is for callers that get the midi file as a stream.
+ */
+public class MidiFileBuilder {
+
+    /** @interface TrackListener
+     * Receives each track as soon as its MTrk chunk has been read.
+     */
+    public interface TrackListener {
+        void trackRead(MidiTrack track);
+    }
+
+    private static final int ReadSize = 65536; /** The minimum amount to read at a time */
+
+    private InputStream stream;      /** The stream to read the midi file from */
+    private String filename;         /** The midi file name */
+    private TrackListener listener;  /** Receives each track as it is read, or null */
+    private byte[] buffer;           /** The data read so far */
+    private int count;               /** The number of bytes in buffer */
+    private boolean eof;             /** True if the end of the stream was reached */
+
+    /** Create a builder that reads the midi file from the given stream */
+    public MidiFileBuilder(InputStream stream, String filename) {
+        this.stream = stream;
+        this.filename = filename;
+        buffer = new byte[ReadSize];
+        count = 0;
+        eof = false;
+    }
+
+    /** Set the listener that receives each track as it is read */
+    public void setListener(TrackListener listener) {
+        this.listener = listener;
+    }
+
+    /** Return the midi file data that has been read */
+    public byte[] getData() {
+        byte[] data = new byte[count];
+        System.arraycopy(buffer, 0, data, 0, count);
+        return data;
+    }
+
+    /** Read data from the stream until there are at least 'total' bytes,
+     *  or until the end of the stream.
+     */
+    private void Fill(long total) throws IOException {
+        while (!eof && count < total) {
+            if (count == buffer.length) {
+                byte[] newbuffer = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, newbuffer, 0, count);
+                buffer = newbuffer;
+            }
+            int len = stream.read(buffer, count, buffer.length - count);
+            if (len < 0) {
+                eof = true;
+            }
+            else {
+                count += len;
+            }
+        }
+    }
+
+    /** Return the data read so far */
+    private ByteBuffer Wrap() {
+        return ByteBuffer.wrap(buffer, 0, count);
+    }
+
+    /** Read the whole stream, and return the MidiFile.  The stream is
+     *  not closed.  Each track is passed to the listener as it is read.
+     */
+    public MidiFile Build() throws IOException {
+        Fill(14);
+        if (count < 14 || buffer[0] != 'M' || buffer[1] != 'T' ||
+            buffer[2] != 'h' || buffer[3] != 'd' || Wrap().getInt(4) != 6) {
+
+            /* Let the MidiFile report the error */
+            Fill(Long.MAX_VALUE);
+            return new MidiFile(Wrap(), filename);
+        }
+        int num_tracks = Wrap().getShort(10) & 0xFFFF;
+        TrackIndex[] indexes = new TrackIndex[num_tracks];
+        int offset = 14;
+        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+            TrackIndex index = IndexTrack(offset, tracknum);
+            indexes[tracknum] = index;
+            offset = index.getEndOffset();
+            if (listener != null && index.getNoteCount() > 0) {
+                listener.trackRead(new MidiTrack(index, Wrap()));
+            }
+        }
+        Fill(Long.MAX_VALUE);
+        return new MidiFile(Wrap(), filename, indexes);
+    }
+
+    /** Index the track whose MTrk chunk starts at the given offset.
+     *  Read more data until MidiFile.ReadTrack() reaches the end of the
+     *  track before the end of the data, or until the end of the stream.
+     */
+    private TrackIndex IndexTrack(int offset, int tracknum) throws IOException {
+        Fill((long)offset + 8);
+        if (count >= offset + 8) {
+            Fill((long)offset + 8 + Wrap().getInt(offset + 4) + 1);
+        }
+        while (true) {
+            int trackend = 0;
+            if (count >= offset + 8) {
+                trackend = Wrap().getInt(offset + 4) + offset + 8;
+            }
+            try {
+                TrackIndex index = new TrackIndex(tracknum, offset);
+                index.Read(Wrap());
+                if (eof || (index.getEndOffset() >= trackend &&
+                            index.getEndOffset() < count)) {
+                    return index;
+                }
+            }
+            catch (MidiFileException e) {
+                if (eof) {
+                    throw e;
+                }
+            }
+            Fill((long)count + Math.max(count, ReadSize));
+        }
+    }
+}
+
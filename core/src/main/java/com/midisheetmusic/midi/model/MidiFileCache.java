@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import com.midisheetmusic.core.model.TimeSignature;
+import com.midisheetmusic.helper.ListInt;
+
+/** @class MidiFileCache
+ * The MidiFileCache saves parsed MidiFiles in a directory, so that
+ * opening the same song again doesn't need to parse it.  A song is
+ * identified by the CRC32 checksum of its raw midi data.
+ *
+ * Each song is saved in one binary file, named <crc>.msc:
+ *
+ * u4 = Magic number 'MSMC'
+ * u4 = Format version
+ * u8 = The CRC of the midi data
+ * u4 = The length of the midi data
+ * u2 = The track mode
+ * u4 = The pulses per quarter note, and the total pulses
+ * u1 = 1 if each channel was split into a separate track
+ * u4 = The time signature numerator, denominator, quarter note, and tempo
+ * u4 = The number of tempo segments, then the pulse and tempo of each
+ * u4 = The number of MTrk chunks, then the offset of each chunk
+ * u4 = The number of tracks.  For each track:
+ *      u4 = The track number, instrument, and number of notes
+ *      The start time (u4), duration (u4), channel (u1), number (u1)
+ *      and velocity (u1) of each note
+ *      u4 = The number of lyrics.  For each lyric, the delta time (u4),
+ *      start time (u4), meta event (u1), length (u4) and text.
+ *
+ * The notes and lyrics of every track are saved, decoding lazy tracks
+ * (see MidiTrack) if needed, and are loaded as ordinary tracks, so a
+ * song loaded from the cache never reads its MTrk chunks for the notes.
+ * The raw midi events are not saved.  The offsets of the MTrk chunks
+ * are, so the events can still be decoded from the midi data on demand.
+ *
+ * The file is built in memory, and written with a single write to a
+ * temporary file that is then renamed, so a partially written file is
+ * never read.  The file is read back using a memory mapping.  When the
+ * cache grows larger than the maximum size, the least recently used
+ * files are deleted.
+ */
+public class MidiFileCache {
+    private static final int Magic = 0x4D534D43;  /** 'MSMC' */
+    private static final int Version = 3;         /** Changed when the format changes */
+    private static final String Suffix = ".msc";  /** The suffix of the cache files */
+
+    private File dir;       /** The directory containing the cache files */
+    private long maxSize;   /** The maximum total size of the cache files, in bytes */
+
+    /** Create a cache in the given directory, with the given maximum size */
+    public MidiFileCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /** Return the cache file for the given CRC */
+    private File CacheFile(long crc) {
+        return new File(dir, Long.toHexString(crc) + Suffix);
+    }
+
+    /** Load the MidiFile with the given CRC from the cache.  The rawdata is
+     *  the midi data the CRC was computed from.  Return null if the song
+     *  isn't in the cache, or if the cache file is invalid.
+     */
+    public MidiFile Load(long crc, ByteBuffer rawdata, String filename) {
+        File file = CacheFile(crc);
+        if (!file.isFile()) {
+            return null;
+        }
+        MidiFile midifile = null;
+        try {
+            midifile = Read(MidiFileReader.MapFile(file), crc, rawdata, filename);
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (RuntimeException e) {
+            midifile = null;
+        }
+        if (midifile == null) {
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return midifile;
+    }
+
+    /** Save the MidiFile with the given CRC to the cache.
+     *  Return true if the file was saved successfully, else false.
+     */
+    public boolean Save(long crc, MidiFile midifile) {
+        ByteBuffer buf = Write(crc, midifile);
+        File file = CacheFile(crc);
+        File temp = new File(dir, Long.toHexString(crc) + ".tmp");
+        dir.mkdirs();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(buf.array(), 0, buf.limit());
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return false;
+            }
+        }
+        catch (IOException e) {
+            temp.delete();
+            return false;
+        }
+        finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException e) {}
+            }
+        }
+        Evict(file);
+        return true;
+    }
+
+    /** Delete the least recently used cache files, until the total size
+     *  is at most maxSize.  The given file, which was just saved, is kept.
+     */
+    private void Evict(File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File x, File y) {
+                long diff = y.lastModified() - x.lastModified();
+                return (diff > 0) ? 1 : (diff < 0) ? -1 : 0;
+            }
+        });
+        long total = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(Suffix)) {
+                continue;
+            }
+            total += file.length();
+            if (total > maxSize && !file.equals(keep)) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Return the contents of the cache file for the MidiFile */
+    private static ByteBuffer Write(long crc, MidiFile midifile) {
+        TempoMap tempomap = midifile.getTempoMap();
+        int[] trackoffsets = midifile.getTrackOffsets();
+        ArrayList<MidiTrack> tracks = midifile.getTracks();
+
+        /* Compute the size of the file */
+        int size = 20 + 11 + 16 + 4 + tempomap.size() * 8 + 4 + trackoffsets.length * 4 + 4;
+        NoteTable[] tables = new NoteTable[tracks.size()];
+        ArrayList<ArrayList<MidiEvent>> trackLyrics =
+            new ArrayList<ArrayList<MidiEvent>>(tracks.size());
+        for (int t = 0; t < tracks.size(); t++) {
+            MidiTrack track = tracks.get(t);
+            tables[t] = track.readTable();
+            trackLyrics.add(track.getLyrics());
+            size += 12 + tables[t].size() * 11 + 4;
+            if (trackLyrics.get(t) != null) {
+                for (MidiEvent lyric : trackLyrics.get(t)) {
+                    size += 13 + lyric.Value.length;
+                }
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(Magic);
+        buf.putInt(Version);
+        buf.putLong(crc);
+        buf.putInt(midifile.getData().limit());
+        buf.putShort(midifile.getTrackMode());
+        buf.putInt(midifile.getTime().getQuarter());
+        buf.putInt(midifile.getTotalPulses());
+        buf.put((byte)(midifile.isTrackPerChannel() ? 1 : 0));
+
+        TimeSignature time = midifile.getTime();
+        buf.putInt(time.getNumerator());
+        buf.putInt(time.getDenominator());
+        buf.putInt(time.getQuarter());
+        buf.putInt(time.getTempo());
+
+        buf.putInt(tempomap.size());
+        for (int i = 0; i < tempomap.size(); i++) {
+            buf.putInt(tempomap.getPulse(i));
+            buf.putInt(tempomap.getTempo(i));
+        }
+        buf.putInt(trackoffsets.length);
+        for (int offset : trackoffsets) {
+            buf.putInt(offset);
+        }
+
+        buf.putInt(tracks.size());
+        for (int t = 0; t < tracks.size(); t++) {
+            MidiTrack track = tracks.get(t);
+            buf.putInt(track.trackNumber());
+            buf.putInt(track.getInstrument());
+            NoteTable notes = tables[t];
+            buf.putInt(notes.size());
+            for (int i = 0; i < notes.size(); i++) {
+                buf.putInt(notes.getStartTime(i));
+                buf.putInt(notes.getDuration(i));
+                buf.put((byte)notes.getChannel(i));
+                buf.put((byte)notes.getNumber(i));
+                buf.put((byte)notes.getVelocity(i));
+            }
+            ArrayList<MidiEvent> lyrics = trackLyrics.get(t);
+            buf.putInt(lyrics == null ? 0 : lyrics.size());
+            if (lyrics != null) {
+                for (MidiEvent lyric : lyrics) {
+                    buf.putInt(lyric.DeltaTime);
+                    buf.putInt(lyric.StartTime);
+                    buf.put(lyric.Metaevent);
+                    buf.putInt(lyric.Value.length);
+                    buf.put(lyric.Value);
+                }
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /** Create the MidiFile from the contents of a cache file.
+     *  Return null if the file doesn't match the crc and data.
+     */
+    private static MidiFile
+    Read(ByteBuffer buf, long crc, ByteBuffer rawdata, String filename) {
+        if (buf.getInt() != Magic || buf.getInt() != Version ||
+            buf.getLong() != crc || buf.getInt() != rawdata.limit()) {
+            return null;
+        }
+        short trackmode = buf.getShort();
+        int quarternote = buf.getInt();
+        int totalpulses = buf.getInt();
+        boolean trackPerChannel = (buf.get() != 0);
+        TimeSignature time = new TimeSignature(buf.getInt(), buf.getInt(),
+                                               buf.getInt(), buf.getInt());
+
+        int numtempos = buf.getInt();
+        ListInt tempoTimes = new ListInt(numtempos + 1);
+        ListInt tempoValues = new ListInt(numtempos + 1);
+        for (int i = 0; i < numtempos; i++) {
+            tempoTimes.add(buf.getInt());
+            tempoValues.add(buf.getInt());
+        }
+        TempoMap tempomap = new TempoMap(quarternote, tempoTimes, tempoValues);
+
+        int[] trackoffsets = new int[buf.getInt()];
+        for (int i = 0; i < trackoffsets.length; i++) {
+            trackoffsets[i] = buf.getInt();
+        }
+
+        int numtracks = buf.getInt();
+        ArrayList<MidiTrack> tracks = new ArrayList<MidiTrack>(numtracks);
+        for (int t = 0; t < numtracks; t++) {
+            MidiTrack track = new MidiTrack(buf.getInt());
+            track.setInstrument(buf.getInt());
+            int numnotes = buf.getInt();
+            NoteTable notes = track.getTable();
+            for (int i = 0; i < numnotes; i++) {
+                int starttime = buf.getInt();
+                int duration = buf.getInt();
+                int channel = buf.get();
+                int number = buf.get();
+                int velocity = buf.get();
+                notes.Add(starttime, channel, number, duration, velocity);
+            }
+            int numlyrics = buf.getInt();
+            if (numlyrics > 0) {
+                ArrayList<MidiEvent> lyrics = new ArrayList<MidiEvent>(numlyrics);
+                for (int i = 0; i < numlyrics; i++) {
+                    int deltatime = buf.getInt();
+                    int starttime = buf.getInt();
+                    int metaevent = buf.get();
+                    int length = buf.getInt();
+                    lyrics.add(MidiFile.CreateMetaEvent(deltatime, starttime, metaevent,
+                                                        buf, buf.position(), length));
+                    buf.position(buf.position() + length);
+                }
+                track.setLyrics(lyrics);
+            }
+            tracks.add(track);
+        }
+        if (buf.hasRemaining()) {
+            return null;
+        }
+        return new MidiFile(rawdata, filename, trackmode, totalpulses, trackPerChannel,
+                            trackoffsets, time, tempomap, tracks);
+    }
+}
+
@@ -14,6 +14,8 @@
 package com.midisheetmusic.midi.model;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 
 
 /** @class MidiFileReader
@@ -29,10 +31,22 @@ import java.io.*;
  *   int is described at the top of this file.
  * - Skip ahead a given number of bytes
  * - Return the current offset.
+ * - Return a read-only slice of the data, without copying it.
+ *
+ * The data is a ByteBuffer, which either wraps a byte[] or is a
+ * memory-mapped file (see MapFile()).
+ *
+ * The reads of headers and byte ranges (ReadShort, ReadInt, ReadAscii,
+ * ReadBytes, ReadSlice and Skip) check that the data is long enough,
+ * and throw a MidiFileException if it isn't.  The reads used for each
+ * event (Peek, ReadByte and ReadVarlen) don't check anything.  Instead,
+ * MidiFile.ReadTrack() checks the length of each MTrk chunk once against
+ * remaining(), and only checks the events in the last few bytes of the
+ * data one by one.
  */
 
 public class MidiFileReader {
-    private byte[] data;       /** The entire midi file data */
+    private ByteBuffer data;   /** The entire midi file data */
     private int parse_offset;  /** The current offset while parsing */
 
     /** Create a new MidiFileReader for the given filename */
@@ -64,27 +78,66 @@ public class MidiFileReader {
 
     /** Create a new MidiFileReader from the given data */
     public MidiFileReader(byte[] bytes) {
-        data = bytes;
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /** Create a new MidiFileReader from the given data.  The data is
+     *  read from offset 0 to the limit of the buffer, using absolute
+     *  reads only, so the position of the buffer is not changed.
+     */
+    public MidiFileReader(ByteBuffer buffer) {
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            data = buffer;
+        }
+        else {
+            data = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        }
         parse_offset = 0;
     }
 
+    /** Map the given file into memory, read-only.  The file data does
+     *  not use any heap space.
+     */
+    public static ByteBuffer MapFile(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            stream.close();
+        }
+    }
+
     /** Check that the given number of bytes doesn't exceed the file size */
     private void checkRead(int amount) {
-        if (parse_offset + amount > data.length) {
-            throw new MidiFileException("File is truncated", parse_offset);
+        if (parse_offset + amount > data.limit()) {
+            throw truncated();
         }
     }
 
-    /** Read the next byte in the file, but don't increment the parse offset */
+    /** Return the exception for a read past the end of the file */
+    private MidiFileException truncated() {
+        return new MidiFileException("File is truncated", parse_offset);
+    }
+
+    /** Return the number of bytes after the current parse offset */
+    public int remaining() {
+        return data.limit() - parse_offset;
+    }
+
+    /** Read the next byte in the file, but don't increment the parse offset.
+     *  The caller must check that the byte is in the data.
+     */
     public byte Peek() {
-        checkRead(1);
-        return data[parse_offset];
+        return data.get(parse_offset);
     }
 
-    /** Read a byte from the file */
+    /** Read a byte from the file.
+     *  The caller must check that the byte is in the data.
+     */
     public byte ReadByte() { 
-        checkRead(1);
-        byte x = data[parse_offset];
+        byte x = data.get(parse_offset);
         parse_offset++;
         return x;
     }
@@ -93,18 +146,35 @@ public class MidiFileReader {
     public byte[] ReadBytes(int amount) {
         checkRead(amount);
         byte[] result = new byte[amount];
-        for (int i = 0; i < amount; i++) {
-            result[i] = (byte)(data[i + parse_offset]);
-        }
+        Slice(data, parse_offset, amount).get(result);
         parse_offset += amount;
         return result;
     }
 
+    /** Return the given number of bytes as a read-only ByteBuffer.
+     *  The bytes are not copied.
+     */
+    public ByteBuffer ReadSlice(int amount) {
+        checkRead(amount);
+        ByteBuffer slice = Slice(data, parse_offset, amount);
+        parse_offset += amount;
+        return slice;
+    }
+
+    /** Return data[offset : offset+length] as a read-only ByteBuffer,
+     *  without copying the bytes.
+     */
+    public static ByteBuffer Slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer slice = data.asReadOnlyBuffer();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice();
+    }
+
     /** Read a 16-bit short from the file */
     public int ReadShort() {
         checkRead(2);
-        int x = ((data[parse_offset] & 0xFF) << 8) | 
-                 (data[parse_offset+1] & 0xFF);
+        int x = data.getShort(parse_offset) & 0xFFFF;
         parse_offset += 2;
         return x;
     }
@@ -112,10 +182,7 @@ public class MidiFileReader {
     /** Read a 32-bit int from the file */
     public int ReadInt() {
         checkRead(4);
-        int x =  ((data[parse_offset] & 0xFF) << 24) | 
-                 ((data[parse_offset+1] & 0xFF) << 16) |
-                 ((data[parse_offset+2] & 0xFF) << 8) | 
-                  (data[parse_offset+3] & 0xFF);
+        int x = data.getInt(parse_offset);
         parse_offset += 4;
         return x;
     }
@@ -123,20 +190,18 @@ public class MidiFileReader {
     /** Read an ascii String with the given length */
     public String ReadAscii(int len) {
         checkRead(len);
-        String s = "";
-        try {
-            s = new String(data, parse_offset, len, "US-ASCII");
-        }
-        catch (UnsupportedEncodingException e) {
-            s = new String(data, parse_offset, len);
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char)(data.get(parse_offset + i) & 0xFF);
         }
         parse_offset += len;
-        return s;
+        return new String(chars);
     }
 
     /** Read a variable-length integer (1 to 4 bytes). The integer ends
      * when you encounter a byte that doesn't have the 8th bit set
-     * (a byte less than 0x80).
+     * (a byte less than 0x80).  The caller must check that the bytes
+     * are in the data.
      */
     public int ReadVarlen() {
         int result = 0;
@@ -168,10 +233,9 @@ public class MidiFileReader {
         return parse_offset;
     }
 
-    /** Return the raw midi file byte data */
-    public byte[] GetData() {
+    /** Return the raw midi file data */
+    public ByteBuffer GetData() {
         return data;
     }
 }
 
-
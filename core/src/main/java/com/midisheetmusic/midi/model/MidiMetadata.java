@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import com.midisheetmusic.core.model.KeySignature;
+
+/** @class MidiMetadata
+ * A summary of a midi file, created by the MidiMetadataProbe without
+ * parsing the notes.  The values are fixed once created.
+ *
+ * The tracks counted here are the same tracks a MidiFile would have:
+ * the tracks with notes, or one track per channel if the file has a
+ * single track with several channels.
+ */
+public final class MidiMetadata {
+    private final String title;        /** The name of the first track, or null */
+    private final int trackmode;       /** 0, 1 or 2, from the MThd header */
+    private final int quarternote;     /** The number of pulses per quarter note */
+    private final int[] instruments;   /** The instrument of each track */
+    private final int noteCount;       /** The number of notes in the song */
+    private final int totalPulses;     /** The time of the last note event, in pulses */
+    private final long duration;       /** The time of the last note event, in microseconds */
+    private final int tempo;           /** The average tempo, in microseconds per quarter note */
+    private final int numerator;       /** The time signature numerator */
+    private final int denominator;     /** The time signature denominator */
+    private final boolean haskey;      /** True if the file has a key signature event */
+    private final int keysharps;       /** The sharps (>0) or flats (<0) of the first key signature */
+    private final boolean minor;       /** True if the first key signature is minor */
+    private final int[] notescales;    /** The number of notes in each NoteScale */
+    private final boolean haslyrics;   /** True if the tracks have lyrics */
+
+    MidiMetadata(String title, int trackmode, int quarternote, int[] instruments,
+                 int noteCount, int totalPulses, long duration, int tempo,
+                 int numerator, int denominator, boolean haskey, int keysharps,
+                 boolean minor, int[] notescales, boolean haslyrics) {
+        this.title = title;
+        this.trackmode = trackmode;
+        this.quarternote = quarternote;
+        this.instruments = instruments;
+        this.noteCount = noteCount;
+        this.totalPulses = totalPulses;
+        this.duration = duration;
+        this.tempo = tempo;
+        this.numerator = numerator;
+        this.denominator = denominator;
+        this.haskey = haskey;
+        this.keysharps = keysharps;
+        this.minor = minor;
+        this.notescales = notescales;
+        this.haslyrics = haslyrics;
+    }
+
+    /** Get the name of the first track, usually the song title, or null */
+    public String getTitle() { return title; }
+
+    /** Get the track mode: 0 (single track), 1 (simultaneous tracks) 2 (independent tracks) */
+    public int getTrackMode() { return trackmode; }
+
+    /** Get the number of pulses per quarter note */
+    public int getQuarter() { return quarternote; }
+
+    /** Get the number of tracks with notes */
+    public int getTrackCount() { return instruments.length; }
+
+    /** Get the instrument of the given track (128 is Percussion) */
+    public int getInstrument(int track) { return instruments[track]; }
+
+    /** Get the instrument name of the given track */
+    public String getInstrumentName(int track) {
+        int instrument = instruments[track];
+        if (instrument >= 0 && instrument <= 128) {
+            return MidiFile.Instruments[instrument];
+        }
+        return "";
+    }
+
+    /** Get the number of notes in the song */
+    public int getNoteCount() { return noteCount; }
+
+    /** Get the length of the song, in pulses */
+    public int getTotalPulses() { return totalPulses; }
+
+    /** Get the length of the song, in microseconds, using every tempo change */
+    public long getDuration() { return duration; }
+
+    /** Get the average tempo, in microseconds per quarter note */
+    public int getTempo() { return tempo; }
+
+    /** Get the time signature numerator */
+    public int getNumerator() { return numerator; }
+
+    /** Get the time signature denominator */
+    public int getDenominator() { return denominator; }
+
+    /** Return true if the file contains a key signature event */
+    public boolean hasKeySignature() { return haskey; }
+
+    /** Get the number of sharps (if > 0) or flats (if < 0) of the first key signature */
+    public int getKeySharps() { return keysharps; }
+
+    /** Return true if the first key signature is a minor key */
+    public boolean isMinor() { return minor; }
+
+    /** Get the number of notes with the given NoteScale (A = 0, through G-sharp = 11) */
+    public int getNoteScaleCount(int notescale) { return notescales[notescale]; }
+
+    /** Guess the key signature from the notes of the song */
+    public KeySignature GuessKey() {
+        return KeySignature.Guess(notescales);
+    }
+
+    /** Return true if the tracks have lyrics, as in MidiFile.hasLyrics() */
+    public boolean hasLyrics() { return haslyrics; }
+
+    @Override
+    public String toString() {
+        return "MidiMetadata title=" + title + " tracks=" + getTrackCount() +
+               " notes=" + noteCount + " duration=" + duration +
+               " tempo=" + tempo + " time=" + numerator + "/" + denominator +
+               " lyrics=" + haslyrics;
+    }
+}
+
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.nio.ByteBuffer;
+
+import com.midisheetmusic.helper.ListInt;
+
+/** @class MidiMetadataProbe
+ * The MidiMetadataProbe reads a midi file once, and returns a MidiMetadata
+ * summary (title, length, tracks, instruments, tempo, key, lyrics),
+ * without creating the MidiNotes or MidiEvents of a MidiFile.
+ *
+ * The events are read with MidiFile.ReadTrack(), which skips over the
+ * meta and sysex payloads without copying them.  Only the counters below
+ * are updated for each event, so probing a file allocates very little.
+ * A truncated track is handled the same way as in MidiFile.
+ *
+ * Usage:  MidiMetadata info = MidiMetadataProbe.Probe(data);
+ */
+public class MidiMetadataProbe implements MidiEventHandler {
+    private int tracknum;               /** The track being read */
+    private String title;               /** The name of track 0 */
+    private ListInt instruments;        /** The instrument of each track with notes */
+    private int noteTracks;             /** The number of tracks with notes */
+    private int noteCount;              /** The number of notes in the file */
+    private int totalPulses;            /** The time of the last note event */
+    private int[] notescales;           /** The number of notes in each NoteScale */
+    private long tempoSum;              /** The sum of all tempos */
+    private int tempoCount;             /** The number of tempo events */
+    private ListInt tempoTimes;         /** The start time of each tempo event */
+    private ListInt tempoValues;        /** The value of each tempo event */
+    private int numerator;              /** The first time signature numerator */
+    private int denominator;            /** The first time signature denominator */
+    private boolean haskey;             /** True if a key signature was found */
+    private int keysharps;              /** The sharps/flats of the first key signature */
+    private boolean minor;              /** True if the first key signature is minor */
+    private boolean haslyrics;          /** True if a track with notes has lyrics */
+
+    /* The state of the current track */
+    private int trackNotes;             /** The number of notes in this track */
+    private int firstChannel;           /** The channel of the first note in this track */
+    private int instrument;             /** The last program change in this track */
+    private int channelMask;            /** The channels with notes in this track */
+    private int[] channelInstruments;   /** The last program change per channel */
+    private int[] channelOrder;         /** The channels in order of their first note */
+    private int channelCount;           /** The number of channels in channelOrder */
+    private boolean trackLyrics;        /** True if this track has lyrics */
+
+    /* The channels of the first track with notes, used if it's the only one */
+    private int[] firstInstruments;     /** The channelInstruments of that track */
+    private int[] firstOrder;           /** The channelOrder of that track */
+    private int firstCount;             /** The channelCount of that track */
+
+    private MidiMetadataProbe() {
+        instruments = new ListInt();
+        notescales = new int[12];
+        tempoTimes = new ListInt();
+        tempoValues = new ListInt();
+        channelInstruments = new int[16];
+        channelOrder = new int[16];
+        firstInstruments = new int[16];
+        firstOrder = new int[16];
+    }
+
+    /** Read the given midi file data, and return its summary */
+    public static MidiMetadata Probe(ByteBuffer rawdata) {
+        MidiFileReader file = new MidiFileReader(rawdata);
+        String id = file.ReadAscii(4);
+        if (!id.equals("MThd")) {
+            throw new MidiFileException("Doesn't start with MThd", 0);
+        }
+        int len = file.ReadInt();
+        if (len != 6) {
+            throw new MidiFileException("Bad MThd header", 4);
+        }
+        int trackmode = file.ReadShort();
+        int num_tracks = file.ReadShort();
+        int quarternote = file.ReadShort();
+
+        MidiMetadataProbe probe = new MidiMetadataProbe();
+        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+            MidiFile.ReadTrack(file, tracknum, probe);
+        }
+        return probe.Summary(trackmode, quarternote);
+    }
+
+    /** Read the given midi file data, and return its summary */
+    public static MidiMetadata Probe(byte[] rawdata) {
+        return Probe(ByteBuffer.wrap(rawdata));
+    }
+
+    /** Return the summary of the tracks that were read */
+    private MidiMetadata Summary(int trackmode, int quarternote) {
+        int[] trackInstruments;
+        boolean lyrics = haslyrics;
+        if (noteTracks == 1 && firstCount > 1) {
+            /* One track per channel, as in MidiFile.SplitChannels(),
+             * which doesn't keep the lyrics.
+             */
+            lyrics = false;
+            firstInstruments[9] = 128;
+            trackInstruments = new int[firstCount];
+            for (int i = 0; i < firstCount; i++) {
+                trackInstruments[i] = firstInstruments[firstOrder[i]];
+            }
+        }
+        else {
+            trackInstruments = new int[instruments.size()];
+            for (int i = 0; i < instruments.size(); i++) {
+                trackInstruments[i] = instruments.get(i);
+            }
+        }
+
+        int tempo = 500000;
+        if (tempoSum != 0) {
+            tempo = (int)(tempoSum / tempoCount);
+        }
+        int numer = numerator;
+        int denom = denominator;
+        if (numer == 0) {
+            numer = 4; denom = 4;
+        }
+        long duration = 0;
+        if (quarternote > 0) {
+            TempoMap tempomap = new TempoMap(quarternote, tempoTimes, tempoValues);
+            duration = (long)tempomap.pulseToMicros(totalPulses);
+        }
+        return new MidiMetadata(title, trackmode, quarternote, trackInstruments,
+                                noteCount, totalPulses, duration, tempo, numer, denom,
+                                haskey, keysharps, minor, notescales, lyrics);
+    }
+
+    public void startTrack(int tracknum) {
+        this.tracknum = tracknum;
+        trackNotes = 0;
+        firstChannel = -1;
+        instrument = 0;
+        channelMask = 0;
+        channelCount = 0;
+        trackLyrics = false;
+        for (int i = 0; i < 16; i++) {
+            channelInstruments[i] = 0;
+        }
+    }
+
+    public void channelEvent(int deltatime, int starttime, int eventflag,
+                             int channel, int data1, int data2) {
+        if (eventflag == MidiFile.EventNoteOn && data2 > 0) {
+            if (trackNotes == 0) {
+                firstChannel = channel;
+            }
+            trackNotes++;
+            noteCount++;
+            notescales[((data1 & 0xFF) + 3) % 12]++;
+            if ((channelMask & (1 << channel)) == 0) {
+                channelMask |= (1 << channel);
+                channelOrder[channelCount++] = channel;
+            }
+            totalPulses = Math.max(totalPulses, starttime);
+        }
+        else if (eventflag == MidiFile.EventNoteOn || eventflag == MidiFile.EventNoteOff) {
+            totalPulses = Math.max(totalPulses, starttime);
+        }
+        else if (eventflag == MidiFile.EventProgramChange) {
+            instrument = data1;
+            channelInstruments[channel] = data1;
+        }
+    }
+
+    public void metaEvent(int deltatime, int starttime, int metaevent,
+                          ByteBuffer data, int offset, int length) {
+        if (metaevent == MidiFile.MetaEventTempo) {
+            int value = MidiFile.TempoValue(data, offset);
+            tempoSum += value;
+            tempoCount++;
+            tempoTimes.add(starttime);
+            tempoValues.add(value);
+        }
+        else if (metaevent == MidiFile.MetaEventTimeSignature && numerator == 0) {
+            numerator = data.get(offset);
+            denominator = (byte)Math.pow(2, data.get(offset+1));
+        }
+        else if (metaevent == MidiFile.MetaEventKeySignature && !haskey && length >= 2) {
+            haskey = true;
+            keysharps = data.get(offset);
+            minor = (data.get(offset+1) != 0);
+        }
+        else if (metaevent == MidiFile.MetaEventLyric) {
+            trackLyrics = true;
+        }
+        else if (metaevent == MidiFile.MetaEventSequenceName && tracknum == 0 &&
+                 title == null) {
+            char[] name = new char[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = (char)(data.get(offset + i) & 0xFF);
+            }
+            title = new String(name).trim();
+        }
+    }
+
+    public void sysexEvent(int deltatime, int starttime, int eventflag,
+                           ByteBuffer data, int offset, int length) {
+    }
+
+    /** If the track has notes, record its instrument and lyrics.  Like the
+     *  MidiTrack, a track whose first note is on channel 9 is Percussion.
+     */
+    public void endTrack(int tracknum) {
+        if (trackNotes == 0) {
+            return;
+        }
+        noteTracks++;
+        haslyrics |= trackLyrics;
+        instruments.add(firstChannel == 9 ? 128 : instrument);
+        if (noteTracks == 1) {
+            System.arraycopy(channelInstruments, 0, firstInstruments, 0, 16);
+            System.arraycopy(channelOrder, 0, firstOrder, 0, 16);
+            firstCount = channelCount;
+        }
+    }
+}
+
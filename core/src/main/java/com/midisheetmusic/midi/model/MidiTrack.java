@@ -14,8 +14,12 @@
 
 package com.midisheetmusic.midi.model;
 
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+import com.midisheetmusic.helper.ListInt;
+
 
 
 /** @class MidiTrack
@@ -28,63 +32,302 @@ import java.util.*;
  * 
  * The NoteOff() method is called when a NoteOff event is encountered,
  * in order to update the duration of the MidiNote.
+ *
+ * While the events are decoded, the open notes (notes still waiting
+ * for their NoteOff) are kept in a stack per channel/note number, so
+ * each NoteOff finds its NoteOn directly instead of searching the
+ * notes.  Notes that are still open at the end of the track are ended
+ * at the time of the last event in the track.
+ *
+ * The MidiTrack is a MidiEventHandler, so it can be built directly
+ * from MidiFile.ReadTrack() without creating a MidiEvent per event.
+ *
+ * The notes are stored in a NoteTable.  getNotes() returns them as a
+ * list of MidiNotes, which is created from the table, and created again
+ * only after the table changes.  Changing those MidiNotes doesn't
+ * change the track: changes are made through getTable().
+ *
+ * A MidiTrack created from a TrackIndex is lazy: the notes and lyrics
+ * are only decoded from the midi file data the first time they are
+ * needed.  The decoded notes are kept with a SoftReference, so they
+ * can be freed when memory is low, and decoded again later.  Once the
+ * track is modified (AddNote, NoteOff, setLyrics), or its table is
+ * returned by getTable() for changing, the notes are kept for good.
+ * Code that only reads the notes uses readTable(), which doesn't.
+ *
+ * The layout and playback read tracks from background threads.  The
+ * notes field is volatile, and Pin() sets it after the lyrics, so a
+ * reader that sees the notes also sees the lyrics.  A reader that sees
+ * no notes goes through the lock, where the track may have been pinned
+ * meanwhile.
  */ 
-public class MidiTrack {
+public class MidiTrack implements MidiEventHandler {
     private int tracknum;                 /** The track number */
-    private ArrayList<MidiNote> notes;    /** List of Midi notes */
+    private volatile NoteTable notes;     /** The Midi notes, or null if
+                                           *  the notes are not decoded yet */
+    private ArrayList<MidiNote> notelist; /** The notes as MidiNotes, or null */
+    private int notelistMod;              /** The table's modCount() when notelist was created */
     private int instrument;               /** Instrument for this track */
     private ArrayList<MidiEvent> lyrics;  /** The lyrics in this track */
 
-    /** Create an empty MidiTrack.  Used by the Clone method */
+    private TrackIndex index;             /** The index of a lazy track */
+    private ByteBuffer data;              /** The midi file data of a lazy track */
+    private SoftReference<MidiTrack> decoded; /** The decoded notes/lyrics of a lazy track */
+
+    private int[] opennotes;   /** While decoding, the index+1 of the last open note
+                                *  for each channel/number, or 0 if none */
+    private ListInt prevopen;  /** While decoding, the index+1 of the open note below
+                                *  each note in its channel/number stack */
+    private int endtime;       /** While decoding, the time of the last event */
+
+    /** Create an empty MidiTrack.  Used by the Clone method, and
+     *  by MidiFile.ReadTrack() before the events are decoded.
+     */
     public MidiTrack(int tracknum) {
         this.tracknum = tracknum;
-        notes = new ArrayList<MidiNote>(20);
+        notes = new NoteTable(20);
         instrument = 0;
     } 
 
+    /** Create a lazy MidiTrack for the chunk described by the index.
+     *  The notes are decoded from the data when first needed.
+     */
+    public MidiTrack(TrackIndex index, ByteBuffer data) {
+        this.tracknum = index.trackNumber();
+        this.index = index;
+        this.data = data;
+        instrument = index.getInstrument();
+    }
+
     /** Create a MidiTrack based on the Midi events.  Extract the NoteOn/NoteOff
      *  events to gather the list of MidiNotes.
      */
     public MidiTrack(ArrayList<MidiEvent> events, int tracknum) {
         this.tracknum = tracknum;
-        notes = new ArrayList<MidiNote>(events.size());
+        notes = new NoteTable(events.size());
         instrument = 0;
  
+        startTrack(tracknum);
         for (MidiEvent mevent : events) {
-            if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity > 0) {
-                MidiNote note = new MidiNote(mevent.StartTime, mevent.Channel, mevent.Notenumber, 0);
-                AddNote(note);
+            if (mevent.EventFlag == MidiFile.MetaEvent) {
+                if (mevent.Metaevent == MidiFile.MetaEventLyric) {
+                    lyrics(mevent);
+                }
             }
-            else if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity == 0) {
-                NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
+            else if (mevent.EventFlag == MidiFile.EventProgramChange) {
+                channelEvent(mevent.DeltaTime, mevent.StartTime, mevent.EventFlag,
+                             mevent.Channel, mevent.Instrument, 0);
             }
-            else if (mevent.EventFlag == MidiFile.EventNoteOff) {
-                NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
+            else {
+                channelEvent(mevent.DeltaTime, mevent.StartTime, mevent.EventFlag,
+                             mevent.Channel, mevent.Notenumber, mevent.Velocity);
             }
-            else if (mevent.EventFlag == MidiFile.EventProgramChange) {
-                instrument = mevent.Instrument;
+        }
+        endTrack(tracknum);
+    }
+
+    /** Create the table of open notes */
+    public void startTrack(int tracknum) {
+        opennotes = new int[16 * 256];
+        prevopen = new ListInt(notes.size() + 20);
+        for (int i = 0; i < notes.size(); i++) {
+            prevopen.add(0);
+        }
+        endtime = 0;
+    }
+
+    /** Extract the notes and the instrument from the channel events */
+    public void channelEvent(int deltatime, int starttime, int eventflag,
+                             int channel, int data1, int data2) {
+        endtime = starttime;
+        if (eventflag == MidiFile.EventNoteOn && data2 > 0) {
+            Pin();
+            notes.Add(starttime, channel, data1, 0, data2);
+            if (opennotes != null) {
+                int key = channel * 256 + (data1 & 0xFF);
+                prevopen.add(opennotes[key]);
+                opennotes[key] = notes.size();
+            }
+        }
+        else if ((eventflag == MidiFile.EventNoteOn && data2 == 0) ||
+                 eventflag == MidiFile.EventNoteOff) {
+            if (opennotes != null) {
+                PairNoteOff(channel, data1, starttime);
             }
-            else if (mevent.Metaevent == MidiFile.MetaEventLyric) {
-                if (lyrics == null) {
-                    lyrics = new ArrayList<MidiEvent>();
+            else {
+                NoteOff(channel, data1, starttime);
+            }
+        }
+        else if (eventflag == MidiFile.EventProgramChange) {
+            instrument = data1;
+        }
+    }
+
+    /** A NoteOff event occurred while decoding.  End the last open note
+     *  with the same channel/number.  This gives the same result as
+     *  NoteOff(), which searches for the last note with a zero duration.
+     *  A note whose duration is still zero stays open.
+     */
+    private void PairNoteOff(int channel, int notenumber, int endtime) {
+        int key = channel * 256 + (notenumber & 0xFF);
+        int top = opennotes[key] - 1;
+        if (top < 0) {
+            return;
+        }
+        notes.setDuration(top, endtime - notes.getStartTime(top));
+        if (notes.getDuration(top) != 0) {
+            opennotes[key] = prevopen.get(top);
+        }
+    }
+
+    /** Keep a copy of the lyric events.  All other meta events are ignored. */
+    public void metaEvent(int deltatime, int starttime, int metaevent,
+                          ByteBuffer data, int offset, int length) {
+        endtime = starttime;
+        if (metaevent == MidiFile.MetaEventLyric) {
+            lyrics(MidiFile.CreateMetaEvent(deltatime, starttime, metaevent,
+                                            data, offset, length));
+        }
+    }
+
+    public void sysexEvent(int deltatime, int starttime, int eventflag,
+                           ByteBuffer data, int offset, int length) {
+        endtime = starttime;
+    }
+
+    /** Once all the notes are known, end the notes that are still open,
+     *  and check for a percussion track.
+     */
+    public void endTrack(int tracknum) {
+        if (opennotes != null) {
+            for (int key = 0; key < opennotes.length; key++) {
+                for (int i = opennotes[key] - 1; i >= 0; i = prevopen.get(i) - 1) {
+                    notes.setDuration(i, endtime - notes.getStartTime(i));
                 }
-                lyrics.add(mevent);
             }
+            opennotes = null;
+            prevopen = null;
         }
-        if (notes.size() > 0 && notes.get(0).getChannel() == 9)  {
+        if (notes.size() > 0 && notes.getChannel(0) == 9)  {
             instrument = 128;  /* Percussion */
         }
     }
 
+    /** Add a lyric event to this track */
+    private void lyrics(MidiEvent mevent) {
+        Pin();
+        if (lyrics == null) {
+            lyrics = new ArrayList<MidiEvent>();
+        }
+        lyrics.add(mevent);
+    }
+
     public int trackNumber() { return tracknum; }
 
-    public ArrayList<MidiNote> getNotes() { return notes; }
+    /** Return the notes as a list of MidiNotes.  The list is a copy of
+     *  the notes, so changing it doesn't change the track, and a lazy
+     *  track doesn't need to keep its notes for it.
+     */
+    public synchronized ArrayList<MidiNote> getNotes() { 
+        if (notes == null) {
+            return Decode().getNotes();
+        }
+        if (notelist == null || notelistMod != notes.modCount()) {
+            notelist = notes.ToList();
+            notelistMod = notes.modCount();
+        }
+        return notelist;
+    }
+
+    /** Return the table of notes.  The notes of the track are changed
+     *  by changing this table, so a lazy track keeps its notes for good.
+     */
+    public NoteTable getTable() {
+        Pin();
+        return notes;
+    }
+
+    /** Return the table of notes, for reading only.  The notes of a lazy
+     *  track may be freed and decoded again later, so changes made to
+     *  this table can be lost.  Use getTable() to change the notes.
+     */
+    public NoteTable readTable() {
+        NoteTable table = notes;
+        if (table != null) {
+            return table;
+        }
+        return Decode().notes;
+    }
 
     public int getInstrument() { return instrument; }
     public void setInstrument(int value) { instrument = value; }
 
-    public ArrayList<MidiEvent> getLyrics() { return lyrics; }
-    public void setLyrics(ArrayList<MidiEvent> value) { lyrics = value; }
+    public ArrayList<MidiEvent> getLyrics() {
+        if (notes != null) {
+            return lyrics;
+        }
+        return Decode().lyrics;
+    }
+    public void setLyrics(ArrayList<MidiEvent> value) { Pin(); lyrics = value; }
+
+    /** Return true if this track has lyrics */
+    public boolean hasLyrics() {
+        TrackIndex lazy = (notes == null) ? getIndex() : null;
+        if (lazy == null) {
+            return lyrics != null;
+        }
+        return lazy.hasLyrics();
+    }
+
+    /** Return the start time of the last note, or 0 if there are no notes */
+    public int getLastStartTime() {
+        TrackIndex lazy = (notes == null) ? getIndex() : null;
+        if (lazy == null) {
+            NoteTable table = notes;
+            return table.size() == 0 ? 0 : table.getStartTime(table.size()-1);
+        }
+        return lazy.getLastStartTime();
+    }
+
+    /** Return the index of a lazy track, or null if the notes of the
+     *  track are kept for good.
+     */
+    synchronized TrackIndex getIndex() {
+        return index;
+    }
+
+    /** Decode the notes and lyrics of a lazy track, or return the
+     *  previously decoded ones if they haven't been freed.  If another
+     *  thread pinned the track meanwhile, return this track.
+     */
+    private synchronized MidiTrack Decode() {
+        if (notes != null) {
+            return this;
+        }
+        MidiTrack track = (decoded == null) ? null : decoded.get();
+        if (track == null) {
+            track = new MidiTrack(tracknum);
+            MidiFileReader file = new MidiFileReader(data);
+            file.Skip(index.getOffset());
+            MidiFile.ReadTrack(file, tracknum, track);
+            decoded = new SoftReference<MidiTrack>(track);
+        }
+        return track;
+    }
+
+    /** Before modifying a lazy track, decode it and keep the notes
+     *  for good.  Afterwards, this is an ordinary MidiTrack.
+     */
+    private synchronized void Pin() {
+        if (notes == null) {
+            MidiTrack track = Decode();
+            lyrics = track.lyrics;
+            notes = track.notes;
+            index = null;
+            data = null;
+            decoded = null;
+        }
+    }
 
 
     public String getInstrumentName() { if (instrument >= 0 && instrument <= 128)
@@ -93,32 +336,40 @@ public class MidiTrack {
                   return "";
             }
 
-    /** Add a MidiNote to this track.  This is called for each NoteOn event */
+    /** Add a MidiNote to this track */
     public void AddNote(MidiNote m) {
-        notes.add(m);
+        Pin();
+        notes.Add(m.getStartTime(), m.getChannel(), m.getNumber(), m.getDuration(), 0);
+    }
+
+    /** Add a copy of the given row of a note table to this track */
+    public void AddNote(NoteTable table, int row) {
+        Pin();
+        notes.Add(table, row);
     }
 
     /** A NoteOff event occured.  Find the MidiNote of the corresponding
      * NoteOn event, and update the duration of the MidiNote.
      */
     public void NoteOff(int channel, int notenumber, int endtime) {
+        Pin();
         for (int i = notes.size()-1; i >= 0; i--) {
-            MidiNote note = notes.get(i);
-            if (note.getChannel() == channel && note.getNumber() == notenumber &&
-                note.getDuration() == 0) {
-                note.NoteOff(endtime);
+            if (notes.getChannel(i) == channel && notes.getNumber(i) == notenumber &&
+                notes.getDuration(i) == 0) {
+                notes.setDuration(i, endtime - notes.getStartTime(i));
                 return;
             }
         }
     }
 
-    /** Return a deep copy clone of this MidiTrack. */
+    /** Return a copy of this MidiTrack.  The note table is copied
+     *  when either track changes it.
+     */
     public MidiTrack Clone() {
         MidiTrack track = new MidiTrack(trackNumber());
         track.instrument = instrument;
-        for (MidiNote note : notes) {
-            track.notes.add( note.Clone() );
-        }
+        track.notes = readTable().Clone();
+        ArrayList<MidiEvent> lyrics = getLyrics();
         if (lyrics != null) {
             track.lyrics = new ArrayList<MidiEvent>();
             for (MidiEvent ev : lyrics) {
@@ -131,7 +382,7 @@ public class MidiTrack {
     @Override
     public String toString() {
         String result = "Track number=" + tracknum + " instrument=" + instrument + "\n";
-        for (MidiNote n : notes) {
+        for (MidiNote n : getNotes()) {
            result = result + n + "\n";
         }
         result += "End Track\n";
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** @class MidiWriter
+ * The MidiWriter encodes a midi file into a byte array in memory, which
+ * is then written to a stream or channel with a single write.
+ *
+ * Each track is encoded in one pass over its EventTable.  The MTrk
+ * length is written as a placeholder, and filled in once the track is
+ * done.  Channel events use running status: the status byte is left out
+ * when it's the same as the previous channel event's.  Meta and sysex
+ * events always cancel the running status.
+ */
+public class MidiWriter {
+    private byte[] data;   /** The encoded midi file */
+    private int count;     /** The number of bytes in data */
+
+    /** Create a writer, with room for about the given number of bytes */
+    public MidiWriter(int capacity) {
+        data = new byte[Math.max(capacity, 64)];
+        count = 0;
+    }
+
+    /** Create a writer that encodes into the given array, which is
+     *  replaced by a larger one if it fills up.
+     */
+    public MidiWriter(byte[] buffer) {
+        data = buffer;
+        count = 0;
+    }
+
+    /** Return the number of bytes encoded so far */
+    public int size() { return count; }
+
+    /** Make room for at least the given number of bytes */
+    private void Ensure(int amount) {
+        if (count + amount > data.length) {
+            int newlength = Math.max(data.length * 2, count + amount);
+            byte[] newdata = new byte[newlength];
+            System.arraycopy(data, 0, newdata, 0, count);
+            data = newdata;
+        }
+    }
+
+    /** Append the 4 characters of a chunk id, such as MThd */
+    private void PutId(String id) {
+        for (int i = 0; i < 4; i++) {
+            data[count++] = (byte)id.charAt(i);
+        }
+    }
+
+    /** Write a 4-byte integer to data[offset : offset+4] */
+    private void SetInt(int value, int offset) {
+        data[offset] = (byte)( (value >> 24) & 0xFF );
+        data[offset+1] = (byte)( (value >> 16) & 0xFF );
+        data[offset+2] = (byte)( (value >> 8) & 0xFF );
+        data[offset+3] = (byte)( value & 0xFF );
+    }
+
+    /** Append source[offset : offset+len].  If the source is not backed
+     *  by an array (a mapped file), copy it through a slice.
+     */
+    private void PutBytes(ByteBuffer source, int offset, int len) {
+        Ensure(len);
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + offset, data, count, len);
+        }
+        else {
+            MidiFileReader.Slice(source, offset, len).get(data, count, len);
+        }
+        count += len;
+    }
+
+    /** Write the MThd header: the track mode, number of tracks, and quarter note */
+    public void WriteHeader(int trackmode, int numtracks, int quarter) {
+        Ensure(14);
+        PutId("MThd");
+        SetInt(6, count);
+        count += 4;
+        data[count++] = (byte)(trackmode >> 8);
+        data[count++] = (byte)(trackmode & 0xFF);
+        data[count++] = (byte)(numtracks >> 8);
+        data[count++] = (byte)(numtracks & 0xFF);
+        data[count++] = (byte)(quarter >> 8);
+        data[count++] = (byte)(quarter & 0xFF);
+    }
+
+    /** Write an MTrk chunk with the given events */
+    public void WriteTrack(EventTable events) {
+        EventPipeline pipeline = new EventPipeline();
+        pipeline.Start(events, -1);
+        WriteTrack(pipeline, events.size());
+    }
+
+    /** Write an MTrk chunk with the events read from the pipeline.
+     *  The size is the expected number of events, used to make room.
+     */
+    public void WriteTrack(EventPipeline events, int size) {
+        Ensure(8 + size * 4);
+        PutId("MTrk");
+        int lengthOffset = count;
+        count += 4;
+
+        int runningStatus = 0;
+        while (events.Next()) {
+            /* Room for the delta time, status, and up to 5 more bytes */
+            Ensure(11);
+            count += MidiFile.VarlenToBytes(events.getDeltaTime(), data, count);
+
+            byte eventflag = events.getEventFlag();
+            byte status = events.getStatus();
+            if (EventTable.IsChannelEvent(eventflag)) {
+                if (status != runningStatus) {
+                    data[count++] = status;
+                    runningStatus = status;
+                }
+                data[count++] = events.getData1();
+                if (eventflag != MidiFile.EventProgramChange &&
+                    eventflag != MidiFile.EventChannelPressure) {
+                    data[count++] = events.getData2();
+                }
+                continue;
+            }
+
+            runningStatus = 0;
+            data[count++] = status;
+            EventTable table = events.getTable();
+            int i = events.getIndex();
+            if (eventflag == MidiFile.SysexEvent1 || eventflag == MidiFile.SysexEvent2) {
+                int length = table.getPayloadLength(i);
+                count += MidiFile.VarlenToBytes(length, data, count);
+                PutBytes(table.getArena(), table.getPayloadOffset(i), length);
+            }
+            else if (eventflag == MidiFile.MetaEvent && events.isTempo()) {
+                int tempo = events.getTempo();
+                data[count++] = MidiFile.MetaEventTempo;
+                data[count++] = 3;
+                data[count++] = (byte)((tempo >> 16) & 0xFF);
+                data[count++] = (byte)((tempo >> 8) & 0xFF);
+                data[count++] = (byte)(tempo & 0xFF);
+            }
+            else if (eventflag == MidiFile.MetaEvent) {
+                int length = table.getPayloadLength(i);
+                data[count++] = events.getMetaEvent();
+                count += MidiFile.VarlenToBytes(length, data, count);
+                PutBytes(table.getArena(), table.getPayloadOffset(i), length);
+            }
+        }
+        SetInt(count - lengthOffset - 4, lengthOffset);
+    }
+
+    /** Write the encoded midi file to the stream */
+    public void WriteTo(OutputStream out) throws IOException {
+        out.write(data, 0, count);
+    }
+
+    /** Write the encoded midi file to the channel */
+    public void WriteTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, count);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /** Return a buffer holding the encoded midi file, without copying it */
+    public ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(data, 0, count);
+    }
+
+    /** Return a copy of the encoded midi file */
+    public byte[] toByteArray() {
+        byte[] result = new byte[count];
+        System.arraycopy(data, 0, result, 0, count);
+        return result;
+    }
+}
+
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.util.*;
+
+/** @class NoteTable
+ * The NoteTable holds the notes of a track in parallel arrays, one per
+ * column: the start time, duration, note number, channel and velocity.
+ * Row i of every column is note i.  This replaces a list of MidiNote
+ * objects, so the notes of a track take 5 arrays instead of one object
+ * per note, and the operations on a whole track (ShiftTime, Transpose,
+ * Sort) are simple loops over a column.
+ *
+ * Clone() doesn't copy the arrays.  The two tables share them until one
+ * of the tables is modified, and only then is the modified table given
+ * its own copy.  This makes it cheap to clone the tracks of a MidiFile
+ * each time the sheet music options change.
+ *
+ * Each change increments the modification count, which the MidiTrack
+ * uses to know when its list of MidiNotes must be created again.
+ */
+public class NoteTable {
+    private int[] starts;       /** The start time of each note, in pulses */
+    private int[] durations;    /** The duration of each note, in pulses */
+    private int[] numbers;      /** The note number of each note */
+    private int[] channels;     /** The channel of each note */
+    private byte[] velocities;  /** The NoteOn velocity of each note */
+    private int count;          /** The number of notes */
+    private boolean shared;     /** True if the arrays are shared with a clone */
+    private int modcount;       /** The number of changes made to the table */
+
+    /** Create an empty table, with room for the given number of notes */
+    public NoteTable(int capacity) {
+        capacity = Math.max(capacity, 4);
+        starts = new int[capacity];
+        durations = new int[capacity];
+        numbers = new int[capacity];
+        channels = new int[capacity];
+        velocities = new byte[capacity];
+        count = 0;
+    }
+
+    /** Return the number of notes */
+    public int size() { return count; }
+
+    /** Return the number of changes made to the table so far */
+    public int modCount() { return modcount; }
+
+    public int getStartTime(int i) { return starts[i]; }
+    public int getDuration(int i) { return durations[i]; }
+    public int getEndTime(int i) { return starts[i] + durations[i]; }
+    public int getNumber(int i) { return numbers[i]; }
+    public int getChannel(int i) { return channels[i]; }
+    public int getVelocity(int i) { return velocities[i] & 0xFF; }
+
+    public void setStartTime(int i, int value) { Own(); starts[i] = value; }
+    public void setDuration(int i, int value) { Own(); durations[i] = value; }
+    public void setNumber(int i, int value) { Own(); numbers[i] = value; }
+    public void setChannel(int i, int value) { Own(); channels[i] = value; }
+
+    /** Return the note at the given row, as a MidiNote */
+    public MidiNote getNote(int i) {
+        return new MidiNote(starts[i], channels[i], numbers[i], durations[i]);
+    }
+
+    /** Before a change, copy the arrays if they are shared with a
+     *  clone, and count the change.
+     */
+    private void Own() {
+        if (shared) {
+            Resize(starts.length);
+            shared = false;
+        }
+        modcount++;
+    }
+
+    /** Replace the arrays with copies of the given length */
+    private void Resize(int capacity) {
+        int[] newstarts = new int[capacity];
+        int[] newdurations = new int[capacity];
+        int[] newnumbers = new int[capacity];
+        int[] newchannels = new int[capacity];
+        byte[] newvelocities = new byte[capacity];
+        System.arraycopy(starts, 0, newstarts, 0, count);
+        System.arraycopy(durations, 0, newdurations, 0, count);
+        System.arraycopy(numbers, 0, newnumbers, 0, count);
+        System.arraycopy(channels, 0, newchannels, 0, count);
+        System.arraycopy(velocities, 0, newvelocities, 0, count);
+        starts = newstarts;
+        durations = newdurations;
+        numbers = newnumbers;
+        channels = newchannels;
+        velocities = newvelocities;
+    }
+
+    /** Add a note at the end of the table */
+    public void Add(int starttime, int channel, int number, int duration, int velocity) {
+        Own();
+        if (count == starts.length) {
+            Resize(count * 2);
+        }
+        starts[count] = starttime;
+        channels[count] = channel;
+        numbers[count] = number;
+        durations[count] = duration;
+        velocities[count] = (byte)velocity;
+        count++;
+    }
+
+    /** Add a copy of the given row of another table at the end of the table */
+    public void Add(NoteTable table, int row) {
+        Add(table.starts[row], table.channels[row], table.numbers[row],
+            table.durations[row], table.velocities[row]);
+    }
+
+    /** Return a list of the notes as MidiNotes */
+    public ArrayList<MidiNote> ToList() {
+        ArrayList<MidiNote> list = new ArrayList<MidiNote>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(getNote(i));
+        }
+        return list;
+    }
+
+    /** Return a copy of this table.  The arrays are shared, and only
+     *  copied when either table is changed.
+     */
+    public NoteTable Clone() {
+        NoteTable table = new NoteTable(0);
+        table.starts = starts;
+        table.durations = durations;
+        table.numbers = numbers;
+        table.channels = channels;
+        table.velocities = velocities;
+        table.count = count;
+        table.shared = true;
+        shared = true;
+        return table;
+    }
+
+    /** Add the given amount to the start time of every note */
+    public void ShiftTime(int amount) {
+        Own();
+        int[] column = starts;
+        for (int i = 0; i < count; i++) {
+            column[i] += amount;
+        }
+    }
+
+    /** Add the given amount to the number of every note.  Numbers
+     *  below 0 are set to 0.
+     */
+    public void Transpose(int amount) {
+        Own();
+        int[] column = numbers;
+        for (int i = 0; i < count; i++) {
+            column[i] = Math.max(column[i] + amount, 0);
+        }
+    }
+
+    /** Set the channel of every note */
+    public void FillChannel(int channel) {
+        Own();
+        Arrays.fill(channels, 0, count, channel);
+    }
+
+    /** Return true if note i comes after note j: it starts later, or
+     *  starts at the same time with a higher number.  This is the order
+     *  of MidiNote.compare().
+     */
+    private boolean After(int i, int j) {
+        if (starts[i] != starts[j]) {
+            return starts[i] > starts[j];
+        }
+        return numbers[i] > numbers[j];
+    }
+
+    /** Return true if the notes are sorted by start time, then number */
+    public boolean isSorted() {
+        for (int i = 1; i < count; i++) {
+            if (After(i-1, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Sort the notes by start time, then number.  Notes that are equal
+     *  keep their order.  The row numbers are sorted with a merge sort,
+     *  and then each column is reordered once.
+     */
+    public void Sort() {
+        if (isSorted()) {
+            return;
+        }
+        int[] order = new int[count];
+        int[] temp = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        for (int width = 1; width < count; width *= 2) {
+            for (int left = 0; left < count - width; left += 2*width) {
+                int mid = left + width;
+                int right = Math.min(left + 2*width, count);
+                int a = left, b = mid, k = left;
+                while (a < mid && b < right) {
+                    if (After(order[a], order[b])) {
+                        temp[k++] = order[b++];
+                    }
+                    else {
+                        temp[k++] = order[a++];
+                    }
+                }
+                while (a < mid) {
+                    temp[k++] = order[a++];
+                }
+                while (b < right) {
+                    temp[k++] = order[b++];
+                }
+                System.arraycopy(temp, left, order, left, right - left);
+            }
+        }
+
+        int[] newstarts = new int[starts.length];
+        int[] newdurations = new int[starts.length];
+        int[] newnumbers = new int[starts.length];
+        int[] newchannels = new int[starts.length];
+        byte[] newvelocities = new byte[starts.length];
+        for (int i = 0; i < count; i++) {
+            int row = order[i];
+            newstarts[i] = starts[row];
+            newdurations[i] = durations[row];
+            newnumbers[i] = numbers[row];
+            newchannels[i] = channels[row];
+            newvelocities[i] = velocities[row];
+        }
+        starts = newstarts;
+        durations = newdurations;
+        numbers = newnumbers;
+        channels = newchannels;
+        velocities = newvelocities;
+        shared = false;
+        modcount++;
+    }
+}
+
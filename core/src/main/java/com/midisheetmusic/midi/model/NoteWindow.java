@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.util.*;
+
+/** @class NoteWindow
+ * The NoteWindow is used by MidiFile.SplitTrack() to find, for each note,
+ * the highest and lowest notes near it.  The notes must be sorted by
+ * start time, and are visited in order with Move().  For the note with
+ * start time s and end time e, the window contains:
+ *
+ * - The notes that start in [s, min(e, s + measure)).
+ * - The notes that start in [s - measure, s), and end at or after s.
+ *
+ * The first part is a range of the note array, whose high/low are found
+ * in a sparse table (the high/low of each range of 2^k notes).  The
+ * second part is the set of notes still sounding at s.  Notes are added
+ * to this set once they start before s, and removed once s is past
+ * min(end, start + measure).  The set keeps a count per distinct note
+ * number, and a bit mask of the numbers present (in sorted order), so
+ * its high/low is found with a leading/trailing zero count.
+ *
+ * The exact high/low (of the notes starting at exactly s) are found
+ * in one pass over the groups of notes with the same start time.
+ */
+public class NoteWindow {
+    private NoteTable notes;            /** The notes, sorted by start time */
+    private int measure;                /** The maximum distance to look at, in pulses */
+    private int[][] highs;              /** highs[k][i] = highest number in notes[i : i+2^k] */
+    private int[][] lows;               /** lows[k][i] = lowest number in notes[i : i+2^k] */
+    private int[] exactHighs;           /** The highest number starting at each note's start time */
+    private int[] exactLows;            /** The lowest number starting at each note's start time */
+    private long[] expiry;              /** (last time in the set << 32 | index), sorted */
+    private int[] numbers;              /** The distinct note numbers, sorted */
+    private int[] ranks;                /** The index in numbers of each note's number */
+
+    private int[] counts;               /** The number of notes in the set, per rank */
+    private long[] masks;               /** Bit r is set if counts[r] > 0 */
+    private int added;                  /** The notes before this index were added to the set */
+    private int removed;                /** The expiry entries before this one were removed */
+
+    private int high;                   /** The highest number in the window */
+    private int low;                    /** The lowest number in the window */
+    private int exactHigh;              /** The highest number starting at the same time */
+    private int exactLow;               /** The lowest number starting at the same time */
+
+    /** Create a window over the given notes, sorted by start time */
+    public NoteWindow(NoteTable notes, int measure) {
+        this.notes = notes;
+        this.measure = measure;
+        int count = notes.size();
+
+        int levels = 1;
+        while ((1 << levels) <= count) {
+            levels++;
+        }
+        highs = new int[levels][];
+        lows = new int[levels][];
+        highs[0] = new int[count];
+        lows[0] = new int[count];
+        for (int i = 0; i < count; i++) {
+            highs[0][i] = lows[0][i] = notes.getNumber(i);
+        }
+        for (int k = 1; k < levels; k++) {
+            int half = 1 << (k-1);
+            int len = count - (1 << k) + 1;
+            highs[k] = new int[len];
+            lows[k] = new int[len];
+            for (int i = 0; i < len; i++) {
+                highs[k][i] = Math.max(highs[k-1][i], highs[k-1][i + half]);
+                lows[k][i] = Math.min(lows[k-1][i], lows[k-1][i + half]);
+            }
+        }
+
+        exactHighs = new int[count];
+        exactLows = new int[count];
+        int i = 0;
+        while (i < count) {
+            int start = notes.getStartTime(i);
+            int hi = notes.getNumber(i);
+            int lo = hi;
+            int j = i;
+            while (j < count && notes.getStartTime(j) == start) {
+                hi = Math.max(hi, notes.getNumber(j));
+                lo = Math.min(lo, notes.getNumber(j));
+                j++;
+            }
+            for (int k = i; k < j; k++) {
+                exactHighs[k] = hi;
+                exactLows[k] = lo;
+            }
+            i = j;
+        }
+
+        expiry = new long[count];
+        for (i = 0; i < count; i++) {
+            long last = Math.min((long)notes.getEndTime(i), (long)notes.getStartTime(i) + measure);
+            expiry[i] = (last << 32) | i;
+        }
+        Arrays.sort(expiry);
+
+        int[] sorted = new int[count];
+        for (i = 0; i < count; i++) {
+            sorted[i] = notes.getNumber(i);
+        }
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (i = 0; i < count; i++) {
+            if (distinct == 0 || sorted[i] != sorted[distinct-1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        numbers = new int[distinct];
+        System.arraycopy(sorted, 0, numbers, 0, distinct);
+        ranks = new int[count];
+        for (i = 0; i < count; i++) {
+            ranks[i] = Arrays.binarySearch(numbers, notes.getNumber(i));
+        }
+        counts = new int[distinct];
+        masks = new long[(distinct + 63) / 64];
+    }
+
+    /** Add the note at the given index to the set of sounding notes */
+    private void Add(int index) {
+        int rank = ranks[index];
+        if (counts[rank]++ == 0) {
+            masks[rank >> 6] |= 1L << (rank & 63);
+        }
+    }
+
+    /** Remove the note at the given index from the set of sounding notes */
+    private void Remove(int index) {
+        int rank = ranks[index];
+        if (--counts[rank] == 0) {
+            masks[rank >> 6] &= ~(1L << (rank & 63));
+        }
+    }
+
+    /** Move the window to the note at the given index.  The index must
+     *  not be less than the index of the previous call.
+     */
+    public void Move(int index) {
+        int starttime = notes.getStartTime(index);
+        int number = notes.getNumber(index);
+        int count = notes.size();
+
+        /* Add the notes that start before this note, and remove the
+         * notes that ended, or started more than a measure ago.
+         */
+        while (added < count && notes.getStartTime(added) < starttime) {
+            Add(added);
+            added++;
+        }
+        while (removed < count && (expiry[removed] >> 32) < starttime) {
+            Remove((int)expiry[removed]);
+            removed++;
+        }
+
+        high = low = number;
+        for (int w = masks.length - 1; w >= 0; w--) {
+            if (masks[w] != 0) {
+                int rank = w*64 + 63 - Long.numberOfLeadingZeros(masks[w]);
+                high = Math.max(high, numbers[rank]);
+                break;
+            }
+        }
+        for (int w = 0; w < masks.length; w++) {
+            if (masks[w] != 0) {
+                int rank = w*64 + Long.numberOfTrailingZeros(masks[w]);
+                low = Math.min(low, numbers[rank]);
+                break;
+            }
+        }
+
+        /* The notes starting in [starttime, endtime) */
+        int endtime = notes.getEndTime(index);
+        if (starttime + measure < endtime) {
+            endtime = starttime + measure;
+        }
+        int first = added;
+        int last = first;
+        int hibound = count;
+        while (last < hibound) {
+            int mid = (last + hibound) >>> 1;
+            if (notes.getStartTime(mid) < endtime) {
+                last = mid + 1;
+            }
+            else {
+                hibound = mid;
+            }
+        }
+        if (first < last) {
+            int k = 31 - Integer.numberOfLeadingZeros(last - first);
+            high = Math.max(high, Math.max(highs[k][first], highs[k][last - (1 << k)]));
+            low = Math.min(low, Math.min(lows[k][first], lows[k][last - (1 << k)]));
+        }
+
+        exactHigh = exactHighs[index];
+        exactLow = exactLows[index];
+    }
+
+    /** Return the highest note number in the window */
+    public int getHigh() { return high; }
+
+    /** Return the lowest note number in the window */
+    public int getLow() { return low; }
+
+    /** Return the highest note number starting at the same time */
+    public int getExactHigh() { return exactHigh; }
+
+    /** Return the lowest note number starting at the same time */
+    public int getExactLow() { return exactLow; }
+}
+
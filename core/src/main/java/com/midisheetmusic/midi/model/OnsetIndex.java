@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+/** @class OnsetIndex
+ * The OnsetIndex finds, for each note in a list sorted by start time,
+ * the next note that starts later (the next onset), both in the whole
+ * list and among the notes with the same channel.  It also keeps the
+ * largest end time from each note to the end of the list, which is
+ * used when there is no next onset.
+ *
+ * The index is built in a single pass from the last note to the first.
+ * If the note after note i starts later, it is the next onset of i.
+ * Otherwise both start at the same time, and share the same next onset.
+ * The same is done per channel, using the last note seen of each channel.
+ *
+ * The index only depends on the start times and channels of the notes.
+ * If those change, a new index must be created.
+ */
+public class OnsetIndex {
+    private NoteTable notes;            /** The notes, sorted by start time */
+    private int[] nextOnsets;           /** The index of the next later note, or -1 */
+    private int[] nextChannelOnsets;    /** The index of the next later note of the same channel, or -1 */
+    private int[] lastEnds;             /** The largest end time of notes[i:] */
+    private int[] lastChannelEnds;      /** The largest end time of notes[i:] of the same channel */
+
+    /** Create the index of the given notes, sorted by start time */
+    public OnsetIndex(NoteTable notes) {
+        this.notes = notes;
+        int count = notes.size();
+        nextOnsets = new int[count];
+        nextChannelOnsets = new int[count];
+        lastEnds = new int[count];
+        lastChannelEnds = new int[count];
+
+        int maxchannel = 0;
+        for (int i = 0; i < count; i++) {
+            maxchannel = Math.max(maxchannel, notes.getChannel(i));
+        }
+        /* The index of the last note seen of each channel */
+        int[] channelNext = new int[maxchannel + 1];
+        for (int c = 0; c <= maxchannel; c++) {
+            channelNext[c] = -1;
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            int start = notes.getStartTime(i);
+            int end = notes.getEndTime(i);
+
+            if (i == count - 1) {
+                nextOnsets[i] = -1;
+                lastEnds[i] = end;
+            }
+            else {
+                nextOnsets[i] = (notes.getStartTime(i+1) > start) ? i+1 : nextOnsets[i+1];
+                lastEnds[i] = Math.max(end, lastEnds[i+1]);
+            }
+
+            int channel = notes.getChannel(i);
+            int j = channelNext[channel];
+            if (j == -1) {
+                nextChannelOnsets[i] = -1;
+                lastChannelEnds[i] = end;
+            }
+            else {
+                nextChannelOnsets[i] = (notes.getStartTime(j) > start) ? j : nextChannelOnsets[j];
+                lastChannelEnds[i] = Math.max(end, lastChannelEnds[j]);
+            }
+            channelNext[channel] = i;
+        }
+    }
+
+    /** Return the number of notes */
+    public int size() { return nextOnsets.length; }
+
+    /** Return the index of the first note after note i that starts
+     *  later than it, or -1 if there is none.
+     */
+    public int getNextOnset(int i) { return nextOnsets[i]; }
+
+    /** Return the index of the first note after note i, with the same
+     *  channel, that starts later than it, or -1 if there is none.
+     */
+    public int getNextChannelOnset(int i) { return nextChannelOnsets[i]; }
+
+    /** Return the start time of the next onset after note i.  If all the
+     *  subsequent notes have the same start time, return the largest
+     *  end time of those notes.
+     */
+    public int getNextStartTime(int i) {
+        int next = nextOnsets[i];
+        return (next == -1) ? lastEnds[i] : notes.getStartTime(next);
+    }
+
+    /** Return the start time of the next onset after note i, with the
+     *  same channel.  If there is none, return the largest end time of
+     *  the subsequent notes with the same channel.
+     */
+    public int getNextChannelStartTime(int i) {
+        int next = nextChannelOnsets[i];
+        return (next == -1) ? lastChannelEnds[i] : notes.getStartTime(next);
+    }
+}
+
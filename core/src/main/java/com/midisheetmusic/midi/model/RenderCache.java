@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** @class RenderCache
+ * The RenderCache keeps the midi data rendered by MidiFile.Render()
+ * for recently used sound options, keyed by their SoundKey.
+ * Playing the same measures in a loop, or resuming at the same place,
+ * then reuses the rendered data instead of rendering the song again.
+ *
+ * The data is copied into a buffer of its exact size when it is added,
+ * so the total size of the cached buffers (limited to maxSize bytes) is
+ * the size of the midi data they hold, and the rendered buffer can be
+ * reused for the next render.
+ * When a new buffer doesn't fit, the least recently used buffers are
+ * removed.  The cached buffers are shared, and must not be modified.
+ * A cache holds the renders of a single MidiFile, so it must be
+ * cleared when the MidiFile changes.
+ */
+public class RenderCache {
+    private LinkedHashMap<SoundKey, ByteBuffer> entries; /** The buffers, least recently used first */
+    private long maxSize;   /** The maximum total size of the buffers, in bytes */
+    private long size;      /** The total size of the buffers, in bytes */
+
+    /** Create an empty cache with the given maximum size */
+    public RenderCache(long maxSize) {
+        this.maxSize = maxSize;
+        entries = new LinkedHashMap<SoundKey, ByteBuffer>(16, 0.75f, true);
+        size = 0;
+    }
+
+    /** Return the buffer rendered for the given key, or null */
+    public synchronized ByteBuffer Get(SoundKey key) {
+        return entries.get(key);
+    }
+
+    /** Add the data rendered for the given key.  The buffer holds the
+     *  data from position 0 to its limit.  The data is copied into a new
+     *  array of the right size, so the given buffer may be changed
+     *  afterwards.  Return the copy (which is not added if it's too
+     *  large to cache).
+     */
+    public synchronized ByteBuffer Put(SoundKey key, ByteBuffer data) {
+        long datasize = data.limit();
+        byte[] array = new byte[data.limit()];
+        ByteBuffer copy = data.duplicate();
+        copy.position(0);
+        copy.get(array);
+        data = ByteBuffer.wrap(array);
+        if (datasize > maxSize) {
+            return data;
+        }
+        ByteBuffer old = entries.remove(key);
+        if (old != null) {
+            size -= old.limit();
+        }
+        Iterator<ByteBuffer> iter = entries.values().iterator();
+        while (size + datasize > maxSize && iter.hasNext()) {
+            size -= iter.next().limit();
+            iter.remove();
+        }
+        entries.put(key, data);
+        size += datasize;
+        return data;
+    }
+
+    /** Remove all the buffers */
+    public synchronized void Clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /** Return the total size of the cached buffers, in bytes */
+    public synchronized long size() { return size; }
+}
+
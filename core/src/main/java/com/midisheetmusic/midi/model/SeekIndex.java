@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import com.midisheetmusic.helper.ListInt;
+
+/** @class SeekIndex
+ * The SeekIndex is used to start playing a track in the middle of the
+ * song, without replaying every event before that point.
+ *
+ * At the start of every measure, the index stores a checkpoint:
+ * the row of the first event in the measure, and the channel state
+ * set by the events before it.  The channel state is the last value of
+ * each controller, the program, the pitch bend and the channel pressure
+ * of each of the 16 channels.  Only the values that were set are stored,
+ * as (key, value) pairs, where the key is (channel * StateSize + type).
+ * The type is the controller number (0-127), Program, PitchBend or
+ * Pressure.  The rows of the sysex events are also kept, since those
+ * can change the sound of the whole synthesizer.
+ *
+ * The keys are kept in the order they were first set, so the state can
+ * be sent again in the same order.  This matters for the RPN/NRPN
+ * controllers, where the parameter number (98-101) selects what the
+ * following Data Entry (6/38) changes.  Data Increment/Decrement (96/97)
+ * are actions rather than values, so they are not kept.
+ *
+ * To start at a given pulse, the state of the checkpoint of that
+ * measure is loaded with LoadState(), and then the events from the
+ * checkpoint up to the pulse are applied with Apply().
+ */
+public class SeekIndex {
+    public static final int Program   = 128;  /** The state type of ProgramChange */
+    public static final int PitchBend = 129;  /** The state type of PitchBend */
+    public static final int Pressure  = 130;  /** The state type of ChannelPressure */
+    public static final int StateSize = 131;  /** The number of state types per channel */
+
+    public static final int DataEntry     = 6;   /** The Data Entry controller */
+    public static final int DataEntryFine = 38;  /** The Data Entry LSB controller */
+    public static final int DataIncrement = 96;  /** The Data Increment controller */
+    public static final int DataDecrement = 97;  /** The Data Decrement controller */
+
+    private int measure;        /** The pulses between checkpoints */
+    private int[] rows;         /** The first row of each checkpoint */
+    private int[] offsets;      /** The start of each checkpoint in keys/values */
+    private ListInt keys;       /** The state keys of all the checkpoints */
+    private ListInt values;     /** The state values of all the checkpoints */
+    private ListInt sysexrows;  /** The rows of the sysex events */
+
+    /** Create the seek index of the given track, with a checkpoint
+     *  every 'measure' pulses.
+     */
+    public SeekIndex(EventTable table, int measure) {
+        this.measure = Math.max(measure, 1);
+        int numpoints = 1;
+        if (table.size() > 0) {
+            numpoints = table.getStartTime(table.size() - 1) / this.measure + 1;
+        }
+        rows = new int[numpoints];
+        offsets = new int[numpoints + 1];
+        keys = new ListInt();
+        values = new ListInt();
+        sysexrows = new ListInt();
+
+        int[] state = new int[16 * StateSize];
+        ListInt order = new ListInt();
+        int point = 0;
+        for (int i = 0; i <= table.size(); i++) {
+            /* Save the checkpoints of the measures starting at or before this event */
+            int starttime = (i < table.size()) ? table.getStartTime(i) : Integer.MAX_VALUE;
+            while (point < numpoints && (long)point * this.measure <= starttime) {
+                rows[point] = i;
+                offsets[point] = keys.size();
+                for (int k = 0; k < order.size(); k++) {
+                    int key = order.get(k);
+                    keys.add(key);
+                    values.add(state[key] - 1);
+                }
+                point++;
+            }
+            if (i < table.size()) {
+                byte eventflag = table.getEventFlag(i);
+                if (eventflag == MidiFile.SysexEvent1 || eventflag == MidiFile.SysexEvent2) {
+                    sysexrows.add(i);
+                }
+                Apply(table, i, state, order);
+            }
+        }
+        offsets[numpoints] = keys.size();
+    }
+
+    /** Return the checkpoint at or before the given pulse */
+    public int getCheckpoint(int pulse) {
+        if (pulse <= 0) {
+            return 0;
+        }
+        return Math.min(pulse / measure, rows.length - 1);
+    }
+
+    /** Return the first row of the given checkpoint */
+    public int getRow(int checkpoint) { return rows[checkpoint]; }
+
+    /** Return the number of sysex events */
+    public int getSysexCount() { return sysexrows.size(); }
+
+    /** Return the row of the given sysex event */
+    public int getSysexRow(int i) { return sysexrows.get(i); }
+
+    /** Set the state to the channel state of the given checkpoint.
+     *  Each entry of state is the value + 1, or 0 if the value isn't set.
+     *  The order is set to the keys that are set, in the order they
+     *  were first set.
+     */
+    public void LoadState(int checkpoint, int[] state, ListInt order) {
+        for (int i = 0; i < state.length; i++) {
+            state[i] = 0;
+        }
+        order.truncate(0);
+        for (int i = offsets[checkpoint]; i < offsets[checkpoint+1]; i++) {
+            state[keys.get(i)] = values.get(i) + 1;
+            order.add(keys.get(i));
+        }
+    }
+
+    /** Return true if the key is a Data Entry controller */
+    public static boolean isDataEntry(int key) {
+        int type = key % StateSize;
+        return type == DataEntry || type == DataEntryFine;
+    }
+
+    /** Update the channel state with the given event.  A key that wasn't
+     *  set is added to the end of the order.  The channel mode controllers
+     *  (120-127) and Data Increment/Decrement are not kept.  Reset All
+     *  Controllers (121) clears the controllers, except the bank, volume
+     *  and pan, and also clears the pitch bend and pressure.
+     */
+    public static void Apply(EventTable table, int row, int[] state, ListInt order) {
+        byte eventflag = table.getEventFlag(row);
+        int base = table.getChannel(row) * StateSize;
+        int data1 = table.getData1(row) & 0xFF;
+        int data2 = table.getData2(row) & 0xFF;
+
+        if (eventflag == MidiFile.EventControlChange) {
+            if (data1 == DataIncrement || data1 == DataDecrement) {
+                return;
+            }
+            if (data1 < 120) {
+                Set(state, order, base + data1, data2);
+            }
+            else if (data1 == 121) {
+                for (int c = 0; c < 120; c++) {
+                    if (c != 0 && c != 32 && c != 7 && c != 10) {
+                        state[base + c] = 0;
+                    }
+                }
+                state[base + PitchBend] = 0;
+                state[base + Pressure] = 0;
+
+                /* Remove the cleared keys from the order */
+                int count = 0;
+                for (int i = 0; i < order.size(); i++) {
+                    if (state[order.get(i)] != 0) {
+                        order.set(count, order.get(i));
+                        count++;
+                    }
+                }
+                order.truncate(count);
+            }
+        }
+        else if (eventflag == MidiFile.EventProgramChange) {
+            Set(state, order, base + Program, data1);
+        }
+        else if (eventflag == MidiFile.EventPitchBend) {
+            Set(state, order, base + PitchBend, data1 | (data2 << 8));
+        }
+        else if (eventflag == MidiFile.EventChannelPressure) {
+            Set(state, order, base + Pressure, data1);
+        }
+    }
+
+    /** Set the value of the given key */
+    private static void Set(int[] state, ListInt order, int key, int value) {
+        if (state[key] == 0) {
+            order.add(key);
+        }
+        state[key] = value + 1;
+    }
+}
+
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.util.*;
+
+/** @class SoundKey
+ * The SoundKey holds the MidiOptions that change the sound, as rendered
+ * by MidiFile.Render(): the tracks, mute, instruments, transpose, tempo
+ * and pause time.  Two keys are equal exactly when they render the same
+ * midi data, so a SoundKey is used as the key of the RenderCache.
+ *
+ * The values are copied from the MidiOptions, so the key doesn't change
+ * when the options are changed later.
+ */
+public final class SoundKey {
+    private final boolean[] tracks;      /** Which tracks to play */
+    private final boolean[] mute;        /** Which tracks to mute */
+    private final int[] instruments;     /** The instrument per track, or null
+                                          *  to use the default instruments */
+    private final int transpose;         /** The amount to transpose the notes by */
+    private final int tempo;             /** The tempo, in microseconds per quarter note */
+    private final int pauseTime;         /** The time (in pulses) to start at */
+
+    /** Create the key of the sound options in the given MidiOptions */
+    public SoundKey(MidiOptions options) {
+        tracks = options.tracks.clone();
+        mute = options.mute.clone();
+        if (options.useDefaultInstruments) {
+            instruments = null;
+        }
+        else {
+            instruments = options.instruments.clone();
+        }
+        transpose = options.transpose;
+        tempo = options.tempo;
+        pauseTime = options.pauseTime;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SoundKey)) {
+            return false;
+        }
+        SoundKey other = (SoundKey) obj;
+        return transpose == other.transpose && tempo == other.tempo &&
+               pauseTime == other.pauseTime &&
+               Arrays.equals(tracks, other.tracks) &&
+               Arrays.equals(mute, other.mute) &&
+               Arrays.equals(instruments, other.instruments);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Arrays.hashCode(tracks);
+        hash = hash * 31 + Arrays.hashCode(mute);
+        hash = hash * 31 + Arrays.hashCode(instruments);
+        hash = hash * 31 + transpose;
+        hash = hash * 31 + tempo;
+        hash = hash * 31 + pauseTime;
+        return hash;
+    }
+}
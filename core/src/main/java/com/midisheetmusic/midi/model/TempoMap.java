@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import com.midisheetmusic.helper.ListInt;
+
+/** @class TempoMap
+ * The TempoMap converts between pulses and real time (microseconds),
+ * using all the tempo events in the midi file, instead of one average
+ * tempo.
+ *
+ * The song is divided into segments with a constant tempo.  For each
+ * segment, we store three sorted arrays:
+ * - The start time of the segment, in pulses.
+ * - The tempo, in microseconds per quarter note.
+ * - The start time of the segment, in microseconds.  To keep this
+ *   exact, the time is stored multiplied by the pulses per quarter note.
+ *
+ * A conversion finds the segment with a binary search, so it takes
+ * O(log n) time for n tempo changes.
+ *
+ * The first tempo applies from the start of the song, even if the first
+ * tempo event comes later.  If there are no tempo events, the tempo is
+ * 500,000 microseconds per quarter note.
+ */
+public class TempoMap {
+    private int quarternote;  /** The number of pulses per quarter note */
+    private int count;        /** The number of segments */
+    private int[] pulses;     /** The start time of each segment, in pulses */
+    private int[] tempos;     /** The tempo of each segment, in microseconds per quarter note */
+    private long[] times;     /** The start time of each segment, in microseconds
+                               *  multiplied by quarternote */
+
+    /** Create a new TempoMap from the given tempo events.  The events
+     *  don't need to be sorted.  If several events have the same start
+     *  time, the last one is used.  Tempo events with a value of 0 are
+     *  ignored.
+     */
+    public TempoMap(int quarternote, ListInt eventtimes, ListInt eventtempos) {
+        this.quarternote = quarternote;
+        int num = eventtimes.size();
+        int[] sortedtimes = new int[num];
+        int[] sortedtempos = new int[num];
+        int sorted = 0;
+
+        /* Insertion sort, which keeps the order of events with the same
+         * start time.  The tempo events are usually already sorted.
+         */
+        for (int i = 0; i < num; i++) {
+            if (eventtempos.get(i) <= 0) {
+                continue;
+            }
+            int j = sorted;
+            while (j > 0 && sortedtimes[j-1] > eventtimes.get(i)) {
+                sortedtimes[j] = sortedtimes[j-1];
+                sortedtempos[j] = sortedtempos[j-1];
+                j--;
+            }
+            sortedtimes[j] = eventtimes.get(i);
+            sortedtempos[j] = eventtempos.get(i);
+            sorted++;
+        }
+
+        pulses = new int[sorted + 1];
+        tempos = new int[sorted + 1];
+        times = new long[sorted + 1];
+        pulses[0] = 0;
+        tempos[0] = (sorted > 0) ? sortedtempos[0] : 500000;
+        times[0] = 0;
+        count = 1;
+        for (int i = 0; i < sorted; i++) {
+            int pulse = Math.max(sortedtimes[i], 0);
+            int tempo = sortedtempos[i];
+            if (pulse == pulses[count-1]) {
+                tempos[count-1] = tempo;
+            }
+            else if (tempo != tempos[count-1]) {
+                times[count] = times[count-1] +
+                               (long)(pulse - pulses[count-1]) * tempos[count-1];
+                pulses[count] = pulse;
+                tempos[count] = tempo;
+                count++;
+            }
+        }
+        /* Merging segments with the same tempo may have left a segment
+         * with the tempo of the segment before it.
+         */
+        int newcount = 1;
+        for (int i = 1; i < count; i++) {
+            if (tempos[i] != tempos[newcount-1]) {
+                pulses[newcount] = pulses[i];
+                tempos[newcount] = tempos[i];
+                times[newcount] = times[i];
+                newcount++;
+            }
+        }
+        count = newcount;
+    }
+
+    /** Return the number of pulses per quarter note */
+    public int getQuarter() { return quarternote; }
+
+    /** Return the number of constant tempo segments */
+    public int size() { return count; }
+
+    /** Return the start time (in pulses) of the given segment */
+    public int getPulse(int segment) { return pulses[segment]; }
+
+    /** Return the tempo (in microseconds per quarter note) of the given segment */
+    public int getTempo(int segment) { return tempos[segment]; }
+
+    /** Return the tempo (in microseconds per quarter note) at the given pulse */
+    public int getTempoAt(int pulse) {
+        return tempos[FindPulse(pulse)];
+    }
+
+    /** Return the index of the segment containing the given pulse */
+    private int FindPulse(int pulse) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (pulses[mid] <= pulse) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Return the index of the segment containing the given time, where
+     *  the time is in microseconds multiplied by the quarter note.
+     */
+    private int FindTime(double time) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (times[mid] <= time) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Return the time of the given pulse, in microseconds multiplied
+     *  by the quarter note.
+     */
+    private long ScaledTime(int pulse) {
+        int segment = FindPulse(pulse);
+        return times[segment] + (long)(pulse - pulses[segment]) * tempos[segment];
+    }
+
+    /** Convert the given time in pulses to microseconds */
+    public double pulseToMicros(double pulse) {
+        int segment = FindPulse((int)Math.floor(pulse));
+        double time = times[segment] + (pulse - pulses[segment]) * tempos[segment];
+        return time / quarternote;
+    }
+
+    /** Convert the given time in microseconds to pulses */
+    public double microsToPulse(double micros) {
+        double time = micros * quarternote;
+        int segment = FindTime(time);
+        return pulses[segment] + (time - times[segment]) / tempos[segment];
+    }
+
+    /** Return the number of whole pulses, starting at the given pulse,
+     *  that fit within the given number of microseconds.  For example,
+     *  to combine notes within 60 milliseconds of a note at pulse p,
+     *  use getInterval(p, 60000).  The result is exact: it is the same
+     *  as quarternote * micros / tempo when the tempo is constant.
+     */
+    public int getInterval(int pulse, long micros) {
+        long end = ScaledTime(pulse) + micros * quarternote;
+        int segment = FindTime(end);
+        long endpulse = pulses[segment] + (end - times[segment]) / tempos[segment];
+        return (int)Math.min(endpulse - pulse, Integer.MAX_VALUE);
+    }
+}
+
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.nio.ByteBuffer;
+
+import com.midisheetmusic.helper.ListInt;
+
+/** @class TrackIndex
+ * The TrackIndex is a summary of a single MTrk chunk, gathered in one
+ * pass over its events without creating any MidiNotes:
+ * - The offset and length of the chunk in the midi file.
+ * - The channels used by the notes, and the number of notes.
+ * - The instrument of the track, and of each channel.
+ * - The start/end time of the last note.
+ * - The tempo and time signature events.
+ *
+ * The MidiFile uses the TrackIndex to create a MidiTrack whose notes
+ * are only decoded the first time they are needed.  The values here
+ * match what a fully decoded MidiTrack would contain.
+ */
+public class TrackIndex implements MidiEventHandler {
+    private int tracknum;             /** The track number */
+    private int offset;               /** The offset of the MTrk chunk */
+    private int length;               /** The length of the MTrk chunk, from its header */
+    private int endoffset;            /** The offset where the track events ended */
+    private int channelMask;          /** Bit i is set if channel i has notes */
+    private int noteCount;            /** The number of notes */
+    private int firstChannel;         /** The channel of the first note */
+    private int instrument;           /** The last program change */
+    private int[] channelInstruments; /** The last program change per channel */
+    private boolean haslyrics;        /** True if the track has lyrics */
+    private boolean sorted;           /** True if the notes are sorted by start time */
+
+    private int lastStart;            /** The start time of the last note */
+    private int lastDuration;         /** The duration of the last note */
+    private int lastChannel;          /** The channel of the last note */
+    private int lastNumber;           /** The note number of the last note */
+    private int endtime;              /** The time of the last event */
+
+    private long tempo;               /** The sum of all tempos */
+    private int tempoCount;           /** The number of tempo events */
+    private ListInt tempoTimes;       /** The start time of each tempo event */
+    private ListInt tempoValues;      /** The value of each tempo event */
+    private int numer;                /** The first time signature numerator */
+    private int denom;                /** The first time signature denominator */
+
+    /** Create an empty index for the MTrk chunk at the given offset */
+    public TrackIndex(int tracknum, int offset) {
+        this.tracknum = tracknum;
+        this.offset = offset;
+        channelInstruments = new int[16];
+        firstChannel = -1;
+        sorted = true;
+        tempoTimes = new ListInt(1);
+        tempoValues = new ListInt(1);
+    }
+
+    public int trackNumber() { return tracknum; }
+    public int getOffset() { return offset; }
+    public int getLength() { return length; }
+    public int getEndOffset() { return endoffset; }
+    public int getChannelMask() { return channelMask; }
+    public int getNoteCount() { return noteCount; }
+    public int[] getChannelInstruments() { return channelInstruments; }
+    public boolean hasLyrics() { return haslyrics; }
+    public boolean isSorted() { return sorted; }
+    public long getTempoSum() { return tempo; }
+    public int getTempoCount() { return tempoCount; }
+    public ListInt getTempoTimes() { return tempoTimes; }
+    public ListInt getTempoValues() { return tempoValues; }
+    public int getNumerator() { return numer; }
+    public int getDenominator() { return denom; }
+
+    /** Return the instrument of the track.  Like the MidiTrack, a
+     *  track whose first note is on channel 9 is Percussion.
+     */
+    public int getInstrument() {
+        if (firstChannel == 9) {
+            return 128;  /* Percussion */
+        }
+        return instrument;
+    }
+
+    /** Return the start time of the last note */
+    public int getLastStartTime() { return lastStart; }
+
+    /** Return the end time of the last note */
+    public int getLastEndTime() { return lastStart + lastDuration; }
+
+    /** Read the chunk at the offset, using MidiFile.ReadTrack(). */
+    void Read(ByteBuffer data) {
+        MidiFileReader file = new MidiFileReader(data);
+        file.Skip(offset);
+        MidiFile.ReadTrack(file, tracknum, this);
+        endoffset = file.GetOffset();
+        length = file.GetData().getInt(offset + 4);
+    }
+
+    public void startTrack(int tracknum) {
+    }
+
+    /** Count the notes.  The end time of the last note is found the same
+     *  way as MidiTrack.NoteOff(): the first NoteOff after the last NoteOn
+     *  with the same channel/number, that gives it a non-zero duration.
+     *  If there is none, the note ends at the end of the track.
+     */
+    public void channelEvent(int deltatime, int starttime, int eventflag,
+                             int channel, int data1, int data2) {
+        endtime = starttime;
+        if (eventflag == MidiFile.EventNoteOn && data2 > 0) {
+            if (noteCount > 0 && starttime < lastStart) {
+                sorted = false;
+            }
+            if (noteCount == 0) {
+                firstChannel = channel;
+            }
+            noteCount++;
+            channelMask |= (1 << channel);
+            lastStart = starttime;
+            lastDuration = 0;
+            lastChannel = channel;
+            lastNumber = data1;
+        }
+        else if ((eventflag == MidiFile.EventNoteOn && data2 == 0) ||
+                 eventflag == MidiFile.EventNoteOff) {
+            if (noteCount > 0 && lastDuration == 0 &&
+                channel == lastChannel && data1 == lastNumber) {
+                lastDuration = starttime - lastStart;
+            }
+        }
+        else if (eventflag == MidiFile.EventProgramChange) {
+            instrument = data1;
+            channelInstruments[channel] = data1;
+        }
+    }
+
+    public void metaEvent(int deltatime, int starttime, int metaevent,
+                          ByteBuffer data, int offset, int length) {
+        endtime = starttime;
+        if (metaevent == MidiFile.MetaEventTempo) {
+            int value = MidiFile.TempoValue(data, offset);
+            tempo += value;
+            tempoCount++;
+            tempoTimes.add(starttime);
+            tempoValues.add(value);
+        }
+        if (metaevent == MidiFile.MetaEventTimeSignature && numer == 0) {
+            numer = data.get(offset);
+            denom = (byte)Math.pow(2, data.get(offset+1));
+        }
+        if (metaevent == MidiFile.MetaEventLyric) {
+            haslyrics = true;
+        }
+    }
+
+    public void sysexEvent(int deltatime, int starttime, int eventflag,
+                           ByteBuffer data, int offset, int length) {
+        endtime = starttime;
+    }
+
+    public void endTrack(int tracknum) {
+        if (noteCount > 0 && lastDuration == 0) {
+            lastDuration = endtime - lastStart;
+        }
+    }
+}
+
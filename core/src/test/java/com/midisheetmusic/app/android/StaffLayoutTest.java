@@ -0,0 +1,757 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.app.android;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.midisheetmusic.app.guiHelper.ClefSymbol;
+import com.midisheetmusic.core.model.*;
+import com.midisheetmusic.helper.ListInt;
+import com.midisheetmusic.midi.model.*;
+
+/** @class StaffLayoutTest
+ * Check that the StaffLayout creates the same staffs as laying out the
+ * whole song at once, the way SheetMusic.init() did before.
+ *
+ * The golden file has the staffs that the old SheetMusic.init() created
+ * for each song in assets, scrolling horizontally and vertically, with
+ * one or two staffs per track, and with or without the lyrics.  Each
+ * staff is stored as the CRC32 of its Staff.toString() and its size and
+ * times, since the full text would take 78 MB.  This checks the whole
+ * path from the midi file to the staffs, including the chords, clefs
+ * and key signatures, against the code before the StaffLayout.
+ *
+ * The old layout is also kept here, rewritten on the NoteTable, as the
+ * reference for the windowed layouts.
+ * Each song in assets is laid out scrolling horizontally, vertically,
+ * and vertically windowed, with one or two staffs per track, and with
+ * or without the lyrics (which the test adds to the songs).  The tracks
+ * are split into chunks as if there were Threads worker threads.  The
+ * staffs are compared with Staff.toString() and their size and times.
+ * When windowed, the staffs on the first page are compared before any
+ * are restored, and the staffs are compared after they are restored,
+ * while the song is laid out, one staff at a time, and a page of staffs
+ * at a time.
+ */
+public class StaffLayoutTest {
+
+    /** The directory with the sample songs, relative to the core module */
+    private static final String AssetsDir = "assets";
+
+    /** The number of worker threads the chunks are split for */
+    private static final int Threads = 8;
+
+    /** The resource with the CRC32 of each staff from the old layout */
+    private static final String GoldenFile = "StaffLayoutGolden.txt";
+
+    /** @class BoxedInt */
+    private static class BoxedInt {
+        int value;
+    }
+
+    /** Get the best key signature given the midi notes in all the tracks. */
+    private static KeySignature GetKeySignature(ArrayList<MidiTrack> tracks) {
+        ListInt notenums = new ListInt();
+        for (MidiTrack track : tracks) {
+            NoteTable notes = track.readTable();
+            for (int i = 0; i < notes.size(); i++) {
+                notenums.add(notes.getNumber(i));
+            }
+        }
+        return KeySignature.Guess(notenums);
+    }
+
+    /** Create the chord symbols for a single track. */
+    private static ArrayList<ChordSymbol>
+    CreateChords(NoteTable midinotes, KeySignature key, TimeSignature time,
+                 ClefMeasures clefs) {
+        int i = 0;
+        ArrayList<ChordSymbol> chords = new ArrayList<ChordSymbol>();
+        int len = midinotes.size();
+        while (i < len) {
+            int starttime = midinotes.getStartTime(i);
+            Clef clef = clefs.GetClef(starttime);
+            int start = i;
+            i++;
+            while (i < len && midinotes.getStartTime(i) == starttime) {
+                i++;
+            }
+            chords.add(new ChordSymbol(midinotes, start, i, key, time, clef, null));
+        }
+        return chords;
+    }
+
+    /** Add in the vertical bars delimiting measures, and the time
+     *  signature symbol.
+     */
+    private static ArrayList<MusicSymbol>
+    AddBars(ArrayList<ChordSymbol> chords, TimeSignature time, int lastStart) {
+        ArrayList<MusicSymbol> symbols = new ArrayList<MusicSymbol>();
+        symbols.add(new TimeSigSymbol(time.getNumerator(), time.getDenominator()));
+
+        int measuretime = 0;
+        int i = 0;
+        while (i < chords.size()) {
+            if (measuretime <= chords.get(i).getStartTime()) {
+                symbols.add(new BarSymbol(measuretime));
+                measuretime += time.getMeasure();
+            }
+            else {
+                symbols.add(chords.get(i));
+                i++;
+            }
+        }
+        while (measuretime < lastStart) {
+            symbols.add(new BarSymbol(measuretime));
+            measuretime += time.getMeasure();
+        }
+        symbols.add(new BarSymbol(measuretime));
+        return symbols;
+    }
+
+    /** Add rest symbols between notes. */
+    private static ArrayList<MusicSymbol>
+    AddRests(ArrayList<MusicSymbol> symbols, TimeSignature time) {
+        int prevtime = 0;
+        ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>(symbols.size());
+        for (MusicSymbol symbol : symbols) {
+            int starttime = symbol.getStartTime();
+            RestSymbol[] rests = GetRests(time, prevtime, starttime);
+            if (rests != null) {
+                for (RestSymbol r : rests) {
+                    result.add(r);
+                }
+            }
+            result.add(symbol);
+            if (symbol instanceof ChordSymbol) {
+                ChordSymbol chord = (ChordSymbol)symbol;
+                prevtime = Math.max(chord.getEndTime(), prevtime);
+            }
+            else {
+                prevtime = Math.max(starttime, prevtime);
+            }
+        }
+        return result;
+    }
+
+    /** Return the rest symbols needed to fill the time interval between
+     *  start and end, or null.
+     */
+    private static RestSymbol[] GetRests(TimeSignature time, int start, int end) {
+        if (end - start < 0)
+            return null;
+
+        NoteDuration dur = time.GetNoteDuration(end - start);
+        switch (dur) {
+            case Whole:
+            case Half:
+            case Quarter:
+            case Eighth:
+                return new RestSymbol[] { new RestSymbol(start, dur) };
+            case DottedHalf:
+                return new RestSymbol[] {
+                    new RestSymbol(start, NoteDuration.Half),
+                    new RestSymbol(start + time.getQuarter()*2, NoteDuration.Quarter) };
+            case DottedQuarter:
+                return new RestSymbol[] {
+                    new RestSymbol(start, NoteDuration.Quarter),
+                    new RestSymbol(start + time.getQuarter(), NoteDuration.Eighth) };
+            case DottedEighth:
+                return new RestSymbol[] {
+                    new RestSymbol(start, NoteDuration.Eighth),
+                    new RestSymbol(start + time.getQuarter()/2, NoteDuration.Sixteenth) };
+            default:
+                return null;
+        }
+    }
+
+    /** Add the clef change symbols. */
+    private static ArrayList<MusicSymbol>
+    AddClefChanges(ArrayList<MusicSymbol> symbols, ClefMeasures clefs) {
+        ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>(symbols.size());
+        Clef prevclef = clefs.GetClef(0);
+        for (MusicSymbol symbol : symbols) {
+            if (symbol instanceof BarSymbol) {
+                Clef clef = clefs.GetClef(symbol.getStartTime());
+                if (clef != prevclef) {
+                    result.add(new ClefSymbol(clef, symbol.getStartTime()-1, true));
+                }
+                prevclef = clef;
+            }
+            result.add(symbol);
+        }
+        return result;
+    }
+
+    /** Vertically align the symbols of all the tracks. */
+    private static void
+    AlignSymbols(ArrayList<ArrayList<MusicSymbol>> allsymbols, SymbolWidths widths) {
+        for (int track = 0; track < allsymbols.size(); track++) {
+            ArrayList<MusicSymbol> symbols = allsymbols.get(track);
+            ArrayList<MusicSymbol> result = new ArrayList<MusicSymbol>();
+
+            int i = 0;
+            for (int start : widths.getStartTimes()) {
+                while (i < symbols.size() && (symbols.get(i) instanceof BarSymbol) &&
+                       symbols.get(i).getStartTime() <= start) {
+                    result.add(symbols.get(i));
+                    i++;
+                }
+                if (i < symbols.size() && symbols.get(i).getStartTime() == start) {
+                    while (i < symbols.size() && symbols.get(i).getStartTime() == start) {
+                        result.add(symbols.get(i));
+                        i++;
+                    }
+                }
+                else {
+                    result.add(new BlankSymbol(start, 0));
+                }
+            }
+
+            i = 0;
+            while (i < result.size()) {
+                if (result.get(i) instanceof BarSymbol) {
+                    i++;
+                    continue;
+                }
+                int start = result.get(i).getStartTime();
+                int extra = widths.GetExtraWidth(track, start);
+                result.get(i).setWidth(result.get(i).getWidth() + extra);
+                while (i < result.size() && result.get(i).getStartTime() == start) {
+                    i++;
+                }
+            }
+            allsymbols.set(track, result);
+        }
+    }
+
+    /** Find numChords chord symbols that occur consecutively (with only
+     *  BlankSymbols in between), starting from startIndex.
+     */
+    private static boolean
+    FindConsecutiveChords(ArrayList<MusicSymbol> symbols, int startIndex,
+                          int[] chordIndexes, BoxedInt horizDistance) {
+        int i = startIndex;
+        int numChords = chordIndexes.length;
+
+        while (true) {
+            horizDistance.value = 0;
+            while (i < symbols.size() - numChords) {
+                if (symbols.get(i) instanceof ChordSymbol) {
+                    ChordSymbol c = (ChordSymbol) symbols.get(i);
+                    if (c.getStem() != null) {
+                        break;
+                    }
+                }
+                i++;
+            }
+            if (i >= symbols.size() - numChords) {
+                chordIndexes[0] = -1;
+                return false;
+            }
+            chordIndexes[0] = i;
+            boolean foundChords = true;
+            for (int chordIndex = 1; chordIndex < numChords; chordIndex++) {
+                i++;
+                int remaining = numChords - 1 - chordIndex;
+                while ((i < symbols.size() - remaining) &&
+                       (symbols.get(i) instanceof BlankSymbol)) {
+                    horizDistance.value += symbols.get(i).getWidth();
+                    i++;
+                }
+                if (i >= symbols.size() - remaining) {
+                    return false;
+                }
+                if (!(symbols.get(i) instanceof ChordSymbol)) {
+                    foundChords = false;
+                    break;
+                }
+                chordIndexes[chordIndex] = i;
+                horizDistance.value += symbols.get(i).getWidth();
+            }
+            if (foundChords) {
+                return true;
+            }
+        }
+    }
+
+    /** Connect chords of the same duration with a horizontal beam. */
+    private static void
+    CreateBeamedChords(ArrayList<ArrayList<MusicSymbol>> allsymbols, TimeSignature time,
+                       int numChords, boolean startBeat) {
+        int[] chordIndexes = new int[numChords];
+        ChordSymbol[] chords = new ChordSymbol[numChords];
+
+        for (ArrayList<MusicSymbol> symbols : allsymbols) {
+            int startIndex = 0;
+            while (true) {
+                BoxedInt horizDistance = new BoxedInt();
+                if (!FindConsecutiveChords(symbols, startIndex, chordIndexes, horizDistance)) {
+                    break;
+                }
+                for (int i = 0; i < numChords; i++) {
+                    chords[i] = (ChordSymbol)symbols.get(chordIndexes[i]);
+                }
+                if (ChordSymbol.CanCreateBeam(chords, time, startBeat)) {
+                    ChordSymbol.CreateBeam(chords, horizDistance.value);
+                    startIndex = chordIndexes[numChords-1] + 1;
+                }
+                else {
+                    startIndex = chordIndexes[0] + 1;
+                }
+            }
+        }
+    }
+
+    /** Connect the chords with beams, in the same order as before. */
+    private static void
+    CreateAllBeamedChords(ArrayList<ArrayList<MusicSymbol>> allsymbols, TimeSignature time) {
+        if ((time.getNumerator() == 3 && time.getDenominator() == 4) ||
+            (time.getNumerator() == 6 && time.getDenominator() == 8) ||
+            (time.getNumerator() == 6 && time.getDenominator() == 4)) {
+            CreateBeamedChords(allsymbols, time, 6, true);
+        }
+        CreateBeamedChords(allsymbols, time, 3, true);
+        CreateBeamedChords(allsymbols, time, 4, true);
+        CreateBeamedChords(allsymbols, time, 2, true);
+        CreateBeamedChords(allsymbols, time, 2, false);
+    }
+
+    /** Create the staffs of a track.  A measure does not span staffs. */
+    private static ArrayList<Staff>
+    CreateStaffsForTrack(ArrayList<MusicSymbol> symbols, int measurelen,
+                         KeySignature key, MidiOptions options,
+                         int track, int totaltracks) {
+        int keysigWidth = SheetMusic.KeySignatureWidth(key);
+        int maxwidth = options.scrollVert ? SheetMusic.PageWidth : 2000000;
+        int startindex = 0;
+        ArrayList<Staff> thestaffs = new ArrayList<Staff>();
+
+        while (startindex < symbols.size()) {
+            int endindex = startindex;
+            int width = keysigWidth;
+            while (endindex < symbols.size() &&
+                   width + symbols.get(endindex).getWidth() < maxwidth) {
+                width += symbols.get(endindex).getWidth();
+                endindex++;
+            }
+            endindex--;
+
+            if (endindex == symbols.size() - 1) {
+                /* endindex stays the same */
+            }
+            else if (symbols.get(startindex).getStartTime() / measurelen ==
+                     symbols.get(endindex).getStartTime() / measurelen) {
+                /* endindex stays the same */
+            }
+            else {
+                int endmeasure = symbols.get(endindex+1).getStartTime()/measurelen;
+                while (symbols.get(endindex).getStartTime() / measurelen == endmeasure) {
+                    endindex--;
+                }
+            }
+
+            ArrayList<MusicSymbol> staffSymbols =
+              new ArrayList<MusicSymbol>(symbols.subList(startindex, endindex + 1));
+            thestaffs.add(new Staff(staffSymbols, key, options, track, totaltracks));
+            startindex = endindex + 1;
+        }
+        return thestaffs;
+    }
+
+    /** Create the staffs of all the tracks, interleaved by track. */
+    private static ArrayList<Staff>
+    CreateStaffs(ArrayList<ArrayList<MusicSymbol>> allsymbols, KeySignature key,
+                 MidiOptions options, int measurelen) {
+        ArrayList<ArrayList<Staff>> trackstaffs = new ArrayList<ArrayList<Staff>>();
+        int totaltracks = allsymbols.size();
+        for (int track = 0; track < totaltracks; track++) {
+            trackstaffs.add(CreateStaffsForTrack(allsymbols.get(track), measurelen, key,
+                                                 options, track, totaltracks));
+        }
+        int maxstaffs = 0;
+        for (ArrayList<Staff> list : trackstaffs) {
+            for (int i = 0; i < list.size()-1; i++) {
+                list.get(i).setEndTime(list.get(i+1).getStartTime());
+            }
+            maxstaffs = Math.max(maxstaffs, list.size());
+        }
+        ArrayList<Staff> result = new ArrayList<Staff>();
+        for (int i = 0; i < maxstaffs; i++) {
+            for (ArrayList<Staff> list : trackstaffs) {
+                if (i < list.size()) {
+                    result.add(list.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Get the lyrics for each track, or null if there are none */
+    private static ArrayList<ArrayList<LyricSymbol>> GetLyrics(ArrayList<MidiTrack> tracks)
+      throws UnsupportedEncodingException {
+        boolean hasLyrics = false;
+        ArrayList<ArrayList<LyricSymbol>> result = new ArrayList<ArrayList<LyricSymbol>>();
+        for (MidiTrack track : tracks) {
+            ArrayList<LyricSymbol> lyrics = new ArrayList<LyricSymbol>();
+            result.add(lyrics);
+            if (track.getLyrics() == null) {
+                continue;
+            }
+            hasLyrics = true;
+            for (MidiEvent ev : track.getLyrics()) {
+                String text = new String(ev.Value, 0, ev.Value.length, "UTF-8");
+                lyrics.add(new LyricSymbol(ev.StartTime, text));
+            }
+        }
+        return hasLyrics ? result : null;
+    }
+
+    /** Lay out the whole song at once, as SheetMusic.init() did before
+     *  the StaffLayout.  Return the staffs, from top to bottom.
+     */
+    private static ArrayList<Staff> Layout(MidiFile file, MidiOptions options)
+      throws UnsupportedEncodingException {
+        ArrayList<MidiTrack> tracks = file.ChangeMidiNotes(options);
+        TimeSignature time = file.getTime();
+        if (options.time != null) {
+            time = options.time;
+        }
+        KeySignature mainkey;
+        if (options.key == -1) {
+            mainkey = GetKeySignature(tracks);
+        }
+        else {
+            mainkey = new KeySignature(options.key);
+        }
+        int lastStart = file.EndTime() + options.shifttime;
+
+        ArrayList<ArrayList<MusicSymbol>> allsymbols =
+          new ArrayList<ArrayList<MusicSymbol>>(tracks.size());
+        for (MidiTrack track : tracks) {
+            NoteTable notes = track.readTable();
+            ClefMeasures clefs = new ClefMeasures(notes, time.getMeasure());
+            ArrayList<ChordSymbol> chords = CreateChords(notes, mainkey, time, clefs);
+            ArrayList<MusicSymbol> symbols = AddBars(chords, time, lastStart);
+            symbols = AddRests(symbols, time);
+            allsymbols.add(AddClefChanges(symbols, clefs));
+        }
+
+        ArrayList<ArrayList<LyricSymbol>> lyrics = null;
+        if (options.showLyrics) {
+            lyrics = GetLyrics(tracks);
+        }
+        AlignSymbols(allsymbols, new SymbolWidths(allsymbols, lyrics));
+
+        ArrayList<Staff> staffs = CreateStaffs(allsymbols, mainkey, options, time.getMeasure());
+        CreateAllBeamedChords(allsymbols, time);
+        if (lyrics != null) {
+            for (Staff staff : staffs) {
+                staff.AddLyrics(lyrics.get(staff.getTrack()));
+            }
+        }
+        for (Staff staff : staffs) {
+            staff.CalculateHeight();
+        }
+        return staffs;
+    }
+
+    /** Return the default options for the midi file, as the
+     *  MidiOptions(MidiFile) constructor does, without the colors.
+     */
+    private static MidiOptions CreateOptions(MidiFile file) {
+        MidiOptions options = new MidiOptions();
+        int numtracks = file.getTracks().size();
+        options.tracks = new boolean[numtracks];
+        options.mute = new boolean[numtracks];
+        options.instruments = new int[numtracks];
+        for (int i = 0; i < numtracks; i++) {
+            MidiTrack track = file.getTracks().get(i);
+            options.tracks[i] = !track.getInstrumentName().equals("Percussion");
+            options.instruments[i] = track.getInstrument();
+        }
+        options.useDefaultInstruments = true;
+        options.largeNoteSize = true;
+        options.showNoteLetters = MidiOptions.NoteNameNone;
+        options.time = null;
+        options.defaultTime = file.getTime();
+        options.key = -1;
+        options.combineInterval = 40;
+        options.tempo = file.getTime().getTempo();
+        options.lastMeasure = file.EndTime() / file.getTime().getMeasure();
+        options.playMeasuresInLoopEnd = options.lastMeasure;
+        return options;
+    }
+
+    /** Return the text to compare for the given staff */
+    private static String Describe(Staff staff) {
+        return String.format("width=%1$s height=%2$s track=%3$s start=%4$s end=%5$s\n",
+                             staff.getWidth(), staff.getHeight(), staff.getTrack(),
+                             staff.getStartTime(), staff.getEndTime()) +
+               staff.toString();
+    }
+
+    /** Check that the staffs in [first:last] are restored, and the same
+     *  as the expected staffs.
+     */
+    private static void CheckStaffs(String where, ArrayList<String> expected,
+                                    ArrayList<Staff> staffs, int first, int last) {
+        for (int i = first; i < last && i < staffs.size(); i++) {
+            assertFalse(where + " staff " + i + " evicted", staffs.get(i).isEvicted());
+            assertEquals(where + " staff " + i, expected.get(i), Describe(staffs.get(i)));
+        }
+    }
+
+    /** Return true if a staff of the same track follows staffs[index] */
+    private static boolean HasNextStaff(ArrayList<Staff> staffs, int index) {
+        for (int i = index + 1; i < staffs.size(); i++) {
+            if (staffs.get(i).getTrack() == staffs.get(index).getTrack()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Lay out the song with the StaffLayout, and compare the staffs with
+     *  the expected ones.  Return the number of staffs compared.
+     */
+    private static int CheckLayout(String where, MidiFile file, MidiOptions options,
+                                   boolean windowed) throws IOException {
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Staff staff : Layout(file, options)) {
+            expected.add(Describe(staff));
+        }
+
+        StaffLayout layout = new StaffLayout(null, file, options);
+        layout.setThreads(Threads);
+        layout.setWindowedMeasures(windowed ? 0 : Integer.MAX_VALUE);
+        layout.Start();
+        assertEquals(where + " windowed", windowed, layout.isWindowed());
+
+        /* Restore the new staffs after each section, as the SheetMusic
+         * does while the song is laid out.  The lyric at the end of a
+         * staff is placed by the next staff of the track, so only the
+         * staffs followed by another staff of their track are compared.
+         * Until then, the staffs on the first page are not evicted.
+         */
+        int laidout = 0;
+        boolean firstpage = true;
+        while (!layout.isDone()) {
+            layout.LayoutNext();
+            if (windowed) {
+                ArrayList<Staff> staffs = layout.getStaffs();
+                int last = laidout;
+                while (last < staffs.size() && HasNextStaff(staffs, last)) {
+                    last++;
+                }
+                if (firstpage) {
+                    int page = 0;
+                    int ypos = 0;
+                    while (page < last && ypos < SheetMusic.PageHeight) {
+                        ypos += staffs.get(page).getHeight();
+                        page++;
+                    }
+                    CheckStaffs(where + " first page", expected, staffs, 0, page);
+                    firstpage = false;
+                }
+                layout.Materialize(laidout, last);
+                CheckStaffs(where + " section", expected, staffs, laidout, last);
+                layout.EvictStaffs(0, 0);
+                laidout = last;
+            }
+        }
+        ArrayList<Staff> staffs = layout.getStaffs();
+        assertEquals(where + " staffs", expected.size(), staffs.size());
+        if (!windowed) {
+            CheckStaffs(where, expected, staffs, 0, staffs.size());
+            return staffs.size();
+        }
+
+        /* Restore one staff at a time, then a page of staffs at a time */
+        for (int i = 0; i < staffs.size(); i++) {
+            assertTrue(where + " staff " + i + " not evicted", staffs.get(i).isEvicted());
+            layout.Materialize(i, i+1);
+            CheckStaffs(where + " single", expected, staffs, i, i+1);
+            layout.EvictStaffs(0, 0);
+        }
+        int page = 2 * layout.getNumTracks() + 1;
+        for (int i = 0; i < staffs.size(); i += page) {
+            layout.EvictStaffs(i, i + page);
+            layout.Materialize(i, i + page);
+            CheckStaffs(where + " page", expected, staffs, i, i + page);
+        }
+        return staffs.size();
+    }
+
+    /** The sample songs have no lyrics, so give each chord of each
+     *  track a lyric, of a few different lengths.
+     */
+    private static void AddLyrics(MidiFile file) {
+        String[] words = { "la", "dum", "a", "tra-la-la", "ho", "lullaby" };
+        for (MidiTrack track : file.getTracks()) {
+            NoteTable notes = track.readTable();
+            ArrayList<MidiEvent> lyrics = new ArrayList<MidiEvent>();
+            for (int i = 0; i < notes.size(); i++) {
+                int starttime = notes.getStartTime(i);
+                if (i > 0 && notes.getStartTime(i-1) == starttime) {
+                    continue;
+                }
+                MidiEvent ev = new MidiEvent();
+                ev.StartTime = starttime;
+                ev.EventFlag = MidiFile.MetaEvent;
+                ev.Metaevent = MidiFile.MetaEventLyric;
+                ev.Value = words[lyrics.size() % words.length].getBytes();
+                ev.Metalength = ev.Value.length;
+                lyrics.add(ev);
+            }
+            if (lyrics.size() > 0) {
+                track.setLyrics(lyrics);
+            }
+        }
+    }
+
+    /** Read the given file */
+    private static byte[] ReadFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /** Read the golden file.  Return the CRC32 of each staff, keyed by
+     *  the line naming the song and the options.
+     */
+    private static HashMap<String, ArrayList<String>> ReadGolden() throws IOException {
+        InputStream stream = StaffLayoutTest.class.getResourceAsStream(GoldenFile);
+        assertNotNull("Missing resource " + GoldenFile, stream);
+        BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        HashMap<String, ArrayList<String>> golden = new HashMap<String, ArrayList<String>>();
+        try {
+            ArrayList<String> checksums = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("Song ")) {
+                    checksums = new ArrayList<String>();
+                    golden.put(line, checksums);
+                }
+                else {
+                    checksums.add(line);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return golden;
+    }
+
+    /** Return the CRC32 of the given text, in hex */
+    private static String Checksum(String text) throws UnsupportedEncodingException {
+        CRC32 crc = new CRC32();
+        crc.update(text.getBytes("UTF-8"));
+        return String.format("%1$08x", crc.getValue());
+    }
+
+    @Test
+    public void testSameAsGolden() throws IOException {
+        HashMap<String, ArrayList<String>> golden = ReadGolden();
+        File[] files = new File(AssetsDir).listFiles();
+        assertNotNull("Missing directory " + AssetsDir, files);
+        Arrays.sort(files);
+
+        int checked = 0;
+        for (File file : files) {
+            if (!file.getName().toLowerCase().endsWith(".mid")) {
+                continue;
+            }
+            MidiFile midifile = new MidiFile(ReadFile(file), file.getName());
+            AddLyrics(midifile);
+            for (int scrollVert = 0; scrollVert < 2; scrollVert++) {
+                for (int twoStaffs = 0; twoStaffs < 2; twoStaffs++) {
+                    for (int showLyrics = 0; showLyrics < 2; showLyrics++) {
+                        MidiOptions options = CreateOptions(midifile);
+                        options.scrollVert = (scrollVert == 1);
+                        options.twoStaffs = (twoStaffs == 1);
+                        options.showLyrics = (showLyrics == 1);
+                        String where = String.format(
+                            "Song %1$s scrollVert=%2$s twoStaffs=%3$s showLyrics=%4$s",
+                            file.getName(), options.scrollVert,
+                            options.twoStaffs, options.showLyrics);
+                        ArrayList<String> expected = golden.get(where);
+                        assertNotNull("Not in " + GoldenFile + ": " + where, expected);
+
+                        StaffLayout layout = new StaffLayout(null, midifile, options);
+                        layout.setThreads(Threads);
+                        layout.setWindowedMeasures(Integer.MAX_VALUE);
+                        layout.Start();
+                        while (!layout.isDone()) {
+                            layout.LayoutNext();
+                        }
+                        ArrayList<Staff> staffs = layout.getStaffs();
+                        assertEquals(where + " staffs", expected.size(), staffs.size());
+                        for (int i = 0; i < staffs.size(); i++) {
+                            String text = Describe(staffs.get(i));
+                            assertEquals(where + " staff " + i + "\n" + text,
+                                         expected.get(i), Checksum(text));
+                        }
+                        checked++;
+                    }
+                }
+            }
+        }
+        assertEquals("Songs and options checked", golden.size(), checked);
+    }
+
+    @Test
+    public void testSameAsWholeSongLayout() throws IOException {
+        File[] files = new File(AssetsDir).listFiles();
+        assertNotNull("Missing directory " + AssetsDir, files);
+        Arrays.sort(files);
+
+        int checked = 0;
+        for (File file : files) {
+            if (!file.getName().toLowerCase().endsWith(".mid")) {
+                continue;
+            }
+            MidiFile midifile = new MidiFile(ReadFile(file), file.getName());
+            AddLyrics(midifile);
+            for (int scroll = 0; scroll < 3; scroll++) {
+                for (int twoStaffs = 0; twoStaffs < 2; twoStaffs++) {
+                    for (int showLyrics = 0; showLyrics < 2; showLyrics++) {
+                        MidiOptions options = CreateOptions(midifile);
+                        options.scrollVert = (scroll > 0);
+                        options.twoStaffs = (twoStaffs == 1);
+                        options.showLyrics = (showLyrics == 1);
+                        String where = String.format(
+                            "%1$s scrollVert=%2$s windowed=%3$s twoStaffs=%4$s showLyrics=%5$s",
+                            file.getName(), options.scrollVert, scroll == 2,
+                            options.twoStaffs, options.showLyrics);
+                        checked += CheckLayout(where, midifile, options, scroll == 2);
+                    }
+                }
+            }
+        }
+        assertTrue("No staffs were checked", checked > 0);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.helper;
+
+import java.io.*;
+import java.util.*;
+
+import com.midisheetmusic.midi.model.MidiFile;
+import com.midisheetmusic.midi.model.MidiTrack;
+import com.midisheetmusic.midi.model.NoteTable;
+
+/** @class DictIntBenchmark
+ * Time the DictInt against the old sorted DictInt (SortedDictInt), on
+ * the lookups SymbolWidths makes for a long score.
+ *
+ * The score is the songs in assets, one after another, repeated a
+ * number of times.  Track t of the score has the notes of track t of
+ * each song.  Each chord (the notes with the same start time) is one
+ * symbol, whose width grows with the number of notes.  Then, as in
+ * SymbolWidths:
+ *
+ * - One dictionary per track maps each start time to the sum of the
+ *   symbol widths at that time.
+ * - The maximum width of each start time is merged from all the tracks
+ *   into one dictionary, track after track, so the keys go back to the
+ *   start of the song at each track.
+ * - The sorted start times are taken from the merged dictionary.
+ * - GetExtraWidth() looks up each start time in the merged dictionary
+ *   and in the dictionary of each track.
+ *
+ * The workload is written once, against the Dict interface, so both
+ * dictionaries do the same work.  This is not run by the unit tests.
+ * Run it from the core directory with
+ *   java com.midisheetmusic.helper.DictIntBenchmark [repeat]
+ * The checksums printed must be equal.
+ */
+public class DictIntBenchmark {
+
+    /** The directory with the sample songs, relative to the core module */
+    private static final String AssetsDir = "assets";
+
+    /** The number of times each implementation is timed */
+    private static final int Runs = 5;
+
+    /** The dictionary methods that SymbolWidths uses */
+    interface Dict {
+        Dict Create(int capacity);
+        boolean contains(int key);
+        int get(int key);
+        void set(int key, int value);
+        int count();
+        int getKey(int index);
+        int getValue(int index);
+        int[] getSortedKeys();
+    }
+
+    /** A Dict backed by the DictInt */
+    static class HashedDict implements Dict {
+        private final DictInt dict;
+
+        HashedDict(int capacity) { dict = new DictInt(capacity); }
+
+        public Dict Create(int capacity) { return new HashedDict(capacity); }
+        public boolean contains(int key) { return dict.contains(key); }
+        public int get(int key) { return dict.get(key); }
+        public void set(int key, int value) { dict.set(key, value); }
+        public int count() { return dict.count(); }
+        public int getKey(int index) { return dict.getKey(index); }
+        public int getValue(int index) { return dict.getValue(index); }
+        public int[] getSortedKeys() { return dict.getSortedKeys(); }
+    }
+
+    /** A Dict backed by the SortedDictInt.  The old DictInt had no
+     *  getValue(), so the old SymbolWidths looked up the key instead,
+     *  and the keys were already sorted.
+     */
+    static class SortedDict implements Dict {
+        private final SortedDictInt dict = new SortedDictInt();
+
+        public Dict Create(int capacity) { return new SortedDict(); }
+        public boolean contains(int key) { return dict.contains(key); }
+        public int get(int key) { return dict.get(key); }
+        public void set(int key, int value) { dict.set(key, value); }
+        public int count() { return dict.count(); }
+        public int getKey(int index) { return dict.getKey(index); }
+        public int getValue(int index) { return dict.get(dict.getKey(index)); }
+        public int[] getSortedKeys() {
+            int[] result = new int[dict.count()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = dict.getKey(i);
+            }
+            return result;
+        }
+    }
+
+    /** The symbols of one track of the score: the start time and width
+     *  of each chord, in order.
+     */
+    static class TrackSymbols {
+        ListInt starttimes = new ListInt();
+        ListInt widths = new ListInt();
+    }
+
+    /** Read the given file */
+    private static byte[] ReadFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /** Create the tracks of the long score, from the songs in assets
+     *  repeated the given number of times.
+     */
+    private static ArrayList<TrackSymbols> CreateScore(int repeat) throws IOException {
+        File[] files = new File(AssetsDir).listFiles();
+        if (files == null) {
+            throw new IOException("Missing directory " + AssetsDir);
+        }
+        Arrays.sort(files);
+        ArrayList<MidiFile> songs = new ArrayList<MidiFile>();
+        for (File file : files) {
+            if (file.getName().toLowerCase().endsWith(".mid")) {
+                songs.add(new MidiFile(ReadFile(file), file.getName()));
+            }
+        }
+
+        ArrayList<TrackSymbols> score = new ArrayList<TrackSymbols>();
+        int offset = 0;
+        for (int r = 0; r < repeat; r++) {
+            for (MidiFile song : songs) {
+                ArrayList<MidiTrack> tracks = song.getTracks();
+                for (int t = 0; t < tracks.size(); t++) {
+                    if (t == score.size()) {
+                        score.add(new TrackSymbols());
+                    }
+                    AddChords(score.get(t), tracks.get(t).readTable(), offset);
+                }
+                offset += song.getTotalPulses() + 1;
+            }
+        }
+        return score;
+    }
+
+    /** Add a symbol for each chord of the notes to the track */
+    private static void AddChords(TrackSymbols track, NoteTable notes, int offset) {
+        int i = 0;
+        while (i < notes.size()) {
+            int start = notes.getStartTime(i);
+            int width = 20;
+            i++;
+            while (i < notes.size() && notes.getStartTime(i) == start) {
+                width += 4;
+                i++;
+            }
+            track.starttimes.add(start + offset);
+            track.widths.add(width);
+        }
+    }
+
+    /** Run the SymbolWidths lookups on the given kind of Dict.
+     *  Return a checksum.
+     */
+    private static long Run(ArrayList<TrackSymbols> score, Dict kind) {
+        /* GetTrackWidths() */
+        Dict[] widths = new Dict[score.size()];
+        for (int t = 0; t < score.size(); t++) {
+            TrackSymbols track = score.get(t);
+            Dict dict = kind.Create(track.starttimes.size());
+            for (int i = 0; i < track.starttimes.size(); i++) {
+                int start = track.starttimes.get(i);
+                int w = track.widths.get(i);
+                if (dict.contains(start)) {
+                    dict.set(start, dict.get(start) + w);
+                }
+                else {
+                    dict.set(start, w);
+                }
+            }
+            widths[t] = dict;
+        }
+
+        /* The maximum symbol widths */
+        Dict maxwidths = kind.Create(16);
+        for (Dict dict : widths) {
+            for (int i = 0; i < dict.count(); i++) {
+                int time = dict.getKey(i);
+                int width = dict.getValue(i);
+                if (!maxwidths.contains(time) || maxwidths.get(time) < width) {
+                    maxwidths.set(time, width);
+                }
+            }
+        }
+        int[] starttimes = maxwidths.getSortedKeys();
+
+        /* GetExtraWidth() for each symbol */
+        long checksum = starttimes.length;
+        for (int t = 0; t < score.size(); t++) {
+            TrackSymbols track = score.get(t);
+            for (int i = 0; i < track.starttimes.size(); i++) {
+                int start = track.starttimes.get(i);
+                checksum += maxwidths.get(start) - widths[t].get(start);
+            }
+        }
+        return checksum;
+    }
+
+    /** Time the given kind of Dict, and print the best time */
+    private static void Time(String name, ArrayList<TrackSymbols> score, Dict kind) {
+        long best = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int run = 0; run < Runs; run++) {
+            long start = System.nanoTime();
+            checksum = Run(score, kind);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(name + ": " + (best / 1000000) + " ms, checksum " + checksum);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int repeat = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        ArrayList<TrackSymbols> score = CreateScore(repeat);
+        int symbols = 0;
+        for (TrackSymbols track : score) {
+            symbols += track.starttimes.size();
+        }
+
+        System.out.println(score.size() + " tracks, " + symbols + " symbols");
+        Time("DictInt (hash table)", score, new HashedDict(16));
+        Time("SortedDictInt (sorted array)", score, new SortedDict());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.helper;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** @class DictIntTest
+ * Check that the DictInt gives the same results as the old sorted
+ * DictInt (kept as SortedDictInt), for keys set in increasing order,
+ * in random order, and with repeated keys.
+ */
+public class DictIntTest {
+
+    /** Set the given keys in both dictionaries, adding the key's value
+     *  to the value already there, and check every lookup.
+     */
+    private static void CheckKeys(int[] keys) {
+        DictInt dict = new DictInt();
+        SortedDictInt sorted = new SortedDictInt();
+        for (int i = 0; i < keys.length; i++) {
+            int key = keys[i];
+            assertEquals("contains " + key, sorted.contains(key), dict.contains(key));
+            int value = sorted.get(key) + i + 1;
+            assertEquals("get " + key, sorted.get(key), dict.get(key));
+            sorted.set(key, value);
+            dict.set(key, value);
+        }
+        assertEquals("count", sorted.count(), dict.count());
+
+        int[] sortedkeys = dict.getSortedKeys();
+        assertEquals(sorted.count(), sortedkeys.length);
+        for (int i = 0; i < sortedkeys.length; i++) {
+            assertEquals("key " + i, sorted.getKey(i), sortedkeys[i]);
+            assertEquals("value " + i, sorted.get(sortedkeys[i]), dict.get(sortedkeys[i]));
+        }
+        for (int i = 0; i < dict.count(); i++) {
+            assertEquals(dict.get(dict.getKey(i)), dict.getValue(i));
+        }
+
+        /* Missing keys have the value 0 */
+        assertFalse(dict.contains(-1));
+        assertEquals(0, dict.get(-1));
+    }
+
+    @Test
+    public void testIncreasingKeys() {
+        int[] keys = new int[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i / 3 * 96;
+        }
+        CheckKeys(keys);
+    }
+
+    @Test
+    public void testRandomKeys() {
+        Random random = new Random(1234);
+        int[] keys = new int[5000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(2000) * 24;
+        }
+        CheckKeys(keys);
+    }
+
+    @Test
+    public void testCapacity() {
+        DictInt dict = new DictInt(1);
+        for (int i = 0; i < 100; i++) {
+            dict.add(i * 7, i);
+        }
+        assertEquals(100, dict.count());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, dict.get(i * 7));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2007-2012 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic.midi.model;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** @class NoteWindowTest
+ * Check that the NoteWindow finds the same high/low notes as the
+ * FindHighLowNotes() and FindExactHighLowNotes() heuristics that
+ * SplitTrack() used before, for every track of the songs in assets,
+ * for the track of all the notes combined, and for several measure
+ * lengths.  The old heuristics are kept here, over a NoteTable, as
+ * the reference.
+ */
+public class NoteWindowTest {
+
+    /** The directory with the sample songs, relative to the core module */
+    private static final String AssetsDir = "assets";
+
+    /** The highest/lowest notes found by the old heuristics */
+    private int high, low, exactHigh, exactLow;
+
+    /** Find the highest and lowest notes that overlap the interval of
+     *  the note at the given index, as the old FindHighLowNotes() did.
+     */
+    private void FindHighLowNotes(NoteTable notes, int measurelen, int startindex,
+                                  int starttime, int endtime) {
+        int i = startindex;
+        if (starttime + measurelen < endtime) {
+            endtime = starttime + measurelen;
+        }
+        while (i < notes.size() && notes.getStartTime(i) < endtime) {
+            if (notes.getEndTime(i) < starttime) {
+                i++;
+                continue;
+            }
+            if (notes.getStartTime(i) + measurelen < starttime) {
+                i++;
+                continue;
+            }
+            high = Math.max(high, notes.getNumber(i));
+            low = Math.min(low, notes.getNumber(i));
+            i++;
+        }
+    }
+
+    /** Find the highest and lowest notes that start at exactly the start
+     *  time, as the old FindExactHighLowNotes() did.
+     */
+    private void FindExactHighLowNotes(NoteTable notes, int startindex, int starttime) {
+        int i = startindex;
+        while (notes.getStartTime(i) < starttime) {
+            i++;
+        }
+        while (i < notes.size() && notes.getStartTime(i) == starttime) {
+            exactHigh = Math.max(exactHigh, notes.getNumber(i));
+            exactLow = Math.min(exactLow, notes.getNumber(i));
+            i++;
+        }
+    }
+
+    /** Check the window of every note against the old heuristics.
+     *  Return the number of notes checked.
+     */
+    private int CheckNotes(String name, NoteTable notes, int measurelen) {
+        if (!notes.isSorted()) {
+            notes = notes.Clone();
+            notes.Sort();
+        }
+        NoteWindow window = new NoteWindow(notes, measurelen);
+        int startindex = 0;
+        for (int index = 0; index < notes.size(); index++) {
+            int starttime = notes.getStartTime(index);
+            int number = notes.getNumber(index);
+            while (notes.getEndTime(startindex) < starttime) {
+                startindex++;
+            }
+            high = low = exactHigh = exactLow = number;
+            FindHighLowNotes(notes, measurelen, startindex, starttime, notes.getEndTime(index));
+            FindExactHighLowNotes(notes, startindex, starttime);
+
+            window.Move(index);
+            String where = name + " measure " + measurelen + " note " + index;
+            assertEquals(where + " high", high, window.getHigh());
+            assertEquals(where + " low", low, window.getLow());
+            assertEquals(where + " exact high", exactHigh, window.getExactHigh());
+            assertEquals(where + " exact low", exactLow, window.getExactLow());
+        }
+        return notes.size();
+    }
+
+    /** Read the given file */
+    private static byte[] ReadFile(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void testSameAsOldHeuristics() throws IOException {
+        File[] files = new File(AssetsDir).listFiles();
+        assertNotNull("Missing directory " + AssetsDir, files);
+        Arrays.sort(files);
+
+        int checked = 0;
+        for (File file : files) {
+            if (!file.getName().toLowerCase().endsWith(".mid")) {
+                continue;
+            }
+            MidiFile midifile = new MidiFile(ReadFile(file), file.getName());
+            int measure = midifile.getTime().getMeasure();
+            int[] measurelens = { measure / 2, measure, measure * 2 };
+            ArrayList<MidiTrack> tracks = midifile.getTracks();
+
+            for (int measurelen : measurelens) {
+                for (int t = 0; t < tracks.size(); t++) {
+                    checked += CheckNotes(file.getName() + " track " + t,
+                                          tracks.get(t).readTable(), measurelen);
+                }
+                MidiTrack single = MidiFile.CombineToSingleTrack(tracks);
+                checked += CheckNotes(file.getName() + " combined",
+                                      single.readTable(), measurelen);
+            }
+        }
+        assertTrue("No notes were checked", checked > 0);
+    }
+}